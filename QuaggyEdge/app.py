@@ -6,9 +6,10 @@ import error_handler, argparse
 from util import apiexceptions
 from user import User
 from datastore import Datastore
-import sys, json
+import sys, os, json, requests
 
 import authenticate
+import digest
 
 app = Flask(__name__)
 
@@ -134,8 +135,17 @@ def add_filter(jsonData):
 #
 
 @app.route('/backend/digest', methods=['POST'])
-@parse_json
-def add_digest(jsonData):
+def add_digest():
+    # Binary digests (see digest.py) are grouped by item already, so each
+    # record updates one feature vector at once.
+    if request.mimetype == digest.CONTENT_TYPE:
+        try:
+            store_records(digest.decode(request.get_data()))
+        except digest.DigestError as e:
+            raise apiexceptions.ValidationError(str(e))
+        return ValidResponse(message='OK')
+    # Older backends send a JSON map from id:history:buy:sell:feature -> val.
+    jsonData = request.get_json() or {}
     for key, val in jsonData.iteritems():
         pieces = key.split(':')
         Datastore.cache[pieces[2]][pieces[3]][pieces[1]][pieces[0]][pieces[4]] = val
@@ -210,6 +220,27 @@ def insecure_ping(jsonData):
     return ValidResponse(message='insecure_pong', payload=jsonData)
 
 
+def store_records(records):
+    '''
+    Put records decoded from a digest into the cache.
+    '''
+    for buy, sell, history, iid, values in records:
+        Datastore.cache[buy][sell][history][iid].update(values)
+
+def bootstrap(url):
+    '''
+    Fill the cache from the snapshot QuaggyEngine serves, so we can answer
+    queries straight away instead of waiting for it to send every item.
+    '''
+    try:
+        response = requests.get(url, timeout=60)
+        response.raise_for_status()
+        store_records(digest.decode_snapshot(response.content))
+        print "Loaded snapshot from {}".format(url)
+    except (requests.RequestException, digest.DigestError) as e:
+        # The engine will send us everything eventually, so carry on without it.
+        print "Could not load snapshot from {}: {}".format(url, e)
+
 """
 Main entry point of our application. Any flags required are
 passed in through `args`
@@ -220,12 +251,19 @@ def build_app(**kwargs):
 
     Datastore.initialize()
 
+    # Fill the cache before we start accepting digests, so newer values sent
+    # by the engine are never overwritten by the snapshot.
+    url = kwargs.get('bootstrap') or os.environ.get('QUAGGY_BOOTSTRAP')
+    if url:
+        bootstrap(url)
+
     return app
 
 if __name__ == '__main__':
     # Start the test server if need-be
     parser = argparse.ArgumentParser(description="Run server")
     parser.add_argument('--test', dest='test', action='store_true', help='Run server in test mode')
+    parser.add_argument('--bootstrap', dest='bootstrap', help='URL of the QuaggyEngine snapshot to fill the cache from')
     args = parser.parse_args()
 
     app = build_app(**(vars(args)))
@@ -0,0 +1,103 @@
+import struct, zlib
+
+'''
+Decoder for the binary digests QuaggyEngine sends to /backend/digest,
+and for the snapshots of every feature it serves for edges to start from.
+See QuaggyEngine/src/core/Digest.java and io/SnapshotFile.java for the formats.
+'''
+
+CONTENT_TYPE = 'application/x-quaggy-digest'
+VERSION = 1
+MAGIC = b'QDG'
+FLAG_COMPRESSED = 1
+
+SNAPSHOT_CONTENT_TYPE = 'application/x-quaggy-snapshot'
+SNAPSHOT_VERSION = 1
+SNAPSHOT_MAGIC = b'QSN'
+
+_byte = struct.Struct('>B')
+_short = struct.Struct('>H')
+_int = struct.Struct('>i')
+_record = struct.Struct('>iBBBQ')
+
+
+class DigestError(Exception):
+    pass
+
+
+def _read_names(data, pos):
+    count, = _byte.unpack_from(data, pos)
+    pos += _byte.size
+    names = []
+    for _ in range(count):
+        length, = _short.unpack_from(data, pos)
+        pos += _short.size
+        names.append(data[pos:pos + length].decode('utf-8'))
+        pos += length
+    return names, pos
+
+
+def decode(data):
+    '''
+    Yield (buy mode, sell mode, history days, item id, {feature: value})
+    for every record in a digest. History days and item id are strings,
+    matching the keys used by Datastore.cache.
+    '''
+    if len(data) < len(MAGIC) + 2 or data[:len(MAGIC)] != MAGIC:
+        raise DigestError('Not a digest')
+    version, flags = struct.unpack_from('>BB', data, len(MAGIC))
+    if version != VERSION:
+        raise DigestError('Unsupported digest version {}'.format(version))
+    body = data[len(MAGIC) + 2:]
+    if flags & FLAG_COMPRESSED:
+        body = zlib.decompress(body)
+
+    try:
+        features, pos = _read_names(body, 0)
+        modes, pos = _read_names(body, pos)
+        num_days, = _byte.unpack_from(body, pos)
+        days = [str(d) for d in struct.unpack_from('>{}i'.format(num_days), body, pos + 1)]
+        pos += 1 + 4 * num_days
+        num_records, = _int.unpack_from(body, pos)
+        pos += _int.size
+
+        # Cache the feature names and unpacker for each mask we see, since
+        # most records in a digest share the same few masks.
+        layouts = {}
+        for _ in range(num_records):
+            iid, window, buy, sell, mask = _record.unpack_from(body, pos)
+            pos += _record.size
+            layout = layouts.get(mask)
+            if layout is None:
+                names = [f for i, f in enumerate(features) if mask & (1 << i)]
+                layout = (names, struct.Struct('>{}d'.format(len(names))))
+                layouts[mask] = layout
+            names, values = layout
+            yield (modes[buy], modes[sell], days[window], str(iid),
+                   dict(zip(names, values.unpack_from(body, pos))))
+            pos += values.size
+    except (struct.error, IndexError) as e:
+        raise DigestError('Malformed digest: {}'.format(e))
+
+
+def decode_snapshot(data):
+    '''
+    Yield the records of every digest in a snapshot, as decode() does.
+    '''
+    header = len(SNAPSHOT_MAGIC) + 1
+    if len(data) < header or data[:len(SNAPSHOT_MAGIC)] != SNAPSHOT_MAGIC:
+        raise DigestError('Not a snapshot')
+    version, = _byte.unpack_from(data, len(SNAPSHOT_MAGIC))
+    if version != SNAPSHOT_VERSION:
+        raise DigestError('Unsupported snapshot version {}'.format(version))
+    pos = header
+    while pos < len(data):
+        if pos + _int.size > len(data):
+            raise DigestError('Truncated snapshot')
+        length, = _int.unpack_from(data, pos)
+        pos += _int.size
+        if length < 0 or pos + length > len(data):
+            raise DigestError('Truncated snapshot')
+        for record in decode(data[pos:pos + length]):
+            yield record
+        pos += length
@@ -5,17 +5,28 @@ package core;
 /** A useful class for storing timestamp information.
  *  Designed to be converted from the timestamp format
  *  used by GW2 APIs, or 2015-12-25 11:11:11.
- *  
+ *
  *  When using the interval functionality, this class supports
  *  negative time intervals by placing ~ before a value.
- *  This is not supported for absolute times. */
+ *  This is not supported for absolute times.
+ *
+ *  Internally a DateTime is the number of seconds since 1970-01-01 00:00:00,
+ *  so comparisons and arithmetic never touch strings. The calendar month the
+ *  timestamp was written in is kept as well, since an interval like
+ *  0000-01-00 00:00:00 means "one month", which is not a fixed number of seconds. */
 public class DateTime implements Comparable<DateTime>{
 	
 	//a tiny amount of time
 	public static final DateTime DELTA_TIME = new DateTime("0000-00-00 00:00:01");
 	
-	public int day, month, year;
-	public int hour, minute, second;
+	public static final long SECONDS_PER_DAY = 86400;
+	
+	private long seconds;		// Seconds since 1970-01-01 00:00:00
+	private int months;			// Calendar months since year 0, as year * 12 + month
+	
+	// Offsets between time zones.
+	private static final DateTime EST_OFFSET = new DateTime("00-00-00 ~5:00:00");
+	private static final DateTime UTC_OFFSET = new DateTime("00-00-00 05:00:00");
 	
 	//Quick references for the time at which Java's system clock begins
 	public static final DateTime ORIGIN_UTC = new DateTime("1970-01-01 00:00:00");
@@ -23,23 +34,40 @@ public class DateTime implements Comparable<DateTime>{
 	
 	/** Create a DateTime object from the relevant information */
 	public DateTime(int year, int month, int day, int hour, int minute, int second) {
-		this.year = year; this.month = month; this.day = day;
-		this.hour = hour; this.minute = minute; this.second = second;
+		this.months = year * 12 + month;
+		this.seconds = monthStart(months) + (day - 1) * SECONDS_PER_DAY +
+				hour * 3600L + minute * 60L + second;
+	}
+	
+	/** Create a DateTime from seconds since 1970 and the calendar month count. */
+	private DateTime(long seconds, int months) {
+		this.seconds = seconds;
+		this.months = months;
 	}
 	
 	/** Create a DateTime object from a GW2Spidy timestamp String.
 	 *  Takes string of the form 2015-12-25 11:11:11 */
 	public DateTime (String timestamp) {
 		try{
-			String[] pieces = timestamp.split(" ");
-			String[] datePieces = pieces[0].split("-");
-			String[] timePieces = pieces[1].split(":");
-			this.year = parseInt(datePieces[0]);
-			this.month = parseInt(datePieces[1]);
-			this.day = parseInt(datePieces[2]);
-			this.hour = parseInt(timePieces[0]);
-			this.minute = parseInt(timePieces[1]);
-			this.second = parseInt(timePieces[2]);
+			// Read the six fields in place, rather than splitting the string.
+			int[] fields = new int[6];
+			int pos = 0;
+			for (int f = 0; f < fields.length; f++) {
+				boolean negative = timestamp.charAt(pos) == '~';
+				if (negative) pos++;
+				int start = pos, val = 0;
+				while (pos < timestamp.length() && Character.isDigit(timestamp.charAt(pos))) {
+					val = val * 10 + (timestamp.charAt(pos++) - '0');
+				}
+				if (pos == start) {
+					throw new NumberFormatException("Expected a number at position " + start);
+				}
+				fields[f] = negative ? -val : val;
+				pos++;	// Skip the separator
+			}
+			this.months = fields[0] * 12 + fields[1];
+			this.seconds = monthStart(months) + (fields[2] - 1) * SECONDS_PER_DAY +
+					fields[3] * 3600L + fields[4] * 60L + fields[5];
 		}
 		catch (Exception e) {
 			System.out.println("Error initializing DateTime from timestamp : " + timestamp);
@@ -49,12 +77,12 @@ public class DateTime implements Comparable<DateTime>{
 	
 	/** Copy constructor. */
 	public DateTime(DateTime other) {
-		this(other.generateTimestamp());
+		this(other.seconds, other.months);
 	}
 	
 	/** Parses an integer, assuming that if the first character is ~
 	 *  we will make the integer negative.
-	 *  
+	 *
 	 *  Can throw NumberFormatException in the case of failure.
 	 */
 	public int parseInt(String input) {
@@ -65,15 +93,21 @@ public class DateTime implements Comparable<DateTime>{
 	}
 	
 	/** Formats an integer to include a ~ before negatives. */
-	private String format(int val) {
+	private String format(long val) {
 		if (val < 0) return "~" + Math.abs(val);
 		else return "" + val;
 	}
 	
 	/** Generate a string timestamp from this DateTime object. */
 	public String generateTimestamp() {
-		return format(year) + "-" + format(month) + "-" + format(day) + " " + 
-				format(hour) + ":" + format(minute) + ":" + format(second);
+		long year = Math.floorDiv(months - 1, 12);
+		long month = Math.floorMod(months - 1, 12) + 1;
+		long offset = seconds - monthStart(months);
+		long day = Math.floorDiv(offset, SECONDS_PER_DAY) + 1;
+		long secondOfDay = Math.floorMod(offset, SECONDS_PER_DAY);
+		return format(year) + "-" + format(month) + "-" + format(day) + " " +
+				format(secondOfDay / 3600) + ":" + format((secondOfDay / 60) % 60) + ":" +
+				format(secondOfDay % 60);
 	}
 	
 	@Override
@@ -89,114 +123,103 @@ public class DateTime implements Comparable<DateTime>{
 	/** Compare, such that older date/times are less than more recent ones. */
 	@Override
 	public int compareTo(DateTime that) {
-		int cmpDate = compareDate(that);
-		if (cmpDate != 0) return cmpDate;
-		return compareTime(that);
+		return Long.compare(this.seconds, that.seconds);
 	}
 	
 	
 	/** Compares two objects solely on the basis of time of day (ignoring date) */
 	public int compareTime(DateTime that) {
-		if (this.hour < that.hour) return -1;
-		if (this.hour > that.hour) return 1;
-		if (this.minute < that.minute) return -1;
-		if (this.minute > that.minute) return 1;
-		if (this.second < that.second) return -1;
-		if (this.second > that.second) return 1;
-		return 0;
+		return Long.compare(Math.floorMod(this.seconds, SECONDS_PER_DAY),
+				Math.floorMod(that.seconds, SECONDS_PER_DAY));
 	}
 	
 	/** Compares two objects solely on the basis of date (ignoring time of day) */
 	public int compareDate(DateTime that) {
-		if (this.year < that.year) return -1;
-		if (this.year > that.year) return  1;
-		if (this.month < that.month) return -1;
-		if (this.month > that.month) return 1;
-		if (this.day < that.day) return -1;
-		if (this.day > that.day) return 1;
-		return 0;
+		return Long.compare(Math.floorDiv(this.seconds, SECONDS_PER_DAY),
+				Math.floorDiv(that.seconds, SECONDS_PER_DAY));
 	}
 	
 	/** Compare whether two objects are equal. */
 	public boolean equals(DateTime that) {
-		return this.toString().equals(that.toString());
+		return this.seconds == that.seconds;
 	}
 	
-	/** Computes the standard modulus. */
-	private static int mod(int a, int b) {
-		int res = (a % b);
-		if (res < 0) res = b + res;
-		return res;
+	/** Number of seconds from 1970-01-01 00:00:00 to the first day of the
+	 *  month given as year * 12 + month. Months outside 1-12 roll over into
+	 *  neighbouring years. */
+	private static long monthStart(long months) {
+		// Count days from the start of the Gregorian cycle containing our year (March based).
+		long year = Math.floorDiv(months - 1, 12);
+		long month = Math.floorMod(months - 1, 12) + 1;
+		long y = (month <= 2) ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return (era * 146097 + dayOfEra - 719468) * SECONDS_PER_DAY;
 	}
-	/** Computes a div useful for datetimes. */
-	private static int div(int a, int b) {
-		int res = (a / b);
-		if (a < 0) res -= 1;
-		return res;
+	
+	/** When used as an interval, the part of this DateTime that is a fixed
+	 *  number of seconds (days, hours, minutes and seconds). */
+	private long span() {
+		return seconds - monthStart(months) + SECONDS_PER_DAY;
 	}
 	
 	/** Inverts this DateTime, returning a new DateTime
 	 * that is identical but with all values their negatives. */
 	public DateTime invert() {
-		DateTime newTime = new DateTime(this);
-		newTime.year *= -1;
-		newTime.hour *= -1;
-		newTime.day *= -1;
-		newTime.hour *= -1;
-		newTime.minute *= -1;
-		newTime.second *= -1;
-		return newTime;
+		return new DateTime(monthStart(-months) - span() - SECONDS_PER_DAY, -months);
 	}
 	
 	/** Adds time delta to our current time. Will add time units starting from left.
-	 *  This means add seconds first, then minutes, etc, etc. 
+	 *  This means add seconds first, then minutes, etc, etc.
 	 */
 	public DateTime add(DateTime delta) {
-		int newSecond = mod(this.second + delta.second, 60);
-		int minuteCarry = div(this.second + delta.second, 60);
-		int newMinute = mod(this.minute + delta.minute + minuteCarry, 60);
-		int hourCarry = div(this.minute + delta.minute + minuteCarry, 60);
-		int newHour = mod(this.hour + delta.hour + hourCarry, 24);
-		int dayCarry = div(this.hour + delta.hour + hourCarry, 24);
-		int newDay = this.day + delta.day + dayCarry;
-		//Subtract the days of the month until we get under the desired amount of days for our month
-		int newMonth = this.month;
-		int yearCarry = 0;
-		while (newDay > numDays(newMonth, this.year + yearCarry)) {
-			newDay -= numDays(newMonth, this.year + yearCarry);
-			yearCarry += (newMonth / 12);
-			newMonth = newMonth % 12 + 1;
-		}
-		//Add the days of the month until we get to at least the first of the month
-		while (newDay < 1) {
-			newMonth = mod(newMonth - 2, 12) + 1;
-			newDay += numDays(newMonth, this.year + yearCarry);
-			yearCarry -= (newMonth / 12);
+		DateTime result = fromEpochSeconds(this.seconds + delta.span());
+		if (delta.months == 0) {
+			return result;
 		}
-		newMonth += delta.month;
-		yearCarry += div(newMonth - 1, 12);
-		newMonth = mod(newMonth - 1, 12) + 1;
-		int newYear = this.year + delta.year + yearCarry;
-		return new DateTime(newYear + "-" + newMonth + "-" + newDay + " " + 
-				newHour + ":" + newMinute + ":" + newSecond);
+		// Move to the same day and time, delta's months later.
+		long offset = result.seconds - monthStart(result.months);
+		int newMonths = result.months + delta.months;
+		return fromEpochSeconds(monthStart(newMonths) + offset);
 	}
 	
 	/** Convert a time from UTC to Eastern. (-5 hours) */
 	public DateTime toEastern() {
-		return this.add(new DateTime("00-00-00 ~5:00:00"));
+		return this.add(EST_OFFSET);
 	}
 	
 	/** Convert a time from Eastern to UTC (+5 hours) */
 	public DateTime toUTC() {
-		return this.add(new DateTime("00-00-00 05:00:00"));
+		return this.add(UTC_OFFSET);
 	}
 	
-	/** Reference returning the number of days in a month. 
+	/** Converts this DateTime to the number of seconds since 1970-01-01 00:00:00.
+	 *  Useful for storing times compactly, such as in TPHistory. */
+	public long toEpochSeconds() {
+		return seconds;
+	}
+	
+	/** Creates a DateTime from a number of seconds since 1970-01-01 00:00:00. */
+	public static DateTime fromEpochSeconds(long seconds) {
+		long days = Math.floorDiv(seconds, SECONDS_PER_DAY) + 719468;
+		long era = Math.floorDiv(days, 146097);
+		long dayOfEra = days - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+		return new DateTime(seconds, year * 12 + month);
+	}
+	
+	/** Reference returning the number of days in a month.
 	 	Attempts to take into account leap years.*/
 	public static int numDays(int month, int year) {
 		//Leap year considerations
 		if (month == 2) {
-			if (year % 4 == 0 && (year % 100 != 0 || year % 1000 == 0)) return 29;
+			if (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) return 29;
 			else return 28;
 		}
 		//Generic months
@@ -208,40 +231,29 @@ public class DateTime implements Comparable<DateTime>{
 	 * Accounts for leap years.
 	 */
 	public static int yearDays(int year) {
-		if (year % 4 == 0 && (year % 100 != 0 || year % 1000 == 0)) return 366;
+		if (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) return 366;
 		return 365;
 	}
 	
 	/** Gets the current timestamp, in EST. */
 	public static DateTime current() {
-		long millis = System.currentTimeMillis();
-		long seconds = millis / 1000;
-		int hours = (int)(seconds / 3600);
-		int leftOverSeconds = (int)(seconds % 3600);
-		int leftOverMinutes = leftOverSeconds / 60;
-		leftOverSeconds = leftOverSeconds % 60;
-		String toAdd = "00-00-00 " + hours + ":" + leftOverMinutes + ":" + leftOverSeconds;
-		return ORIGIN_EST.add(new DateTime(toAdd));
+		long seconds = System.currentTimeMillis() / 1000;
+		return fromEpochSeconds(ORIGIN_EST.seconds + seconds);
 	}
 	
 	/** Computes the number of days in between two dates. Assumes b is later than a. */
 	public static int daysBetween(DateTime a, DateTime b) {
-		a = new DateTime(a);
 		if (a.compareTo(b) > 0) {
 			throw new IllegalArgumentException("daysBetween : b must be later than a");
 		}
-		int days = 0;
-		DateTime delta = new DateTime("00-00-01 00:00:00");
-		while (a.compareDate(b) < 0) {
-			days++;
-			a = a.add(delta);
-		}
-		return days;
+		// Count the number of times we cross midnight going from a to b.
+		return (int) (Math.floorDiv(b.seconds, SECONDS_PER_DAY) -
+				Math.floorDiv(a.seconds, SECONDS_PER_DAY));
 	}
 	
 	/** Computes the DateTime precisely horizon days before now.
 	 *  Minimum result is origin DateTime.
-	 *  
+	 *
 	 *  If horizon is 0, return current time.
 	 *  If horizon is negative, throws IllegalArgumentException
 	 */
@@ -252,8 +264,7 @@ public class DateTime implements Comparable<DateTime>{
 		if (horizon == 0) {
 			return current();
 		}
-		DateTime delta = new DateTime("0000-00-~" + horizon + " 00:00:00");
-		DateTime result = current().add(delta);
+		DateTime result = fromEpochSeconds(current().seconds - horizon * SECONDS_PER_DAY);
 		return max(result, ORIGIN_UTC);
 	}
 	
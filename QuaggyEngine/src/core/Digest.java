@@ -0,0 +1,201 @@
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import core.FeatureVector.Feature;
+import core.FeatureVector.Mode;
+
+/** A batch of feature values to send to the edge servers, in a compact binary form.
+ *  Values are grouped into records, one per (item, history length, buy mode, sell mode),
+ *  each carrying a bitmask of which features it holds followed by their raw doubles.
+ *  This replaces sending every value as an "id:history:buy:sell:feature" JSON key.
+ *
+ *  Wire format (version 1), all numbers big-endian:
+ *    "QDG", version (byte), flags (byte, bit 0 set if the rest is zlib compressed)
+ *    number of features (byte), then each Feature name (UTF)
+ *    number of modes (byte), then each Mode name (UTF)
+ *    number of history lengths (byte), then each length in days (int)
+ *    number of records (int), then each record:
+ *      item id (int), history index, buy mode index, sell mode index (bytes),
+ *      feature mask (long, bit i set if feature i is present),
+ *      one double for each feature present, in feature order
+ *
+ *  The names are sent so the edge never has to know our enum ordering.
+ *  QuaggyEdge/digest.py is the matching decoder.
+ */
+public class Digest {
+	
+	/** Version of the wire format written by encode(). */
+	public static final int VERSION = 1;
+	/** Content type to send encoded digests with. */
+	public static final String CONTENT_TYPE = "application/x-quaggy-digest";
+	
+	private static final byte[] MAGIC = {'Q', 'D', 'G'};
+	private static final int FLAG_COMPRESSED = 1;
+	
+	private int[] history;				// Length of each history window, in days
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private DataOutputStream records = new DataOutputStream(bytes);
+	private int numRecords = 0;
+	private int numValues = 0;
+	
+	/** Create an empty digest for features over the given history lengths (in days). */
+	public Digest(int[] history) {
+		if (Feature.values().length > Long.SIZE) {
+			throw new IllegalArgumentException("Digest : too many features for a mask");
+		}
+		this.history = history;
+	}
+	
+	/** Add the features of fv whose bits are set in mask, as the values for
+	 *  item id at the given history window and modes. Does nothing if mask is 0. */
+	public void add(int id, int window, Mode buy, Mode sell, FeatureVector fv, long mask) {
+		if (mask == 0) return;
+		try {
+			records.writeInt(id);
+			records.writeByte(window);
+			records.writeByte(buy.ordinal());
+			records.writeByte(sell.ordinal());
+			records.writeLong(mask);
+			for (Feature f : Feature.values()) {
+				if ((mask & (1L << f.ordinal())) != 0) {
+					records.writeDouble(fv.get(f));
+					numValues++;
+				}
+			}
+			numRecords++;
+		}
+		catch (IOException e) {
+			// Writing to memory, so this can't happen.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/** Add every record of other to this digest. Both must be over the same history lengths.
+	 *  Throws IllegalArgumentException if they are not. */
+	public void addAll(Digest other) {
+		if (!Arrays.equals(history, other.history)) {
+			throw new IllegalArgumentException("Digest : can't merge digests over different histories");
+		}
+		try {
+			other.bytes.writeTo(bytes);
+		}
+		catch (IOException e) {
+			// Writing to memory, so this can't happen.
+			throw new IllegalStateException(e);
+		}
+		numRecords += other.numRecords;
+		numValues += other.numValues;
+	}
+	
+	/** Number of feature values in this digest. */
+	public int size() {
+		return numValues;
+	}
+	
+	/** True iff there are no values in this digest. */
+	public boolean isEmpty() {
+		return numValues == 0;
+	}
+	
+	/** Remove every value from this digest. */
+	public void clear() {
+		bytes.reset();
+		numRecords = 0;
+		numValues = 0;
+	}
+	
+	/** Encode this digest in the wire format, compressing it if compress is set. */
+	public byte[] encode(boolean compress) {
+		try {
+			ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.size() + 512);
+			result.write(MAGIC);
+			result.write(VERSION);
+			result.write(compress ? FLAG_COMPRESSED : 0);
+			DeflaterOutputStream deflater = compress ? new DeflaterOutputStream(result) : null;
+			DataOutputStream out = new DataOutputStream(compress ? deflater : result);
+			out.writeByte(Feature.values().length);
+			for (Feature f : Feature.values()) {
+				out.writeUTF(f.name());
+			}
+			out.writeByte(Mode.values().length);
+			for (Mode m : Mode.values()) {
+				out.writeUTF(m.toString());
+			}
+			out.writeByte(history.length);
+			for (int days : history) {
+				out.writeInt(days);
+			}
+			out.writeInt(numRecords);
+			bytes.writeTo(out);
+			out.flush();
+			if (compress) {
+				deflater.finish();
+			}
+			return result.toByteArray();
+		}
+		catch (IOException e) {
+			// Writing to memory, so this can't happen.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/** Decode a digest in the wire format into a map from
+	 *  id:history_days:buy:sell:feature -> val, as the edge servers store it.
+	 *  Throws IllegalArgumentException if data is not a digest we can read.
+	 */
+	public static Map<String, Double> decode(byte[] data) {
+		try {
+			if (data.length < MAGIC.length + 2 || data[0] != MAGIC[0] || data[1] != MAGIC[1] ||
+					data[2] != MAGIC[2]) {
+				throw new IllegalArgumentException("Digest : not a digest");
+			}
+			if (data[3] != VERSION) {
+				throw new IllegalArgumentException("Digest : unsupported version " + data[3]);
+			}
+			InputStream body = new ByteArrayInputStream(data, 5, data.length - 5);
+			if ((data[4] & FLAG_COMPRESSED) != 0) {
+				body = new InflaterInputStream(body);
+			}
+			DataInputStream in = new DataInputStream(body);
+			String[] features = new String[in.readUnsignedByte()];
+			for (int i = 0; i < features.length; i++) {
+				features[i] = in.readUTF();
+			}
+			String[] modes = new String[in.readUnsignedByte()];
+			for (int i = 0; i < modes.length; i++) {
+				modes[i] = in.readUTF();
+			}
+			int[] days = new int[in.readUnsignedByte()];
+			for (int i = 0; i < days.length; i++) {
+				days[i] = in.readInt();
+			}
+			Map<String, Double> result = new HashMap<String, Double>();
+			int numRecords = in.readInt();
+			for (int r = 0; r < numRecords; r++) {
+				String prefix = in.readInt() + ":" + days[in.readUnsignedByte()] + ":" +
+						modes[in.readUnsignedByte()] + ":" + modes[in.readUnsignedByte()] + ":";
+				long mask = in.readLong();
+				for (int f = 0; f < features.length; f++) {
+					if ((mask & (1L << f)) != 0) {
+						result.put(prefix + features[f], in.readDouble());
+					}
+				}
+			}
+			return result;
+		}
+		catch (IOException | ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Digest : malformed digest, " + e);
+		}
+	}
+}
@@ -0,0 +1,574 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+import core.FeatureVector.Feature;
+import core.FeatureVector.Mode;
+
+/** The latest features of every item, laid out by column so filters can be
+ *  answered without touching any FeatureVector.
+ *
+ *  There is one slice for every combination of history window, buy mode and sell
+ *  mode, and each slice holds one array per feature with a row for every item.
+ *  A filter only reads the columns it bounds or sorts by, one column at a time,
+ *  narrowing a list of candidate rows as it goes.
+ *
+ *  Columns that filters have bounded also keep their rows in sorted order (see
+ *  SortedColumn), so the number of rows passing each bound can be counted by binary
+ *  search. A filter starts from the rows passing its most selective bound, read
+ *  straight out of that order, and checks the rest of its bounds against only those,
+ *  so it costs about as much as the rows it could return rather than the whole catalog.
+ *
+ *  Items may be updated while filters are running; a filter sees each item either
+ *  entirely before or entirely after an update.
+ * @author Ryan Pindulic
+ */
+public class FeatureIndex {
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	/** How many rows of a scan reading a row out of order costs, when choosing between them. */
+	private static final double RANDOM_ACCESS_COST = 2;
+	private static final int MODES = Mode.values().length;
+	private static final int FEATURES = Feature.values().length;
+	
+	private int[] history;					// Days of history in each window, ascending
+	private double[][][] columns;			// Indexed by [slice][feature][row]
+	private int[] ids;						// Item ID in each row
+	private int size = 0;					// Number of rows in use
+	private Map<Integer, Integer> rows = new HashMap<Integer, Integer>();	// Row of each item ID
+	private SortedColumn[][] sorted;		// Indexed by [slice][feature], null until a filter needs it
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/** The items that passed a filter. */
+	public static class Result {
+		private int total;
+		private List<double[]> items;
+		private String next;
+		
+		private Result(int total, List<double[]> items, String next) {
+			this.total = total;
+			this.items = items;
+			this.next = next;
+		}
+		
+		/** Number of items that passed the filter, including any on other pages,
+		 *  or -1 if we stopped looking once we had enough to fill the page. */
+		public int total() {
+			return total;
+		}
+		
+		/** Page token (see Filter) for the page after this one, or null if this is the last. */
+		public String next() {
+			return next;
+		}
+		
+		/** The features of the items that passed, in order, up to the filter's limit.
+		 *  Each is indexed by Feature ordinal. */
+		public List<double[]> items() {
+			return items;
+		}
+	}
+	
+	/** Create an empty index for the given history windows, in days, ascending
+	 *  (the same windows as the ItemFeatures it will be given). */
+	public FeatureIndex(int[] history) {
+		this.history = history.clone();
+		this.columns = new double[history.length * MODES * MODES][FEATURES][INITIAL_CAPACITY];
+		this.ids = new int[INITIAL_CAPACITY];
+		this.sorted = new SortedColumn[columns.length][FEATURES];
+	}
+	
+	/** Slice holding the given combination. */
+	private static int slice(int window, Mode buy, Mode sell) {
+		return (window * MODES + buy.ordinal()) * MODES + sell.ordinal();
+	}
+	
+	/** The window to answer a filter over the given days of history with: the longest
+	 *  that doesn't go back further than that, or the shortest if they all do. */
+	public int window(int days) {
+		int window = 0;
+		while (window + 1 < history.length && history[window + 1] <= days) {
+			window++;
+		}
+		return window;
+	}
+	
+	/** Number of items in the index. */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/** Add an item's features, replacing any we had for it. */
+	public void update(ItemFeatures item) {
+		lock.writeLock().lock();
+		try {
+			Integer row = rows.get(item.getId());
+			if (row == null) {
+				if (size == ids.length) {
+					grow();
+				}
+				row = size++;
+				rows.put(item.getId(), row);
+				ids[row] = item.getId();
+				markChanged(row);
+			}
+			for (int w = 0; w < history.length; w++) {
+				for (Mode buy : Mode.values()) {
+					for (Mode sell : Mode.values()) {
+						FeatureVector fv = item.get(w, buy, sell);
+						int s = slice(w, buy, sell);
+						double[][] slice = columns[s];
+						for (Feature f : Feature.values()) {
+							double val = fv.get(f);
+							double[] column = slice[f.ordinal()];
+							if (sorted[s][f.ordinal()] != null && Double.compare(column[row], val) != 0) {
+								sorted[s][f.ordinal()].changed.set(row);
+							}
+							column[row] = val;
+						}
+					}
+				}
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/** Remove every item whose ID isn't in keep. */
+	public void retainAll(Set<Integer> keep) {
+		lock.writeLock().lock();
+		try {
+			for (int row = size - 1; row >= 0; row--) {
+				if (!keep.contains(ids[row])) {
+					removeRow(row);
+				}
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/** Remove a row by moving the last row into its place. Caller holds the write lock. */
+	private void removeRow(int row) {
+		int last = --size;
+		rows.remove(ids[row]);
+		markChanged(row);
+		markChanged(last);
+		if (row != last) {
+			ids[row] = ids[last];
+			rows.put(ids[row], row);
+			for (double[][] slice : columns) {
+				for (double[] column : slice) {
+					column[row] = column[last];
+				}
+			}
+		}
+	}
+	
+	/** Mark a row as changed in every sorted column. Caller holds the write lock. */
+	private void markChanged(int row) {
+		for (SortedColumn[] slice : sorted) {
+			for (SortedColumn column : slice) {
+				if (column != null) {
+					column.changed.set(row);
+				}
+			}
+		}
+	}
+	
+	/** Double the number of rows we have room for. Caller holds the write lock. */
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		for (double[][] slice : columns) {
+			for (int f = 0; f < FEATURES; f++) {
+				slice[f] = Arrays.copyOf(slice[f], capacity);
+			}
+		}
+	}
+	
+	/** Find the items passing a filter, in its order (see Filter.compare()),
+	 *  starting after its page token if it has one. */
+	public Result query(Filter filter) {
+		lock.readLock().lock();
+		try {
+			int s = slice(window(filter.historyDays()), filter.buyMode(), filter.sellMode());
+			double[][] slice = columns[s];
+			// Apply the bounds that reject the most first, so later ones have fewer rows to check.
+			double[] passRates = passRates(filter, s);
+			filter = filter.ordered(passRates);
+			Arrays.sort(passRates);
+			Feature[] bounded = filter.bounded();
+			// For a broad filter with a limit, it's quicker to go through the rows in sorted
+			// order until we have enough than to find every row passing and keep the best.
+			int candidates = (bounded.length == 0) ? size : (int) Math.round(passRates[0] * size);
+			if (filter.limit() > 0 && walkCost(passRates, filter.limit()) < candidates) {
+				return walk(filter, s);
+			}
+			// Candidate rows, narrowed down by one column at a time.
+			// Without bounds every row is a candidate, otherwise only those passing the first.
+			int[] selected;
+			int count = 0;
+			double[] types = slice[Feature.ItemType.ordinal()];
+			int typeMask = filter.typeMask();
+			if (bounded.length == 0) {
+				selected = new int[size];
+				for (int row = 0; row < size; row++) {
+					int type = (int) types[row];
+					if (type >= 0 && type < Integer.SIZE && (typeMask & (1 << type)) != 0) {
+						selected[count++] = row;
+					}
+				}
+			}
+			else {
+				SortedColumn first = sortedColumn(s, bounded[0]);
+				selected = first.range(filter.min(0), filter.max(0));
+				for (int row : selected) {
+					int type = (int) types[row];
+					if (type >= 0 && type < Integer.SIZE && (typeMask & (1 << type)) != 0) {
+						selected[count++] = row;
+					}
+				}
+			}
+			for (int i = (bounded.length == 0) ? 0 : 1; i < bounded.length; i++) {
+				double[] column = slice[bounded[i].ordinal()];
+				double min = filter.min(i), max = filter.max(i);
+				int kept = 0;
+				for (int j = 0; j < count; j++) {
+					double val = column[selected[j]];
+					// Always store, and only move on if it passed, so there is no branch.
+					// Written this way round so NaN passes, as it does on the edge.
+					selected[kept] = selected[j];
+					kept += (val < min | val > max) ? 0 : 1;
+				}
+				count = kept;
+			}
+			// Everything passing counts, but only those after the page token can be returned.
+			double[] sortColumn = slice[filter.sortFeature().ordinal()];
+			int total = count;
+			if (filter.hasAfter()) {
+				int kept = 0;
+				for (int j = 0; j < count; j++) {
+					if (filter.isAfter(sortColumn[selected[j]], ids[selected[j]])) {
+						selected[kept++] = selected[j];
+					}
+				}
+				count = kept;
+			}
+			int k = (filter.limit() == 0) ? count : Math.min(count, filter.limit());
+			int[] top = top(filter, sortColumn, selected, count, k);
+			String next = (k < count) ? Filter.token(sortColumn[top[k - 1]], ids[top[k - 1]]) : null;
+			return result(slice, top, k, total, next);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/** Go through the rows of slice s in the filter's order, starting after its page token,
+	 *  until we have found its limit of rows passing it. We don't see every row passing,
+	 *  so the result's total is unknown. Caller holds the read lock. */
+	private Result walk(final Filter filter, int s) {
+		final double[][] slice = columns[s];
+		final Feature[] bounded = filter.bounded();
+		final int typeMask = filter.typeMask();
+		// One more than the limit, to tell whether there is another page.
+		final int[] found = new int[filter.limit() + 1];
+		final int[] count = {0};
+		sortedColumn(s, filter.sortFeature()).walk(filter, (int row) -> {
+			int type = (int) slice[Feature.ItemType.ordinal()][row];
+			if (type < 0 || type >= Integer.SIZE || (typeMask & (1 << type)) == 0) {
+				return true;
+			}
+			for (int i = 0; i < bounded.length; i++) {
+				double val = slice[bounded[i].ordinal()][row];
+				if (val < filter.min(i) | val > filter.max(i)) {
+					return true;
+				}
+			}
+			found[count[0]++] = row;
+			return count[0] < found.length;
+		});
+		int k = Math.min(count[0], filter.limit());
+		double[] sortColumn = slice[filter.sortFeature().ordinal()];
+		String next = (count[0] > k) ? Filter.token(sortColumn[found[k - 1]], ids[found[k - 1]]) : null;
+		return result(slice, found, k, -1, next);
+	}
+	
+	/** Estimated cost, in rows of a scan, of going through rows in sorted order until
+	 *  limit + 1 of them pass bounds with the given pass rates, assuming the bounds are
+	 *  independent. Rows are read out of order, so each costs RANDOM_ACCESS_COST. */
+	private static double walkCost(double[] passRates, int limit) {
+		double passRate = 1;
+		for (double rate : passRates) {
+			passRate *= rate;
+		}
+		return (passRate == 0) ? Double.POSITIVE_INFINITY : RANDOM_ACCESS_COST * (limit + 1) / passRate;
+	}
+	
+	/** The features of the first k rows, as a Result. Caller holds the read lock. */
+	private static Result result(double[][] slice, int[] rows, int k, int total, String next) {
+		List<double[]> items = new ArrayList<double[]>(k);
+		for (int j = 0; j < k; j++) {
+			double[] values = new double[FEATURES];
+			for (int f = 0; f < FEATURES; f++) {
+				values[f] = slice[f][rows[j]];
+			}
+			items.add(values);
+		}
+		return new Result(total, items, next);
+	}
+	
+	/** The first k of the first count rows in the filter's order, sorted. Only the best k
+	 *  seen so far are kept, in a heap, so this is O(count log k). Caller holds the read lock. */
+	private int[] top(Filter filter, double[] column, int[] rows, int count, int k) {
+		int[] heap = new int[k];
+		if (k == 0) {
+			return heap;
+		}
+		// The root of the heap is the last in order of the best k so far.
+		int n = 0;
+		for (int j = 0; j < count; j++) {
+			int row = rows[j];
+			if (n < k) {
+				int i = n++;
+				heap[i] = row;
+				while (i > 0 && compare(filter, column, heap[i], heap[(i - 1) / 2]) > 0) {
+					swap(heap, i, (i - 1) / 2);
+					i = (i - 1) / 2;
+				}
+			}
+			else if (compare(filter, column, row, heap[0]) < 0) {
+				heap[0] = row;
+				siftDown(filter, column, heap, k);
+			}
+		}
+		// Move the last to the end until they're all in order.
+		for (int end = k - 1; end > 0; end--) {
+			swap(heap, 0, end);
+			siftDown(filter, column, heap, end);
+		}
+		return heap;
+	}
+	
+	/** Move the root of a heap of n rows down until neither child comes after it. */
+	private void siftDown(Filter filter, double[] column, int[] heap, int n) {
+		int i = 0;
+		while (2 * i + 1 < n) {
+			int child = 2 * i + 1;
+			if (child + 1 < n && compare(filter, column, heap[child + 1], heap[child]) > 0) {
+				child++;
+			}
+			if (compare(filter, column, heap[child], heap[i]) <= 0) {
+				return;
+			}
+			swap(heap, i, child);
+			i = child;
+		}
+	}
+	
+	/** Order of rows a and b under the filter (see Filter.compare()). */
+	private int compare(Filter filter, double[] column, int a, int b) {
+		return filter.compare(column[a], ids[a], column[b], ids[b]);
+	}
+	
+	private static void swap(int[] heap, int i, int j) {
+		int tmp = heap[i];
+		heap[i] = heap[j];
+		heap[j] = tmp;
+	}
+	
+	/** Fraction of rows of slice s passing each of the filter's bounds.
+	 *  Caller holds the read lock. */
+	private double[] passRates(Filter filter, int s) {
+		Feature[] bounded = filter.bounded();
+		double[] passRates = new double[bounded.length];
+		for (int i = 0; i < bounded.length; i++) {
+			passRates[i] = sortedColumn(s, bounded[i]).passRate(filter.min(i), filter.max(i));
+		}
+		return passRates;
+	}
+	
+	/** The sorted column for feature f of slice s, brought up to date.
+	 *  Caller holds the read lock. */
+	private SortedColumn sortedColumn(int s, Feature f) {
+		SortedColumn column;
+		synchronized (sorted) {
+			column = sorted[s][f.ordinal()];
+			if (column == null) {
+				column = new SortedColumn(s, f.ordinal());
+				sorted[s][f.ordinal()] = column;
+			}
+		}
+		column.refresh();
+		return column;
+	}
+	
+	/** The rows of one column of one slice, sorted by value (NaN last) and then by item ID.
+	 *  Rows that change are only marked, and merged back into place the next time a
+	 *  filter uses the column, so a cycle's worth of updates costs one pass over it.
+	 */
+	private class SortedColumn {
+		private int s, f;						// Slice and feature of the column
+		private int[] order = new int[0];		// Rows in sorted order, as of the last refresh
+		private BitSet changed = new BitSet();	// Rows changed since the last refresh
+		
+		private SortedColumn(int s, int f) {
+			this.s = s;
+			this.f = f;
+			changed.set(0, size);
+		}
+		
+		/** Merge the changed rows back into place. Caller holds the read lock, so
+		 *  nothing can change meanwhile, but other filters may be refreshing too. */
+		private synchronized void refresh() {
+			if (changed.isEmpty()) {
+				return;
+			}
+			final double[] column = columns[s][f];
+			// Rows whose place is unchanged, which are still in order.
+			int[] kept = new int[order.length];
+			int numKept = 0;
+			for (int row : order) {
+				if (row < size && !changed.get(row)) {
+					kept[numKept++] = row;
+				}
+			}
+			// Changed rows, sorted by themselves.
+			List<Integer> moved = new ArrayList<Integer>(changed.cardinality());
+			for (int row = changed.nextSetBit(0); row >= 0 && row < size; row = changed.nextSetBit(row + 1)) {
+				moved.add(row);
+			}
+			Collections.sort(moved, (Integer a, Integer b) -> compare(column, a, b));
+			// Merge the two.
+			int[] merged = new int[numKept + moved.size()];
+			int i = 0, j = 0;
+			for (int k = 0; k < merged.length; k++) {
+				if (j == moved.size() || (i < numKept && compare(column, kept[i], moved.get(j)) < 0)) {
+					merged[k] = kept[i++];
+				}
+				else {
+					merged[k] = moved.get(j++);
+				}
+			}
+			order = merged;
+			changed.clear();
+		}
+		
+		/** Order of rows a and b, by value (NaN last) and then by item ID. */
+		private int compare(double[] column, int a, int b) {
+			int result = Double.compare(column[a], column[b]);
+			return (result != 0) ? result : Integer.compare(ids[a], ids[b]);
+		}
+		
+		/** Fraction of rows between min and max inclusive, or NaN. */
+		private double passRate(double min, double max) {
+			int nan = firstNaN();
+			int from = lowerBound(min, nan), to = upperBound(max, nan);
+			return (order.length == 0) ? 1 : (double) (Math.max(0, to - from) + order.length - nan) / order.length;
+		}
+		
+		/** The rows between min and max inclusive, or NaN, in sorted order. */
+		private int[] range(double min, double max) {
+			int nan = firstNaN();
+			int from = lowerBound(min, nan), to = Math.max(from, upperBound(max, nan));
+			int[] result = new int[to - from + order.length - nan];
+			System.arraycopy(order, from, result, 0, to - from);
+			System.arraycopy(order, nan, result, to - from, order.length - nan);
+			return result;
+		}
+		
+		/** Visit rows in the filter's order (see Filter.compare()), starting after its page
+		 *  token, until visit returns false. Ascending, that's our own order. Descending,
+		 *  it's runs of equal values from the largest down, each run in ascending ID,
+		 *  and then the NaNs. */
+		private void walk(final Filter filter, IntPredicate visit) {
+			final double[] column = columns[s][f];
+			if (filter.sortAsc()) {
+				int from = search(0, order.length, (int i) -> filter.isAfter(column[order[i]], ids[order[i]]));
+				for (int i = from; i < order.length; i++) {
+					if (!visit.test(order[i])) return;
+				}
+				return;
+			}
+			int nan = firstNaN();
+			int end = nan;				// End of the next run of equal values to visit
+			int nanFrom = nan;			// First NaN to visit
+			if (filter.hasAfter() && Double.isNaN(filter.afterValue())) {
+				end = 0;
+				nanFrom = search(nan, order.length, (int i) -> ids[order[i]] > filter.afterId());
+			}
+			else if (filter.hasAfter()) {
+				// Finish the run of values equal to the token's, then carry on below it.
+				final double value = filter.afterValue();
+				int lo = search(0, nan, (int i) -> Double.compare(column[order[i]], value) >= 0);
+				int hi = search(lo, nan, (int i) -> Double.compare(column[order[i]], value) > 0);
+				int from = search(lo, hi, (int i) -> ids[order[i]] > filter.afterId());
+				for (int i = from; i < hi; i++) {
+					if (!visit.test(order[i])) return;
+				}
+				end = lo;
+			}
+			while (end > 0) {
+				int start = end - 1;
+				while (start > 0 && Double.compare(column[order[start - 1]], column[order[end - 1]]) == 0) {
+					start--;
+				}
+				for (int i = start; i < end; i++) {
+					if (!visit.test(order[i])) return;
+				}
+				end = start;
+			}
+			for (int i = nanFrom; i < order.length; i++) {
+				if (!visit.test(order[i])) return;
+			}
+		}
+		
+		/** Index in order of the first NaN value, or its length if there are none. */
+		private int firstNaN() {
+			final double[] column = columns[s][f];
+			return search(0, order.length, (int i) -> Double.isNaN(column[order[i]]));
+		}
+		
+		/** Index in order of the first value not below min, looking only before end. */
+		private int lowerBound(final double min, int end) {
+			final double[] column = columns[s][f];
+			return search(0, end, (int i) -> !(column[order[i]] < min));
+		}
+		
+		/** Index in order of the first value above max, looking only before end. */
+		private int upperBound(final double max, int end) {
+			final double[] column = columns[s][f];
+			return search(0, end, (int i) -> column[order[i]] > max);
+		}
+		
+		/** The first index from lo to hi at which test is true, or hi if there is none.
+		 *  Test must be false up to some index and true from there on. */
+		private int search(int lo, int hi, IntPredicate test) {
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (test.test(mid)) hi = mid;
+				else lo = mid + 1;
+			}
+			return lo;
+		}
+	}
+}
@@ -1,12 +1,24 @@
 package core;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import core.FeatureVector.Mode;
-import io.RESTClient;
+import io.DigestBroadcaster;
+import io.SnapshotFile;
 
-/** Stores the most recent set of feature vectors that we've 
+/** Stores the most recent set of feature vectors that we've
  *  parsed. Can also forward to T1 servers when received.
  * @author Ryan
  */
@@ -14,74 +26,540 @@ public class FeatureStore {
 	
 	/** The client can specify the number of days of history to be considered.
 	 *  Since computation is done here at the backend, we have to precompute a result
-	 *  for each of an allowed set of days. */
+	 *  for each of an allowed set of days. Must be in ascending order. */
 	private static final int[] HISTORY = {1,2,3,4,5,6,7,8,9,10,15,20,25,30};
 	
-	/** The edge server endpoint to send our digest to. */
-	private static final String ENDPOINT = "http://localhost:80/backend/digest";
+	/** The edge server endpoint to send our digest to, if none are configured. */
+	public static final String ENDPOINT = "http://localhost:80/backend/digest";
 	
-	/** The number of items we should bundle together per digest. */
+	/** The edge server endpoints to send every digest to. Each edge keeps its own cache,
+	 *  so they should be the edge servers themselves rather than a load balancer in
+	 *  front of them. Can be set as a comma separated list with a system property,
+	 *  ie -Dquaggy.edges=http://localhost:8000/backend/digest,http://localhost:8001/backend/digest
+	 */
+	public static final List<String> DEFAULT_ENDPOINTS =
+			Arrays.asList(System.getProperty("quaggy.edges", ENDPOINT).split("\\s*,\\s*"));
+	
+	/** The number of items we should bundle together per post to the edge. */
 	private static final int ITEMS_PER_DIGEST = 5;
 	
-	/** Create a new, empty, feature store. */
+	/** The most entries we send in a single post, enough for ITEMS_PER_DIGEST whole items. */
+	private static final int DIGEST_ENTRIES = ITEMS_PER_DIGEST * HISTORY.length *
+			Mode.values().length * Mode.values().length * FeatureVector.Feature.values().length;
+	
+	/** By default, features that moved less than this since we last sent them are not resent. */
+	public static final double DEFAULT_EPSILON = 1e-6;
+	
+	/** By default, every feature of every item is resent once every this many cycles,
+	 *  so the edge servers can't drift too far from us. */
+	public static final int DEFAULT_FULL_RESYNC_CYCLES = 60;
+	
+	/** The most cycles a quiet item (see ItemPriority) can go without being recomputed. */
+	public static final int QUIET_CYCLES = 5;
+	
+	/** The number of items per digest in the snapshot file. */
+	private static final int SNAPSHOT_ITEMS_PER_FRAME = 500;
+	
+	/** When computing in parallel, how many items to compute before broadcasting them. */
+	private static final int PARALLEL_BATCH = 1000;
+	
+	/** When computing in parallel, the most items a single task will compute without splitting. */
+	private static final int PARALLEL_CHUNK = 8;
+	
+	// Pool used to compute features in parallel. Null if computing on the calling thread.
+	private ForkJoinPool pool;
+	// Sends our digests to each edge server in the background.
+	private List<DigestBroadcaster> edges = new ArrayList<DigestBroadcaster>();
+	
+	// What we last sent the edge servers for each item, by item ID.
+	private Map<Integer, Published> published = new HashMap<Integer, Published>();
+	// The same features by column, for answering filters.
+	private FeatureIndex index = new FeatureIndex(HISTORY);
+	// Standing filters, told which items start or stop passing each cycle.
+	private Subscriptions subscriptions = new Subscriptions(index);
+	// Features that moved less than this are not resent.
+	private double epsilon = DEFAULT_EPSILON;
+	// How often to resend everything, and how many cycles it has been since we did.
+	private int fullResyncCycles = DEFAULT_FULL_RESYNC_CYCLES;
+	private int cyclesSinceResync = 0;
+	// Set when we could not queue everything for the edges, so we resend everything next cycle.
+	private boolean needResync = true;
+	// Items a full resync ran out of budget before reaching. They are still owed every
+	// feature, so they are recomputed and sent in full first thing next cycle.
+	private Set<Integer> resyncLeft = new HashSet<Integer>();
+	// Where to keep a snapshot of every feature for edge servers to start from. Null if none.
+	private Path snapshotFile = null;
+	// Set when the snapshot file is missing something we have published.
+	private boolean snapshotStale = true;
+	// Once a cycle has spent this long computing, the rest waits for the next cycle. 0 for no limit.
+	private long cycleBudgetMillis = 0;
+	// Number of calls to load() so far.
+	private int cycleNumber = 0;
+	// IDs of the items recomputed in the last cycle, in the order they were computed.
+	private List<Integer> lastRecomputed = Collections.emptyList();
+	
+	/** Create a new, empty, feature store which computes on a single thread. */
 	public FeatureStore() {
+		this(1);
 	}
 	
+	/** Create a new, empty, feature store which computes features using the
+	 *  given number of threads. Results are identical regardless of thread count.
+	 *
+	 *  If threads < 1, throws IllegalArgumentException.
+	 */
+	public FeatureStore(int threads) {
+		this(threads, DEFAULT_ENDPOINTS);
+	}
 	
-	/** Given a digest mapping from id:history_days:buy:sell:feature -> val,
-	 *  give this digest to the specified endpoint in JSON format
+	/** Create a new, empty, feature store which computes features using the
+	 *  given number of threads, and sends them to the given edge server endpoint.
+	 *
+	 *  If threads < 1, throws IllegalArgumentException.
 	 */
-	private void broadcastDigest(Map<String, Double> digest, String url) {
-		// First, convert the values of our dict to a json object.
-		String json = "{";
-		for (String key : digest.keySet()) {
-			json += "\"" + key + "\":" + "\"" + digest.get(key) + "\",";
-		}
-		// Remove the trailing comma.
-		json = json.substring(0, json.length() - 1);
-		json += "}";
-		// Now broadcast these values to the edge servers.
-		try {
-			RESTClient.post(url, json);
+	public FeatureStore(int threads, String endpoint) {
+		this(threads, Collections.singletonList(endpoint));
+	}
+	
+	/** Create a new, empty, feature store which computes features using the
+	 *  given number of threads, and sends them to every one of the given edge
+	 *  server endpoints.
+	 *
+	 *  If threads < 1 or there are no endpoints, throws IllegalArgumentException.
+	 */
+	public FeatureStore(int threads, List<String> endpoints) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("FeatureStore : need at least one thread");
+		}
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("FeatureStore : need at least one edge server");
+		}
+		this.pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+		for (String endpoint : endpoints) {
+			edges.add(new DigestBroadcaster(endpoint, HISTORY, DIGEST_ENTRIES));
 		}
-		catch (IllegalArgumentException e) { // Endpoint / edge server not up
-			System.out.println("Failed to write to edge server");
+	}
+	
+	/** Sets how far a feature must move before we send it again.
+	 *  If epsilon < 0, throws IllegalArgumentException. */
+	public void setEpsilon(double epsilon) {
+		if (epsilon < 0) {
+			throw new IllegalArgumentException("FeatureStore : epsilon must not be negative");
+		}
+		this.epsilon = epsilon;
+	}
+	
+	/** Sets how many cycles go by between sending every feature of every item.
+	 *  If cycles < 1, throws IllegalArgumentException. */
+	public void setFullResyncCycles(int cycles) {
+		if (cycles < 1) {
+			throw new IllegalArgumentException("FeatureStore : resync cycles must be positive");
+		}
+		this.fullResyncCycles = cycles;
+	}
+	
+	/** Sets whether digests are compressed before they are sent. On by default. */
+	public void setCompressDigests(boolean compress) {
+		for (DigestBroadcaster edge : edges) {
+			edge.setCompress(compress);
+		}
+	}
+	
+	/** Sets how long a cycle may spend computing features, in milliseconds.
+	 *  Items are computed most urgent first (see ItemPriority), so if time runs out
+	 *  it's the quietest items that wait for the next cycle. 0 for no limit, the default.
+	 *  If millis < 0, throws IllegalArgumentException. */
+	public void setCycleBudgetMillis(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("FeatureStore : cycle budget must not be negative");
 		}
+		this.cycleBudgetMillis = millis;
 	}
 	
-	/** Given the current item database and a snapshot of the TP, 
-	 *  update our database of feature information. This will
-	 *  remove all old feature information.
+	/** Sets a file to write the latest value of every feature to at the end of every
+	 *  cycle, for edge servers to start from (see SnapshotFile). Null for none, the default. */
+	public void setSnapshotFile(Path file) {
+		this.snapshotFile = file;
+		this.snapshotStale = true;
+	}
+	
+	/** Block until every digest from the last call to load() has been sent to every edge,
+	 *  or given up on. */
+	public void flush() throws InterruptedException {
+		for (DigestBroadcaster edge : edges) {
+			edge.flush();
+		}
+	}
+	
+	/** Stop sending digests and computing features. The store can't be used afterwards. */
+	public void close() {
+		for (DigestBroadcaster edge : edges) {
+			edge.close();
+		}
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+	
+	/** IDs of the items recomputed by the last call to load(), most urgent first
+	 *  (see ItemPriority). */
+	public List<Integer> lastRecomputed() {
+		return Collections.unmodifiableList(lastRecomputed);
+	}
+	
+	/** The edge servers we send digests to, along with their health metrics. */
+	public List<DigestBroadcaster> edges() {
+		return Collections.unmodifiableList(edges);
+	}
+	
+	/** The latest features of every item we can compute them for, for answering filters. */
+	public FeatureIndex index() {
+		return index;
+	}
+	
+	/** Standing filters over our features, which are kept up to date as items are recomputed. */
+	public Subscriptions subscriptions() {
+		return subscriptions;
+	}
+	
+	/** Metrics about the digests we've sent to each edge, one line per edge. */
+	public String broadcastStats() {
+		StringBuilder result = new StringBuilder();
+		for (DigestBroadcaster edge : edges) {
+			if (result.length() > 0) result.append('\n');
+			result.append(edge);
+		}
+		return result.toString();
+	}
+	
+	/** The features we last sent for an item, along with what they were computed from.
+	 *  If the item's snapshot row and history still match, the features would come out
+	 *  the same, so there is no need to compute them again. */
+	private static class Published {
+		private ItemFeatures features;
+		private double[][] sent;			// Values last sent to the edge, by [vector][feature]
+		private TPItemInfo row;				// Snapshot row the features were computed from
+		private int historySize;			// Number of history entries at the time
+		private long newest, oldest;		// Times of the newest and oldest history entries
+		private int cycle;					// Cycle the features were computed in
+		
+		private Published(ItemFeatures features, double[][] sent, TPItemInfo row, TPHistory history, int cycle) {
+			this.features = features;
+			this.sent = sent;
+			this.row = row;
+			this.cycle = cycle;
+			this.historySize = history.size();
+			this.newest = history.time(0);
+			this.oldest = history.time(history.size() - 1);
+		}
+		
+		/** True iff features computed from row and history would be the same as ours.
+		 *  History only ever gains entries or loses its oldest ones, so checking
+		 *  the size and both ends is enough to spot a change. */
+		private boolean matches(TPItemInfo row, TPHistory history) {
+			if (history.size() != historySize || history.time(0) != newest ||
+					history.time(history.size() - 1) != oldest ||
+					!row.time().equals(this.row.time())) {
+				return false;
+			}
+			for (TPItemInfo.Attribute attr : TPItemInfo.Attribute.values()) {
+				if (row.get(attr) != this.row.get(attr)) return false;
+			}
+			return true;
+		}
+	}
+	
+	
+	/** Add the features of an item to a digest, and return the values the edge has
+	 *  for them afterwards, indexed by [vector][feature].
+	 *  If previous is not null, it holds the values the edge had before, as returned
+	 *  by an earlier call, and only features that moved more than epsilon from those
+	 *  are added. Comparing with what was sent rather than what was last computed
+	 *  means a feature creeping by less than epsilon a cycle is still sent once it
+	 *  has moved far enough.
+	 */
+	private double[][] addToDigest(Digest digest, ItemFeatures item, double[][] previous) {
+		FeatureVector.Feature[] features = FeatureVector.Feature.values();
+		long all = (1L << features.length) - 1;
+		double[][] sent = new double[HISTORY.length * Mode.values().length * Mode.values().length][];
+		int v = 0;
+		for (int w = 0; w < HISTORY.length; w++) {
+			for (Mode buy : Mode.values()) {
+				for (Mode sell : Mode.values()) {
+					FeatureVector fv = item.get(w, buy, sell);
+					long mask = all;
+					sent[v] = new double[features.length];
+					for (FeatureVector.Feature f : features) {
+						double val = fv.get(f);
+						if (previous != null && !changed(previous[v][f.ordinal()], val)) {
+							mask &= ~(1L << f.ordinal());
+							val = previous[v][f.ordinal()];
+						}
+						sent[v][f.ordinal()] = val;
+					}
+					digest.add(item.getId(), w, buy, sell, fv, mask);
+					v++;
+				}
+			}
+		}
+		return sent;
+	}
+	
+	/** True iff a feature has moved more than epsilon, or into or out of NaN. */
+	private boolean changed(double old, double val) {
+		if (Double.isNaN(old) || Double.isNaN(val)) {
+			return Double.isNaN(old) != Double.isNaN(val);
+		}
+		return Math.abs(val - old) > epsilon;
+	}
+	
+	/** Compute the feature vectors of a single item for every history length and mode.
+	 *  Only reads from items and snapshot, so may be called from several threads at once.
+	 */
+	private ItemFeatures compute(int id, ItemDB items, TPSnapshot snapshot) {
+		ItemFeatures result = new ItemFeatures(id, HISTORY.length);
+		// Walk this item's history once to get statistics for every history length.
+		HistoryStats stats = new HistoryStats(items.getItemInfo(id), HISTORY);
+		for (int w = 0; w < HISTORY.length; w++) {
+			for (Mode buy : Mode.values()) {
+				for (Mode sell : Mode.values()) {
+					result.set(w, buy, sell, new FeatureVector(id, items, snapshot, stats, w, buy, sell));
+				}
+			}
+		}
+		return result;
+	}
+	
+	/** Computes the features for a contiguous range of item IDs, splitting the range
+	 *  into smaller tasks for other threads to steal. Results are merged back together
+	 *  in the same order as the IDs, so output does not depend on scheduling.
+	 */
+	private class ComputeTask extends RecursiveTask<List<ItemFeatures>> {
+		private static final long serialVersionUID = 1L;
+		
+		private List<Integer> ids;
+		private ItemDB items;
+		private TPSnapshot snapshot;
+		
+		ComputeTask(List<Integer> ids, ItemDB items, TPSnapshot snapshot) {
+			this.ids = ids;
+			this.items = items;
+			this.snapshot = snapshot;
+		}
+		
+		@Override
+		protected List<ItemFeatures> compute() {
+			if (ids.size() <= PARALLEL_CHUNK) {
+				List<ItemFeatures> result = new ArrayList<ItemFeatures>(ids.size());
+				for (int id : ids) {
+					result.add(FeatureStore.this.compute(id, items, snapshot));
+				}
+				return result;
+			}
+			int mid = ids.size() / 2;
+			ComputeTask left = new ComputeTask(ids.subList(0, mid), items, snapshot);
+			ComputeTask right = new ComputeTask(ids.subList(mid, ids.size()), items, snapshot);
+			left.fork();
+			List<ItemFeatures> result = new ArrayList<ItemFeatures>(ids.size());
+			List<ItemFeatures> rightResult = right.compute();
+			result.addAll(left.join());
+			result.addAll(rightResult);
+			return result;
+		}
+	}
+	
+	/** Compute the features for a list of item IDs, in parallel if we have a pool. */
+	private List<ItemFeatures> computeAll(List<Integer> ids, ItemDB items, TPSnapshot snapshot) {
+		if (pool == null) {
+			List<ItemFeatures> result = new ArrayList<ItemFeatures>(ids.size());
+			for (int id : ids) {
+				result.add(compute(id, items, snapshot));
+			}
+			return result;
+		}
+		return pool.invoke(new ComputeTask(ids, items, snapshot));
+	}
+	
+	/** Given the current item database and a snapshot of the TP,
+	 *  update our database of feature information, and send the edge
+	 *  servers every feature that has changed since we last sent it.
+	 *  Items whose snapshot row and history are unchanged are not recomputed.
+	 *  Every few cycles (see setFullResyncCycles), everything is recomputed and resent.
+	 *
+	 *  Items are recomputed and sent in order of ItemPriority, so the busiest items
+	 *  are fresh first. Quiet items may wait up to QUIET_CYCLES cycles, and items
+	 *  that don't fit in the cycle budget (see setCycleBudgetMillis) wait for the next cycle.
+	 *  If that cuts a full resync short, the items it didn't reach are sent in full first
+	 *  thing next cycle.
+	 *
+	 *  Digests are sent in the background, so this returns without waiting for the
+	 *  edge servers (see flush()). It does wait for the previous cycle's digests first,
+	 *  so values from two cycles can never reach an edge out of order.
+	 *  An edge that missed any digests since the last cycle is sent every feature
+	 *  of every item instead of just the changes, so it catches up with the others.
 	 */
 	public void load(ItemDB items, TPSnapshot snapshot) {
-		// Maps from id:history_days:buy:sell:feature -> val.
-		Map<String, Double> digest = new HashMap<String, Double>();
-		// Number of items in this digest.
-		int digestSize = 0;
+		try {
+			flush();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		// Edges that are up to date get only what changed, the rest get everything.
+		List<DigestBroadcaster> current = new ArrayList<DigestBroadcaster>();
+		List<DigestBroadcaster> behind = new ArrayList<DigestBroadcaster>();
+		for (DigestBroadcaster edge : edges) {
+			if (edge.needsResync()) {
+				behind.add(edge);
+			}
+			else {
+				current.add(edge);
+			}
+		}
+		long start = System.nanoTime();
+		int cycle = ++cycleNumber;
+		boolean full = needResync || ++cyclesSinceResync >= fullResyncCycles;
+		if (full) {
+			cyclesSinceResync = 0;
+			needResync = false;
+			resyncLeft.clear();
+		}
+		// Find the (sorted) list of items we can compute features for,
+		// and which of them have changed since we last computed them.
+		List<Integer> tradeable = new ArrayList<Integer>();
+		List<Integer> stale = new ArrayList<Integer>();
+		final Map<Integer, Double> priority = new HashMap<Integer, Double>();
+		int numQuiet = 0;
 		for (int id : items.validIDS()) {
 			// If there's no history or this isn't for sale, we can't predict anything.
-			if (items.getItemInfo(id).getHistory().size() == 0 || 
-					snapshot.get(id).get(TPItemInfo.Attribute.NumBuy) == 0) {
+			TPHistory history = items.getItemInfo(id).getHistory();
+			if (history.size() == 0 || snapshot.get(id).get(TPItemInfo.Attribute.NumBuy) == 0) {
 				continue;
 			}
-			for (int hist : HISTORY) {
-				for (Mode buy : Mode.values()) {
-					for (Mode sell : Mode.values()) {
-						FeatureVector fv = new FeatureVector(id, items, snapshot, hist, buy, sell);
-						for (FeatureVector.Feature f : FeatureVector.Feature.values()) {
-							double fVal = fv.get(f);
-							String key = id +":" + hist + ":" + buy + ":" + sell + ":" + f;
-							digest.put(key,  fVal);
-						}
-					}
+			tradeable.add(id);
+			Published prev = published.get(id);
+			boolean owed = resyncLeft.contains(id);
+			if (full || owed || prev == null || !prev.matches(snapshot.get(id), history)) {
+				// What's left of a resync goes first, so it can't be cut short again.
+				double score = (prev == null || owed) ? Double.POSITIVE_INFINITY :
+						ItemPriority.score(snapshot.get(id), prev.row, prev.features, cycle - prev.cycle);
+				// Quiet items can wait a few cycles, unless everything is being resent.
+				if (!full && score < ItemPriority.QUIET_SCORE && cycle - prev.cycle < QUIET_CYCLES) {
+					numQuiet++;
+					continue;
 				}
+				stale.add(id);
+				priority.put(id, score);
 			}
-			if (++digestSize >= ITEMS_PER_DIGEST) {
-				System.out.println("Broadcasting: " + id);
-				broadcastDigest(digest, ENDPOINT);
-				digestSize = 0;
-				digest.clear();
+		}
+		// Most urgent first, breaking ties by ID so the order doesn't depend on the map.
+		Collections.sort(stale, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int result = Double.compare(priority.get(b), priority.get(a));
+				return (result != 0) ? result : Integer.compare(a, b);
 			}
+		});
+		// Forget items we no longer have features for, so they are sent in full if they come back.
+		Set<Integer> keep = new HashSet<Integer>(tradeable);
+		List<Integer> removed = new ArrayList<Integer>();
+		for (int id : published.keySet()) {
+			if (!keep.contains(id)) removed.add(id);
+		}
+		if (published.keySet().removeAll(removed) || !stale.isEmpty()) {
+			snapshotStale = true;
+		}
+		index.retainAll(keep);
+		resyncLeft.retainAll(keep);
+		
+		int numQueued = 0;
+		int numComputed = 0;
+		List<ItemFeatures> recomputed = new ArrayList<ItemFeatures>();
+		try {
+			// Compute a batch of items at a time, queueing them for the edge in priority order.
+			int batchSize = (pool == null) ? ITEMS_PER_DIGEST : PARALLEL_BATCH;
+			for (int from = 0; from < stale.size(); from += batchSize) {
+				// Always compute something, so every cycle makes progress.
+				if (from > 0 && cycleBudgetMillis > 0 && System.nanoTime() - start > cycleBudgetMillis * 1000000) {
+					break;
+				}
+				List<Integer> batch = stale.subList(from, Math.min(from + batchSize, stale.size()));
+				numComputed += batch.size();
+				for (ItemFeatures item : computeAll(batch, items, snapshot)) {
+					int id = item.getId();
+					Published prev = published.get(id);
+					Digest digest = new Digest(HISTORY);
+					boolean owed = resyncLeft.remove(id);
+					double[][] sent = addToDigest(digest, item, (full || owed || prev == null) ? null : prev.sent);
+					published.put(id, new Published(item, sent, snapshot.get(id),
+							items.getItemInfo(id).getHistory(), cycle));
+					index.update(item);
+					recomputed.add(item);
+					numQueued += digest.size();
+					submit(digest, current);
+				}
+			}
+			// A full resync must reach every item, even if it takes more than one cycle.
+			if (full) {
+				resyncLeft.addAll(stale.subList(numComputed, stale.size()));
+			}
+			// Everything we have is now up to date, so catch up the edges that are behind.
+			if (!behind.isEmpty()) {
+				for (Published item : published.values()) {
+					Digest digest = new Digest(HISTORY);
+					addToDigest(digest, item.features, null);
+					submit(digest, behind);
+				}
+				for (DigestBroadcaster edge : behind) {
+					System.out.println("Sent a full snapshot to " + edge.endpoint());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// Some of what we computed won't be sent, so send everything next time.
+			Thread.currentThread().interrupt();
+			needResync = true;
+		}
+		lastRecomputed = new ArrayList<Integer>(recomputed.size());
+		for (ItemFeatures item : recomputed) {
+			lastRecomputed.add(item.getId());
+		}
+		// Only what we recomputed or dropped can have started or stopped passing a filter.
+		subscriptions.update(recomputed, removed);
+		System.out.println("Recomputed " + numComputed + " of " + tradeable.size() + " items, queued " +
+				numQueued + " changed features" + (full ? " (full resync)." : ".") + " Deferred " +
+				numQuiet + " quiet items and " + (stale.size() - numComputed) + " over budget.");
+		if (snapshotFile != null && snapshotStale) {
+			writeSnapshot();
+		}
+	}
+	
+	/** Write every feature we have published to the snapshot file, in ID order. */
+	private void writeSnapshot() {
+		List<Integer> ids = new ArrayList<Integer>(published.keySet());
+		Collections.sort(ids);
+		try (SnapshotFile.Writer writer = new SnapshotFile.Writer(snapshotFile)) {
+			Digest digest = new Digest(HISTORY);
+			for (int i = 0; i < ids.size(); i++) {
+				addToDigest(digest, published.get(ids.get(i)).features, null);
+				if ((i + 1) % SNAPSHOT_ITEMS_PER_FRAME == 0 || i == ids.size() - 1) {
+					writer.add(digest.encode(true));
+					digest.clear();
+				}
+			}
+			writer.commit();
+			snapshotStale = false;
+		}
+		catch (IOException e) {
+			System.out.println("Failed to write snapshot to " + snapshotFile + " : " + e);
+		}
+	}
+	
+	/** Queue a digest for each of the given edges. */
+	private void submit(Digest digest, List<DigestBroadcaster> to) throws InterruptedException {
+		for (DigestBroadcaster edge : to) {
+			edge.submit(digest);
 		}
 	}
 }
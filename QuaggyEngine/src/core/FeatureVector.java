@@ -1,7 +1,5 @@
 package core;
 
-import java.util.List;
-
 public class FeatureVector {
 	
 	/** This is the list of features that will be included in the vector. */
@@ -77,24 +75,22 @@ public class FeatureVector {
 	 *  If no history is present, throws IllegalArgumentExcpetion.
 	 */
 	public FeatureVector(int id, ItemDB items, TPSnapshot snapshot, int days, Mode buyMode, Mode sellMode) {
+		this(id, items, snapshot, new HistoryStats(items.getItemInfo(id), new int[] {days}), 0,
+				buyMode, sellMode);
+	}
+	
+	/** Create a feature vector for item with id from history statistics that have already
+	 *  been computed for it. The vector covers the given window of those statistics.
+	 *  This lets callers build vectors for many history lengths with a single
+	 *  pass over the item's history (see HistoryStats).
+	 */
+	public FeatureVector(int id, ItemDB items, TPSnapshot snapshot, HistoryStats stats, int window,
+			Mode buyMode, Mode sellMode) {
 		// Create the feature array
 		features = new double[Feature.values().length];
 		name = items.getItemInfo(id).get(ItemInfo.Attribute.Name);
-		// Verify this item has a history on the TP
 		ItemInfo item = items.getItemInfo(id);
-		List<TPItemInfo> history = item.getHistory();
-		if (history.size() == 0) {
-			throw new IllegalArgumentException(item.get(ItemInfo.Attribute.Name) + 
-					"has no history so cannot create feature vector.");
-		}
-		// Count how many items we want to include from this history
-		DateTime newestData = history.get(0).time();
-		DateTime delta = new DateTime("00-00-~"+ days + " 00:00:00");
-		DateTime earliestConsider = newestData.add(delta);
-		int numListings = 0;
-		while (numListings < history.size() && history.get(numListings).time().compareTo(earliestConsider) >= 0) {
-			numListings++;
-		}
+		int numListings = stats.count(window);
 		set(Feature.NumConsidered, numListings);
 		
 		// Fill in item information
@@ -116,18 +112,18 @@ public class FeatureVector {
 		set(Feature.SellPrice, sellPrice);
 		
 		// Fill in buy and sell statistical information
-		double meanSellPrice = item.mean(TPItemInfo.Attribute.SellPrice, numListings);
-		double meanBuyPrice = item.mean(TPItemInfo.Attribute.BuyPrice, numListings);
-		double varSellPrice = item.variance(TPItemInfo.Attribute.SellPrice, numListings);
-		double varBuyPrice = item.variance(TPItemInfo.Attribute.BuyPrice, numListings);
+		double meanSellPrice = stats.mean(TPItemInfo.Attribute.SellPrice, window);
+		double meanBuyPrice = stats.mean(TPItemInfo.Attribute.BuyPrice, window);
+		double varSellPrice = stats.variance(TPItemInfo.Attribute.SellPrice, window);
+		double varBuyPrice = stats.variance(TPItemInfo.Attribute.BuyPrice, window);
 		double zBuyPrice = zScore(snapshot.get(id).get(TPItemInfo.Attribute.BuyPrice), 
 				meanBuyPrice, varBuyPrice);
 		double zSellPrice = zScore(snapshot.get(id).get(TPItemInfo.Attribute.SellPrice),
 				meanSellPrice, varSellPrice);
-		double medianBuyPrice = item.median(TPItemInfo.Attribute.BuyPrice, numListings);
-		double medianSellPrice = item.median(TPItemInfo.Attribute.SellPrice, numListings);
-		double slopeBuyPrice = item.meanSlope(TPItemInfo.Attribute.BuyPrice, numListings);
-		double slopeSellPrice = item.meanSlope(TPItemInfo.Attribute.SellPrice, numListings);
+		double medianBuyPrice = stats.median(TPItemInfo.Attribute.BuyPrice, window);
+		double medianSellPrice = stats.median(TPItemInfo.Attribute.SellPrice, window);
+		double slopeBuyPrice = stats.meanSlope(TPItemInfo.Attribute.BuyPrice, window);
+		double slopeSellPrice = stats.meanSlope(TPItemInfo.Attribute.SellPrice, window);
 		
 		set(Feature.MeanSellPrice, meanSellPrice);
 		set(Feature.MeanBuyPrice, meanBuyPrice);
@@ -143,13 +139,15 @@ public class FeatureVector {
 		// Fill in relevant profits
 		double ourBuyPrice = (buyMode == Mode.INSTANT) ? sellPrice : buyPrice;
 		double flipProfit = profitFraction(buyPrice, sellPrice);
-		// Come up with mean and variance in profit
+		// Come up with mean and variance in profit. Profit is an increasing linear
+		// function of the selling price, so its mean, variance and median follow
+		// directly from those of the selling price.
 		TPItemInfo.Attribute sellingPrice = (sellMode == Mode.INSTANT) ? 
 				TPItemInfo.Attribute.BuyPrice : TPItemInfo.Attribute.SellPrice;
-		DoubleFunction profitFunction = (double sell) -> profitFraction(ourBuyPrice, sell);
-		double meanProfit = item.mean(sellingPrice, numListings, profitFunction);
-		double varProfit = item.variance(sellingPrice, numListings, profitFunction);
-		double medianProfit = item.median(sellingPrice, numListings, profitFunction);
+		double meanProfit = profitFraction(ourBuyPrice, stats.mean(sellingPrice, window));
+		double medianProfit = profitFraction(ourBuyPrice, stats.median(sellingPrice, window));
+		double profitScale = (ourBuyPrice == 0) ? 0 : TPItemInfo.TAX_FACTOR / ourBuyPrice;
+		double varProfit = stats.variance(sellingPrice, window) * profitScale * profitScale;
 		
 		set(Feature.CurrentFlipProfit, flipProfit);
 		set(Feature.OurBuyPrice, ourBuyPrice);
@@ -0,0 +1,305 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import core.FeatureVector.Feature;
+import core.FeatureVector.Mode;
+import io.JSONInterface;
+
+/** A user's filter, in the same JSON format as the files in config/:
+ *  HistoryDays, BuyMode and SellMode pick which feature vectors to look at,
+ *  Types and Bounds ({Feature : {Min, Max}}) decide which items pass, and
+ *  SortBy and SortOrder (ASC or DESC) decide what order they come back in.
+ *  An optional Limit caps how many items come back, 0 (the default) for all of them,
+ *  and an optional After, a page token (see token()), skips every item up to and
+ *  including the one it was made from, so the next page starts where the last ended.
+ *
+ *  Items are sorted by SortBy in SortOrder, with NaN last either way, then by
+ *  ascending ID (see compare()), so every item has exactly one place in the order
+ *  and pages never overlap or skip an item.
+ *
+ *  As with the edge servers, a feature that is NaN passes any bound on it.
+ *
+ *  The filter is compiled as it is parsed: bounds are kept in primitive arrays
+ *  holding only the features that have them, and allowed item types as a bitmask,
+ *  so matches() allocates nothing and looks up nothing. Bounds are checked in
+ *  order, so putting the one that rejects the most items first (see ordered())
+ *  means most items are rejected after a single comparison.
+ * @author Ryan Pindulic
+ */
+public class Filter {
+	
+	private int historyDays;			// How many historical days should we consider?
+	private Mode buyMode;				// Should we put a buy bid or do it instantly?
+	private Mode sellMode;				// Should we put a sell bid or do it instantly?
+	
+	private Feature[] bounded;			// Features with a bound on them
+	private double[] minVals;			// Minimum allowed for each bounded feature, -infinity if none
+	private double[] maxVals;			// Maximum allowed for each bounded feature, +infinity if none
+	private int typeMask;				// Bit i set iff the item type with ordinal i is allowed
+	
+	private Feature sortFeature;		// Which feature should we sort filter results by?
+	private boolean sortAsc;			// If true, sort ascending. Else, sort descending.
+	private int limit;					// Most results to return, 0 for all
+	private boolean hasAfter;			// If true, only items after the page token pass
+	private double afterValue;			// Sort value of the item the page token was made from
+	private int afterId;				// ID of the item the page token was made from
+	
+	/** Parse a filter from its JSON text.
+	 *  Throws IllegalArgumentException if it is invalid or improperly formatted. */
+	public static Filter parse(String text) {
+		return new Filter(JSONInterface.loadFromText(text));
+	}
+	
+	private Filter() {}
+	
+	/** Parse a filter from a JSON object.
+	 *  Throws IllegalArgumentException if it is invalid or improperly formatted. */
+	public Filter(JSONObject root) {
+		historyDays = JSONInterface.getInt(root, "HistoryDays");
+		if (historyDays < 1) {
+			throw new IllegalArgumentException("Filter : HistoryDays must be positive");
+		}
+		buyMode = mode(JSONInterface.get(root, "BuyMode"));
+		sellMode = mode(JSONInterface.get(root, "SellMode"));
+		
+		// Parse min/max values, leaving out the side that isn't bounded.
+		JSONObject bounds = JSONInterface.getObject(root, "Bounds");
+		List<Feature> features = new ArrayList<Feature>();
+		for (String name : bounds.keySet()) {
+			features.add(feature(name));
+		}
+		Collections.sort(features);
+		bounded = features.toArray(new Feature[features.size()]);
+		minVals = new double[bounded.length];
+		maxVals = new double[bounded.length];
+		for (int i = 0; i < bounded.length; i++) {
+			JSONObject fOb = JSONInterface.getObject(bounds, bounded[i].name());
+			minVals[i] = fOb.has("Min") ? JSONInterface.getDouble(fOb, "Min") : Double.NEGATIVE_INFINITY;
+			maxVals[i] = fOb.has("Max") ? JSONInterface.getDouble(fOb, "Max") : Double.POSITIVE_INFINITY;
+		}
+		
+		// Parse the list of itemTypes we're considering.
+		typeMask = 0;
+		JSONArray types = JSONInterface.getArray(root, "Types");
+		for (int i = 0; i < types.length(); i++) {
+			String type = JSONInterface.getAtIndex(types, i);
+			try {
+				typeMask |= 1 << ItemType.fromString(type).ordinal();
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Filter : unknown item type " + type);
+			}
+		}
+		
+		// Parse sort information.
+		sortFeature = feature(JSONInterface.get(root, "SortBy"));
+		String sortOrder = JSONInterface.get(root, "SortOrder");
+		if (!sortOrder.equalsIgnoreCase("ASC") && !sortOrder.equalsIgnoreCase("DESC")) {
+			throw new IllegalArgumentException("Filter : sort order " + sortOrder + " but must be ASC or DESC");
+		}
+		sortAsc = sortOrder.equalsIgnoreCase("ASC");
+		limit = root.has("Limit") ? JSONInterface.getInt(root, "Limit") : 0;
+		if (limit < 0) {
+			throw new IllegalArgumentException("Filter : Limit must not be negative");
+		}
+		hasAfter = root.has("After");
+		if (hasAfter) {
+			String token = JSONInterface.get(root, "After");
+			String[] parts = token.split("\\.");
+			try {
+				afterValue = Double.longBitsToDouble(Long.parseUnsignedLong(parts[0], 16));
+				afterId = Integer.parseInt(parts[1]);
+			}
+			catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Filter : bad page token " + token);
+			}
+		}
+	}
+	
+	/** A page token for the item with the given ID and sort value. A filter with
+	 *  this as its After starts with the item right after that one. */
+	public static String token(double value, int id) {
+		return Long.toHexString(Double.doubleToLongBits(value)) + "." + id;
+	}
+	
+	/** Parse a buy or sell mode, ignoring case. */
+	private static Mode mode(String name) {
+		for (Mode mode : Mode.values()) {
+			if (mode.name().equalsIgnoreCase(name)) return mode;
+		}
+		throw new IllegalArgumentException("Filter : mode " + name + " invalid.");
+	}
+	
+	/** Parse a feature name. */
+	private static Feature feature(String name) {
+		try {
+			return Feature.valueOf(name);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Filter : unknown feature " + name);
+		}
+	}
+	
+	/** Gets the number of historical days we want to consider. */
+	public int historyDays() {
+		return historyDays;
+	}
+	
+	/** Gets the mode we will be using to buy items, instantly or bid. */
+	public Mode buyMode() {
+		return buyMode;
+	}
+	
+	/** Gets the mode we will be using to sell items, instantly or bid. */
+	public Mode sellMode() {
+		return sellMode;
+	}
+	
+	/** Gets the features that have a bound on them. */
+	public Feature[] bounded() {
+		return bounded.clone();
+	}
+	
+	/** The minimum allowed value of the ith bounded feature, -infinity if none. */
+	public double min(int i) {
+		return minVals[i];
+	}
+	
+	/** The maximum allowed value of the ith bounded feature, +infinity if none. */
+	public double max(int i) {
+		return maxVals[i];
+	}
+	
+	/** True iff items of the given type are allowed. */
+	public boolean allows(ItemType type) {
+		return (typeMask & (1 << type.ordinal())) != 0;
+	}
+	
+	/** Allowed item types, with bit i set iff the type with ordinal i is allowed. */
+	public int typeMask() {
+		return typeMask;
+	}
+	
+	/** True iff a feature vector passes this filter. */
+	public boolean matches(FeatureVector fv) {
+		int type = (int) fv.get(Feature.ItemType);
+		if (type < 0 || type >= Integer.SIZE || (typeMask & (1 << type)) == 0) {
+			return false;
+		}
+		for (int i = 0; i < bounded.length; i++) {
+			double val = fv.get(bounded[i]);
+			// Non-short-circuit, so there is one branch per bound. NaN fails both tests, so passes.
+			if (val < minVals[i] | val > maxVals[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/** A copy of this filter with its bounds reordered so that those passing the fewest
+	 *  items come first, where passRates[i] is the fraction of items that pass the ith bound.
+	 *  Throws IllegalArgumentException if there isn't a pass rate for every bound. */
+	public Filter ordered(final double[] passRates) {
+		if (passRates.length != bounded.length) {
+			throw new IllegalArgumentException("Filter : need a pass rate for each of " +
+					bounded.length + " bounds");
+		}
+		Integer[] order = new Integer[bounded.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(passRates[a], passRates[b]);
+			}
+		});
+		Filter result = copy();
+		for (int i = 0; i < order.length; i++) {
+			result.bounded[i] = bounded[order[i]];
+			result.minVals[i] = minVals[order[i]];
+			result.maxVals[i] = maxVals[order[i]];
+		}
+		return result;
+	}
+	
+	/** A copy of this filter without its Limit or page token, so it returns every item passing. */
+	public Filter withoutPage() {
+		Filter result = copy();
+		result.limit = 0;
+		result.hasAfter = false;
+		return result;
+	}
+	
+	/** A copy of this filter that doesn't share its bound arrays. */
+	private Filter copy() {
+		Filter result = new Filter();
+		result.historyDays = historyDays;
+		result.buyMode = buyMode;
+		result.sellMode = sellMode;
+		result.bounded = bounded.clone();
+		result.minVals = minVals.clone();
+		result.maxVals = maxVals.clone();
+		result.typeMask = typeMask;
+		result.sortFeature = sortFeature;
+		result.sortAsc = sortAsc;
+		result.limit = limit;
+		result.hasAfter = hasAfter;
+		result.afterValue = afterValue;
+		result.afterId = afterId;
+		return result;
+	}
+	
+	/** Gets the feature to sort results by. */
+	public Feature sortFeature() {
+		return sortFeature;
+	}
+	
+	/** True if results are sorted ascending, false if descending. */
+	public boolean sortAsc() {
+		return sortAsc;
+	}
+	
+	/** The most results to return, 0 for all of them. */
+	public int limit() {
+		return limit;
+	}
+	
+	/** Order of two items, given their sort values and IDs: negative if a comes first.
+	 *  Sorts by value in our sort order, NaN last either way, then by ascending ID. */
+	public int compare(double valA, int idA, double valB, int idB) {
+		boolean nanA = Double.isNaN(valA), nanB = Double.isNaN(valB);
+		int result = (nanA || nanB) ? Boolean.compare(nanA, nanB) :
+				sortAsc ? Double.compare(valA, valB) : Double.compare(valB, valA);
+		return (result != 0) ? result : Integer.compare(idA, idB);
+	}
+	
+	/** True iff this filter has a page token (see token()). */
+	public boolean hasAfter() {
+		return hasAfter;
+	}
+	
+	/** True iff an item with the given sort value and ID comes after our page token,
+	 *  or we have none. */
+	public boolean isAfter(double value, int id) {
+		return !hasAfter || compare(value, id, afterValue, afterId) > 0;
+	}
+	
+	/** Sort value of the item our page token was made from. */
+	public double afterValue() {
+		return afterValue;
+	}
+	
+	/** ID of the item our page token was made from. */
+	public int afterId() {
+		return afterId;
+	}
+}
@@ -0,0 +1,150 @@
+package core;
+
+/** Precomputed statistics over an item's TP history for a whole set of
+ *  history windows at once. The history is walked a single time, from newest
+ *  to oldest, keeping running statistics which are recorded every time we pass
+ *  the end of one of the windows. This means that computing the 10 day
+ *  statistics right after the 9 day ones costs next to nothing.
+ *
+ *  Windows are given as a number of days, and are measured back from the
+ *  newest entry in the history (see FeatureVector for details).
+ */
+public class HistoryStats {
+
+	/** The attributes we keep statistics for. Features only need prices. */
+	private static final TPItemInfo.Attribute[] TRACKED =
+		{TPItemInfo.Attribute.BuyPrice, TPItemInfo.Attribute.SellPrice};
+
+	/** Scratch space for medians. Items are computed on many threads, so each gets its own,
+	 *  which then serves every item that thread computes. */
+	private static final ThreadLocal<PrefixMedians> SCRATCH = new ThreadLocal<PrefixMedians>() {
+		@Override
+		protected PrefixMedians initialValue() {
+			return new PrefixMedians(256);
+		}
+	};
+
+	private int[] days;				// Length of each window, in days, ascending
+	private int[] counts;			// Number of history entries in each window
+
+	// Statistics indexed by [attribute ordinal][window], null if not tracked.
+	private double[][] means;
+	private double[][] variances;
+	private double[][] medians;
+	private double[][] slopes;
+
+	/** Compute statistics for the given item over each of the provided
+	 *  windows (in days). Windows must be sorted in ascending order.
+	 *
+	 *  If the item has no history or the windows are not ascending,
+	 *  throws IllegalArgumentException.
+	 */
+	public HistoryStats(ItemInfo item, int[] days) {
+		TPHistory history = item.getHistory();
+		if (history.size() == 0) {
+			throw new IllegalArgumentException(item.get(ItemInfo.Attribute.Name) +
+					"has no history so cannot create feature vector.");
+		}
+		for (int w = 1; w < days.length; w++) {
+			if (days[w] < days[w-1]) {
+				throw new IllegalArgumentException("HistoryStats : windows must be ascending");
+			}
+		}
+		this.days = days;
+		this.counts = new int[days.length];
+		int numAttrs = TPItemInfo.Attribute.values().length;
+		this.means = new double[numAttrs][];
+		this.variances = new double[numAttrs][];
+		this.medians = new double[numAttrs][];
+		this.slopes = new double[numAttrs][];
+
+		// Count how many entries fall in each window with one walk over the timestamps.
+		long[] times = history.times();
+		int off = history.offset();
+		int numListings = 0;
+		for (int w = 0; w < days.length; w++) {
+			long earliestConsider = times[off] - days[w] * DateTime.SECONDS_PER_DAY;
+			while (numListings < history.size() && times[off + numListings] >= earliestConsider) {
+				numListings++;
+			}
+			counts[w] = numListings;
+		}
+
+		// Accumulate directly over the relevant prefix of each tracked column.
+		PrefixMedians prefix = SCRATCH.get();
+		for (TPItemInfo.Attribute attr : TRACKED) {
+			accumulate(attr.ordinal(), history.column(attr), off, numListings, prefix);
+		}
+	}
+
+	/** Walk the length entries of column from off once, recording the running statistics at the end of every window.
+	 *  Means, variances and slopes come from a RunningStats, the same as ItemInfo uses,
+	 *  and medians from prefix, which keeps the entries seen so far in order.
+	 */
+	private void accumulate(int attr, int[] column, int off, int length, PrefixMedians prefix) {
+		means[attr] = new double[days.length];
+		variances[attr] = new double[days.length];
+		medians[attr] = new double[days.length];
+		slopes[attr] = new double[days.length];
+
+		prefix.reset(column, off, length);
+		RunningStats running = new RunningStats();
+		int w = 0;
+		for (int i = 0; i < length; i++) {
+			running.add(column[off + i]);
+			prefix.push();
+			int n = i + 1;
+			// Several windows may end at the same entry.
+			while (w < days.length && counts[w] == n) {
+				means[attr][w] = running.mean();
+				variances[attr][w] = running.variance();
+				slopes[attr][w] = running.slope();
+				medians[attr][w] = prefix.median();
+				w++;
+			}
+		}
+	}
+
+	/** Return the statistics array for attr, throwing IllegalArgumentException if untracked. */
+	private static double[] tracked(double[][] stats, TPItemInfo.Attribute attr) {
+		if (stats[attr.ordinal()] == null) {
+			throw new IllegalArgumentException("HistoryStats : no statistics kept for " + attr);
+		}
+		return stats[attr.ordinal()];
+	}
+
+	/** Number of windows statistics were computed for. */
+	public int numWindows() {
+		return days.length;
+	}
+
+	/** Length in days of the given window. */
+	public int days(int window) {
+		return days[window];
+	}
+
+	/** How many history entries fall in the given window. */
+	public int count(int window) {
+		return counts[window];
+	}
+
+	/** Mean of a TP attribute over the given window. */
+	public double mean(TPItemInfo.Attribute attr, int window) {
+		return tracked(means, attr)[window];
+	}
+
+	/** Variance of a TP attribute over the given window. */
+	public double variance(TPItemInfo.Attribute attr, int window) {
+		return tracked(variances, attr)[window];
+	}
+
+	/** Median of a TP attribute over the given window. */
+	public double median(TPItemInfo.Attribute attr, int window) {
+		return tracked(medians, attr)[window];
+	}
+
+	/** Average change in a TP attribute over the given window. */
+	public double meanSlope(TPItemInfo.Attribute attr, int window) {
+		return tracked(slopes, attr)[window];
+	}
+}
@@ -65,7 +65,7 @@ public class ItemDB {
 	public TPSnapshot snapshot() {
 		Map<Integer, TPItemInfo> snapshot = new HashMap<Integer, TPItemInfo>();
 		for (int i : validItemIDs) {
-			List<TPItemInfo> history = db.get(i).getHistory();
+			TPHistory history = db.get(i).getHistory();
 			if (history.size() > 0) {
 				snapshot.put(i, history.get(0));
 			}
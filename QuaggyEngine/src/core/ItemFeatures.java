@@ -0,0 +1,40 @@
+package core;
+
+import core.FeatureVector.Mode;
+
+/** All of the feature vectors computed for a single item in one cycle,
+ *  one for every combination of history length, buy mode and sell mode.
+ *  History lengths are referred to by their index in FeatureStore's list.
+ */
+public class ItemFeatures {
+	
+	private int id;							// Item's unique ID
+	private FeatureVector[] vectors;		// Indexed by [window][buy mode][sell mode]
+	
+	/** Create an empty set of features for item id over numWindows history lengths. */
+	public ItemFeatures(int id, int numWindows) {
+		this.id = id;
+		this.vectors = new FeatureVector[numWindows * Mode.values().length * Mode.values().length];
+	}
+	
+	/** Position of the given combination in the flattened vector array. */
+	private static int index(int window, Mode buy, Mode sell) {
+		int modes = Mode.values().length;
+		return (window * modes + buy.ordinal()) * modes + sell.ordinal();
+	}
+	
+	/** Gets the feature vector for a history window and buy/sell modes. */
+	public FeatureVector get(int window, Mode buy, Mode sell) {
+		return vectors[index(window, buy, sell)];
+	}
+	
+	/** Sets the feature vector for a history window and buy/sell modes. */
+	public void set(int window, Mode buy, Mode sell, FeatureVector fv) {
+		vectors[index(window, buy, sell)] = fv;
+	}
+	
+	/** Return the item's ID. */
+	public int getId() {
+		return id;
+	}
+}
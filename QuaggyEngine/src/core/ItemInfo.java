@@ -1,7 +1,6 @@
 package core;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
 /** Stores information regarding a single item in GW2.
@@ -27,13 +26,13 @@ public class ItemInfo {
 	
 	private int id;							// Item's id number, key into TPSnapshot
 	private String[] attrs;					// Store attributes relevant to this item
-	private List<TPItemInfo> history;		// TP history, sorted from newest -> oldest
+	private TPHistory history;				// TP history, sorted from newest -> oldest
 	
 	/** Construct a new ItemInfo. */
 	public ItemInfo(int id, String name, String type, String rarity, 
 			String level, String vendorValue, String defaultSkin, String urlLoc) {
 		this.attrs = new String[Attribute.values().length];
-		this.history = new ArrayList<TPItemInfo>();
+		this.history = new TPHistory(id);
 		this.id = id;
 		attrs[Attribute.Name.ordinal()] =  name;
 		attrs[Attribute.Type.ordinal()] = type;
@@ -52,17 +51,16 @@ public class ItemInfo {
 		}
 		this.id = id;
 		this.attrs = attrs;
-		this.history = new ArrayList<TPItemInfo>();
+		this.history = new TPHistory(id);
 	}
 	
 	/** Copy constructor. */
 	public ItemInfo(ItemInfo other) {
 		this.attrs = new String[Attribute.values().length];
-		this.history = new ArrayList<TPItemInfo>();
+		this.history = new TPHistory(other.history);
 		this.id = other.id;
 		// Copy old data
 		for (int i = 0; i < attrs.length; i++) attrs[i] = other.attrs[i];
-		Collections.copy(history, other.history);
 	}
 	
 	/** Gets the value of the attribute attr for this item. */
@@ -71,7 +69,7 @@ public class ItemInfo {
 	}
 	
 	/** Return the history of the item in terms of TP prices. */
-	public List<TPItemInfo> getHistory() {
+	public TPHistory getHistory() {
 		return history;
 	}	
 	
@@ -85,18 +83,17 @@ public class ItemInfo {
 	 *  be removed from the backing MySQL store.
 	 */
 	public void purge(DateTime firstDate) {
-		for (int i = 0; i < history.size(); i++) {
-			if (history.get(i).time().compareTo(firstDate) < 0) {
-				history.remove(i);
-				i--;
-			}
-		}
+		history.purge(firstDate.toEpochSeconds());
 	}
 	
 	/** Set the history to be what we want */
 	public void setHistory(List<TPItemInfo> history) {
+		this.history = new TPHistory(id, history);
+	}
+	
+	/** Set the history to an already built columnar history. */
+	public void setHistory(TPHistory history) {
 		this.history = history;
-		Collections.sort(history);
 	}
 	
 	/** Sets the value of the attribute attr for this item. */
@@ -123,11 +120,7 @@ public class ItemInfo {
 			throw new IllegalArgumentException("Want mean of " + N + " but history"
 					+ " only contains " + history.size());
 		}
-		double sum = 0;
-		for (int i = 0; i < N; i++) {
-			sum += func.apply(history.get(i).get(attr));
-		}
-		return sum / N;
+		return stats(attr, N, func).mean();
 	}
 	
 	/** Get the mean TPItemInfo attribute over the most recent N history entries. 
@@ -142,8 +135,11 @@ public class ItemInfo {
 	 *  If we have less entries than that, throw IllegalArgumentException.
 	 */
 	public double variance(TPItemInfo.Attribute attr, int N, DoubleFunction func) {
-		double mean = mean(attr, N, func);
-		return mean(attr, N, (double x) -> Math.pow(func.apply(x) - mean, 2));
+		if (N > history.size() || N <= 0) {
+			throw new IllegalArgumentException("Want variance of " + N + " but history"
+					+ " only contains " + history.size());
+		}
+		return stats(attr, N, func).variance();
 	}
 	
 	/** Get the variance of TPItemInfo attribute over the most recent N history entries.
@@ -162,16 +158,18 @@ public class ItemInfo {
 			throw new IllegalArgumentException("Want median of " + N + " but history"
 					+ " only contains " + history.size());
 		}
-		List<Double> vals = new ArrayList<Double>();
-		for (int i = 0; i < N; i++) vals.add(func.apply(history.get(i).get(attr)));
-		Collections.sort(vals);
+		int[] column = history.column(attr);
+		int off = history.offset();
+		double[] vals = new double[N];
+		for (int i = 0; i < N; i++) vals[i] = func.apply(column[off + i]);
+		Arrays.sort(vals);
 		// Even-sized list means take average of center two values.
-		if (vals.size() % 2 == 0) {
-			return (vals.get(vals.size()/2) + vals.get(vals.size()/2 -1))/2;
+		if (N % 2 == 0) {
+			return (vals[N/2] + vals[N/2 - 1])/2;
 		}
 		// Odd-sized list means take the center value.
 		else{
-			return vals.get(vals.size()/2);
+			return vals[N/2];
 		}
 	}
 	
@@ -189,11 +187,18 @@ public class ItemInfo {
 			throw new IllegalArgumentException("Want avg slope of " + N + " but history"
 					+ " only contains " + history.size());
 		}
-		if (N == 1) return 0;	// Special case: only one data point means no slope.
-		double sum = 0;
-		for (int i = 1; i < N; i++) {
-			sum += history.get(i).get(attr) - history.get(i-1).get(attr);
+		return stats(attr, N, (double x) -> x).slope();
+	}
+	
+	/** Accumulate a function of TPItemInfo attribute attr over the most recent N history
+	 *  entries, in one pass. N must be at most the size of the history. */
+	private RunningStats stats(TPItemInfo.Attribute attr, int N, DoubleFunction func) {
+		int[] column = history.column(attr);
+		int off = history.offset();
+		RunningStats stats = new RunningStats();
+		for (int i = 0; i < N; i++) {
+			stats.add(func.apply(column[off + i]));
 		}
-		return sum / (N - 1);
+		return stats;
 	}
 }
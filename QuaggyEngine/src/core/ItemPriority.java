@@ -0,0 +1,59 @@
+package core;
+
+import core.FeatureVector.Feature;
+import core.FeatureVector.Mode;
+import core.TPItemInfo.Attribute;
+
+/** Scores how urgently an item's features need recomputing, so FeatureStore can
+ *  work on the items that matter most to traders first.
+ *
+ *  An item scores higher the more its price moved since we last computed it,
+ *  the more orders it has, and the further its price was from its usual range
+ *  (the size of its last z-scores). Each cycle an item waits adds to its score,
+ *  so quiet items are still refreshed eventually.
+ * @author Ryan Pindulic
+ */
+public class ItemPriority {
+	
+	/** Items scoring below this are quiet, and may wait a few cycles to be recomputed. */
+	public static final double QUIET_SCORE = 3;
+	
+	/** Score for each 1% move in buy or sell price. */
+	private static final double CHANGE_WEIGHT = 100;
+	/** Score for each factor of 10 in the number of buy and sell orders. */
+	private static final double VOLUME_WEIGHT = 1;
+	/** Score for each standard deviation the price was from its mean. */
+	private static final double ZSCORE_WEIGHT = 1;
+	/** Score for each cycle since the item was last recomputed. */
+	private static final double AGE_WEIGHT = 1;
+	
+	private ItemPriority() {}
+	
+	/** Score an item whose snapshot row is now row. last is the row its features were
+	 *  last computed from, features are those features, and age is how many cycles ago
+	 *  that was. If the item has never been computed, last and features are null,
+	 *  and it scores infinitely high.
+	 */
+	public static double score(TPItemInfo row, TPItemInfo last, ItemFeatures features, int age) {
+		if (last == null || features == null) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double change = change(row.get(Attribute.BuyPrice), last.get(Attribute.BuyPrice)) +
+				change(row.get(Attribute.SellPrice), last.get(Attribute.SellPrice));
+		double volume = Math.log10(1 + row.get(Attribute.NumBuy) + row.get(Attribute.NumSell));
+		// The shortest history and instant modes react fastest to the market.
+		FeatureVector fv = features.get(0, Mode.INSTANT, Mode.INSTANT);
+		double z = Math.max(abs(fv.get(Feature.ZScoreBuyPrice)), abs(fv.get(Feature.ZScoreSellPrice)));
+		return CHANGE_WEIGHT * change + VOLUME_WEIGHT * volume + ZSCORE_WEIGHT * z + AGE_WEIGHT * age;
+	}
+	
+	/** Fractional change from old to val, or 0 if old is 0. */
+	private static double change(double val, double old) {
+		return (old == 0) ? 0 : Math.abs(val - old) / old;
+	}
+	
+	/** Absolute value of x, or 0 if x is NaN. */
+	private static double abs(double x) {
+		return Double.isNaN(x) ? 0 : Math.abs(x);
+	}
+}
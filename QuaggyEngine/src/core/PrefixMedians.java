@@ -0,0 +1,100 @@
+package core;
+
+import java.util.Arrays;
+
+/** Medians of every prefix of a sequence of ints, such as a history column
+ *  read from newest to oldest, where every window is a prefix.
+ *
+ *  The values are sorted once, and a Fenwick tree counts how many of the values
+ *  added so far have each rank. Adding the next value and finding the median
+ *  of everything added so far are then both O(log n), rather than sorting the
+ *  prefix again for every window. Arrays are kept between calls to reset(),
+ *  so a single instance can be reused for many sequences without allocating.
+ */
+public class PrefixMedians {
+	
+	private int[] values;		// The sequence
+	private int off;			// Index of its first value
+	private int length;			// Number of values in the sequence
+	private int[] sorted;		// The values of the sequence, sorted
+	private int[] tree;			// Fenwick tree of counts, indexed by rank in sorted (1-based)
+	private int size;			// Number of values added so far
+	
+	/** Create an instance with room for sequences of up to capacity values. */
+	public PrefixMedians(int capacity) {
+		this.sorted = new int[capacity];
+		this.tree = new int[capacity + 1];
+	}
+	
+	/** Start on the length values of the array values from off. Nothing is added yet. */
+	public void reset(int[] values, int off, int length) {
+		if (length > sorted.length) {
+			sorted = new int[length];
+			tree = new int[length + 1];
+		}
+		System.arraycopy(values, off, sorted, 0, length);
+		Arrays.sort(sorted, 0, length);
+		Arrays.fill(tree, 0, length + 1, 0);
+		this.values = values;
+		this.off = off;
+		this.length = length;
+		this.size = 0;
+	}
+	
+	/** Number of values added so far. */
+	public int size() {
+		return size;
+	}
+	
+	/** Add the next value of the sequence.
+	 *  Throws IllegalArgumentException if every value has been added. */
+	public void push() {
+		if (size == length) {
+			throw new IllegalArgumentException("PrefixMedians : no values left to add");
+		}
+		// Equal values all count towards the rank of the first of them.
+		int rank = lowerBound(values[off + size]) + 1;
+		for (int i = rank; i <= length; i += i & -i) {
+			tree[i]++;
+		}
+		size++;
+	}
+	
+	/** Median of the values added so far.
+	 *  Throws IllegalArgumentException if none have been added. */
+	public double median() {
+		if (size == 0) {
+			throw new IllegalArgumentException("PrefixMedians : no values to take the median of");
+		}
+		// Even count means take average of center two values.
+		if (size % 2 == 0) {
+			return ((double) smallest(size / 2) + smallest(size / 2 + 1)) / 2;
+		}
+		// Odd count means take the center value.
+		return smallest(size / 2 + 1);
+	}
+	
+	/** The kth smallest (1-based) of the values added so far. */
+	private int smallest(int k) {
+		// Walk down the tree, finding the last rank with fewer than k values at or before it.
+		int pos = 0;
+		for (int step = Integer.highestOneBit(length); step > 0; step >>= 1) {
+			if (pos + step <= length && tree[pos + step] < k) {
+				pos += step;
+				k -= tree[pos];
+			}
+		}
+		return sorted[pos];
+	}
+	
+	/** Index of the first sorted value >= val. */
+	private int lowerBound(int val) {
+		int lo = 0, hi = length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < val) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+}
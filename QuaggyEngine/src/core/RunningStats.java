@@ -0,0 +1,79 @@
+package core;
+
+/** Count, mean, variance and slope of a sequence of values, kept up to date
+ *  one value at a time (Welford's method), so a column only has to be read once.
+ *  Unlike summing squares, the variance stays accurate however large the values.
+ *
+ *  Two accumulators over consecutive parts of a sequence can be merged, giving
+ *  the same statistics as one accumulator over the whole sequence (up to rounding).
+ *  That way parts of a sequence can be accumulated separately, ie on other threads.
+ */
+public class RunningStats {
+	
+	private long count;			// Number of values so far
+	private double mean;		// Mean of the values so far
+	private double m2;			// Sum of squared differences from the mean
+	private double first;		// First value in the sequence
+	private double last;		// Last value in the sequence
+	
+	/** Create an accumulator with no values. */
+	public RunningStats() {
+		clear();
+	}
+	
+	/** Forget every value. */
+	public void clear() {
+		count = 0;
+		mean = 0;
+		m2 = 0;
+		first = 0;
+		last = 0;
+	}
+	
+	/** Add the next value in the sequence. */
+	public void add(double x) {
+		if (count == 0) {
+			first = x;
+		}
+		last = x;
+		count++;
+		double delta = x - mean;
+		mean += delta / count;
+		m2 += delta * (x - mean);
+	}
+	
+	/** Add every value of other, which must be the part of the sequence right after ours. */
+	public void merge(RunningStats other) {
+		if (other.count == 0) return;
+		if (count == 0) {
+			first = other.first;
+		}
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / total;
+		m2 += other.m2 + delta * delta * count * other.count / total;
+		last = other.last;
+		count = total;
+	}
+	
+	/** Number of values added. */
+	public long count() {
+		return count;
+	}
+	
+	/** Mean of the values added, or 0 if there are none. */
+	public double mean() {
+		return mean;
+	}
+	
+	/** Variance (over the whole population) of the values added, or 0 if there are none. */
+	public double variance() {
+		return (count == 0) ? 0 : m2 / count;
+	}
+	
+	/** Average change from one value to the next, or 0 if there are fewer than two.
+	 *  The changes telescope, so this only needs the first and last values. */
+	public double slope() {
+		return (count < 2) ? 0 : (last - first) / (count - 1);
+	}
+}
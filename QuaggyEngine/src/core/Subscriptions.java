@@ -0,0 +1,187 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import core.FeatureVector.Feature;
+
+/** Standing filters: each keeps the set of items that pass it, and its listener is told
+ *  whenever items start or stop passing, so nobody has to keep running the same filter.
+ *
+ *  Each cycle FeatureStore hands us only the items it recomputed and the items it
+ *  dropped, and only those are checked again against each filter (see Filter.matches()).
+ *  A subscription's filter is answered over every item passing it, so its Limit and
+ *  After are ignored.
+ * @author Ryan Pindulic
+ */
+public class Subscriptions {
+	
+	/** Told when the items passing a subscription's filter change. */
+	public interface Listener {
+		/** Items started or stopped passing the filter of the given subscription.
+		 *  added holds the features of those that started, each indexed by Feature ordinal,
+		 *  in the filter's order. removed holds the IDs of those that stopped, ascending.
+		 *  Called on the thread computing features, so it should return quickly. */
+		public void matchesChanged(int subscription, List<double[]> added, List<Integer> removed);
+		
+		/** Every item passing the filter of the given subscription, in the filter's order, in
+		 *  answer to resync(). Anything the listener was told before about it is stale.
+		 *  Called with the subscriptions locked, so no change is told in between. */
+		public void matchesReset(int subscription, List<double[]> matches);
+		
+		/** The given subscription was stopped, so nothing more will be told about it. */
+		public void unsubscribed(int subscription);
+	}
+	
+	/** A filter, who to tell about it, and the IDs of the items passing it. */
+	private static class Subscription {
+		private Filter filter;
+		private int window;					// Index of the history window the filter is over
+		private Listener listener;
+		private Set<Integer> matches = new HashSet<Integer>();
+		
+		private Subscription(Filter filter, int window, Listener listener) {
+			this.filter = filter;
+			this.window = window;
+			this.listener = listener;
+		}
+	}
+	
+	private FeatureIndex index;
+	private Map<Integer, Subscription> subscriptions = new HashMap<Integer, Subscription>();
+	private int nextId = 1;
+	
+	/** Create an empty set of subscriptions over the items in index. */
+	public Subscriptions(FeatureIndex index) {
+		this.index = index;
+	}
+	
+	/** Start keeping track of the items passing filter, and return the new subscription's ID.
+	 *  The listener is told about every item passing it right away, as added. */
+	public synchronized int subscribe(Filter filter, Listener listener) {
+		Filter all = filter.withoutPage();
+		Subscription subscription = new Subscription(all, index.window(all.historyDays()), listener);
+		int id = nextId++;
+		subscriptions.put(id, subscription);
+		List<double[]> added = index.query(all).items();
+		for (double[] values : added) {
+			subscription.matches.add((int) values[Feature.ItemID.ordinal()]);
+		}
+		notify(id, subscription, added, Collections.<Integer>emptyList());
+		return id;
+	}
+	
+	/** Stop tracking a subscription. Returns false if there was no such subscription. */
+	public synchronized boolean unsubscribe(int id) {
+		Subscription subscription = subscriptions.remove(id);
+		if (subscription == null) {
+			return false;
+		}
+		try {
+			subscription.listener.unsubscribed(id);
+		}
+		catch (RuntimeException e) {
+			System.out.println("Failed to notify subscription " + id + " : " + e);
+		}
+		return true;
+	}
+	
+	/** Tell a subscription's listener every item passing its filter again, for when it may
+	 *  have missed changes. Returns false if there was no such subscription. */
+	public synchronized boolean resync(int id) {
+		Subscription subscription = subscriptions.get(id);
+		if (subscription == null) {
+			return false;
+		}
+		// Only the items we've told the listener about, so the changes after this still add up.
+		List<double[]> matches = new ArrayList<double[]>();
+		for (double[] values : index.query(subscription.filter).items()) {
+			if (subscription.matches.contains((int) values[Feature.ItemID.ordinal()])) {
+				matches.add(values);
+			}
+		}
+		try {
+			subscription.listener.matchesReset(id, matches);
+		}
+		catch (RuntimeException e) {
+			System.out.println("Failed to notify subscription " + id + " : " + e);
+		}
+		return true;
+	}
+	
+	/** Number of subscriptions. */
+	public synchronized int size() {
+		return subscriptions.size();
+	}
+	
+	/** Check every subscription against the items whose features changed and the IDs
+	 *  of items we no longer have features for, and tell each listener what changed. */
+	public synchronized void update(List<ItemFeatures> changed, Collection<Integer> removed) {
+		for (Map.Entry<Integer, Subscription> entry : subscriptions.entrySet()) {
+			Subscription subscription = entry.getValue();
+			Filter filter = subscription.filter;
+			List<double[]> added = new ArrayList<double[]>();
+			List<Integer> dropped = new ArrayList<Integer>();
+			for (ItemFeatures item : changed) {
+				FeatureVector fv = item.get(subscription.window, filter.buyMode(), filter.sellMode());
+				boolean passes = filter.matches(fv);
+				if (passes && subscription.matches.add(item.getId())) {
+					added.add(values(fv));
+				}
+				else if (!passes && subscription.matches.remove(item.getId())) {
+					dropped.add(item.getId());
+				}
+			}
+			for (int id : removed) {
+				if (subscription.matches.remove(id)) {
+					dropped.add(id);
+				}
+			}
+			sort(filter, added);
+			Collections.sort(dropped);
+			notify(entry.getKey(), subscription, added, dropped);
+		}
+	}
+	
+	/** Tell a subscription's listener about a change, if there was one.
+	 *  A listener that fails doesn't stop the others from being told. */
+	private static void notify(int id, Subscription subscription, List<double[]> added, List<Integer> removed) {
+		if (added.isEmpty() && removed.isEmpty()) {
+			return;
+		}
+		try {
+			subscription.listener.matchesChanged(id, added, removed);
+		}
+		catch (RuntimeException e) {
+			System.out.println("Failed to notify subscription " + id + " : " + e);
+		}
+	}
+	
+	/** Sort features into the filter's order (see Filter.compare()). */
+	private static void sort(final Filter filter, List<double[]> items) {
+		final int sort = filter.sortFeature().ordinal();
+		final int id = Feature.ItemID.ordinal();
+		Collections.sort(items, new Comparator<double[]>() {
+			@Override
+			public int compare(double[] a, double[] b) {
+				return filter.compare(a[sort], (int) a[id], b[sort], (int) b[id]);
+			}
+		});
+	}
+	
+	/** The values of a feature vector, indexed by Feature ordinal. */
+	private static double[] values(FeatureVector fv) {
+		double[] values = new double[Feature.values().length];
+		for (Feature f : Feature.values()) {
+			values[f.ordinal()] = fv.get(f);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,243 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** The trading post history of a single item, stored by column.
+ *  Rather than keeping one TPItemInfo object per moment in history, every
+ *  TPItemInfo attribute is kept in its own primitive array, along with an
+ *  array of timestamps in seconds since 1970-01-01 00:00:00 (see DateTime).
+ *
+ *  Entries are sorted from newest -> oldest, so index 0 is the most recent.
+ *  Statistics code should read the columns directly; TPItemInfo objects
+ *  are only created on request.
+ *
+ *  The entries sit at the back of the arrays, starting at offset(), with free
+ *  space in front of them. That way the newest entry can be added in O(1) by
+ *  moving the start back one, and the oldest k removed in O(k) by shrinking
+ *  the size, while every column stays contiguous and newest first.
+ *  When the space in front runs out, the entries are moved to the back of
+ *  arrays at least twice their size, so adding is amortized O(1).
+ */
+public class TPHistory implements Iterable<TPItemInfo> {
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	// Bits used for the row number when sorting rows by time.
+	private static final int ROW_BITS = 24;
+	private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+	
+	private int itemID;				// Item's unique ID
+	private int[][] columns;		// Indexed by [attribute ordinal][entry]
+	private long[] times;			// Time of each entry, in epoch seconds
+	private int start;				// Index of the newest entry in the arrays
+	private int size;				// Number of entries in use
+	
+	/** Create an empty history for the item with the given ID. */
+	public TPHistory(int itemID) {
+		this(itemID, INITIAL_CAPACITY);
+	}
+	
+	/** Create an empty history with room for capacity entries. */
+	private TPHistory(int itemID, int capacity) {
+		this.itemID = itemID;
+		this.columns = new int[TPItemInfo.Attribute.values().length][capacity];
+		this.times = new long[capacity];
+		this.start = 0;
+		this.size = 0;
+	}
+	
+	/** Create a history for the item with the given ID from a list of
+	 *  listings, in any order. */
+	public TPHistory(int itemID, List<TPItemInfo> listings) {
+		this(itemID, Math.max(listings.size(), INITIAL_CAPACITY));
+		List<TPItemInfo> sorted = new ArrayList<TPItemInfo>(listings);
+		Collections.sort(sorted);
+		for (TPItemInfo info : sorted) {
+			append(info.time().toEpochSeconds(), info);
+		}
+	}
+	
+	/** Create a history for the item with the given ID from the first size
+	 *  entries of a set of columns, in any order. The arrays are copied.
+	 *  Columns are indexed by TPItemInfo.Attribute ordinal.
+	 *  Throws IllegalArgumentException if there are more than 2^24 entries.
+	 */
+	public TPHistory(int itemID, long[] times, int[][] columns, int size) {
+		this(itemID, Math.max(size, INITIAL_CAPACITY));
+		if (size > ROW_MASK) {
+			throw new IllegalArgumentException("TPHistory : too many entries for item " + itemID);
+		}
+		// Order the rows newest first. Packing the time (relative to the oldest entry)
+		// and the row number into one long lets us sort them without boxing.
+		long oldest = Long.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			oldest = Math.min(oldest, times[i]);
+		}
+		long[] order = new long[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = ((times[i] - oldest) << ROW_BITS) | (size - 1 - i);
+		}
+		Arrays.sort(order);
+		for (int i = 0; i < size; i++) {
+			int row = size - 1 - (int)(order[size - 1 - i] & ROW_MASK);
+			for (int a = 0; a < this.columns.length; a++) {
+				this.columns[a][i] = columns[a][row];
+			}
+			this.times[i] = times[row];
+		}
+		this.size = size;
+	}
+	
+	/** Copy constructor. */
+	public TPHistory(TPHistory other) {
+		this(other.itemID, Math.max(other.size, INITIAL_CAPACITY));
+		for (int a = 0; a < columns.length; a++) {
+			System.arraycopy(other.columns[a], other.start, columns[a], 0, other.size);
+		}
+		System.arraycopy(other.times, other.start, times, 0, other.size);
+		this.size = other.size;
+	}
+	
+	/** Number of entries in this history. */
+	public int size() {
+		return size;
+	}
+	
+	/** Gets the value of attribute attr in the ith newest entry. */
+	public int get(TPItemInfo.Attribute attr, int i) {
+		return columns[attr.ordinal()][start + i];
+	}
+	
+	/** Gets the time of the ith newest entry, in epoch seconds. */
+	public long time(int i) {
+		return times[start + i];
+	}
+	
+	/** Index of the newest entry in the arrays returned by column() and times(). */
+	public int offset() {
+		return start;
+	}
+	
+	/** Returns the backing array for the given attribute, newest first.
+	 *  Only the size() values from offset() on are meaningful, and the array must not be modified.
+	 */
+	public int[] column(TPItemInfo.Attribute attr) {
+		return columns[attr.ordinal()];
+	}
+	
+	/** Returns the backing array of entry times, newest first.
+	 *  Only the size() values from offset() on are meaningful, and the array must not be modified.
+	 */
+	public long[] times() {
+		return times;
+	}
+	
+	/** Builds a TPItemInfo for the ith newest entry. */
+	public TPItemInfo get(int i) {
+		int[] attrs = new int[columns.length];
+		for (int a = 0; a < columns.length; a++) {
+			attrs[a] = columns[a][start + i];
+		}
+		return new TPItemInfo(itemID, attrs, DateTime.fromEpochSeconds(times[start + i]));
+	}
+	
+	/** Adds a listing to this history, keeping entries sorted by time. */
+	public void add(TPItemInfo info) {
+		int[] attrs = new int[columns.length];
+		for (TPItemInfo.Attribute attr : TPItemInfo.Attribute.values()) {
+			attrs[attr.ordinal()] = info.get(attr);
+		}
+		add(info.time().toEpochSeconds(), attrs);
+	}
+	
+	/** Adds an entry at the given time (epoch seconds) with attribute values
+	 *  indexed by TPItemInfo.Attribute ordinal, keeping entries sorted by time.
+	 *  O(1) (amortized) if the entry is newer than every other, as it is when
+	 *  adding the current state of the TP.
+	 */
+	public void add(long time, int[] attrs) {
+		if (start == 0) {
+			makeRoom();
+		}
+		// Find how many entries are at least as new as the new one. Usually none.
+		int pos = 0;
+		while (pos < size && times[start + pos] >= time) {
+			pos++;
+		}
+		// Move those forward one, and put the new entry after them.
+		start--;
+		for (int a = 0; a < columns.length; a++) {
+			System.arraycopy(columns[a], start + 1, columns[a], start, pos);
+			columns[a][start + pos] = attrs[a];
+		}
+		System.arraycopy(times, start + 1, times, start, pos);
+		times[start + pos] = time;
+		size++;
+	}
+	
+	/** Append a listing that is no newer than every entry so far.
+	 *  Only used while building a history, when the entries start at 0. */
+	private void append(long time, TPItemInfo info) {
+		for (TPItemInfo.Attribute attr : TPItemInfo.Attribute.values()) {
+			columns[attr.ordinal()][size] = info.get(attr);
+		}
+		times[size++] = time;
+	}
+	
+	/** Removes every entry older than firstTime (in epoch seconds).
+	 *  Takes time proportional to the number removed. */
+	public void purge(long firstTime) {
+		// Entries are sorted, so the old ones are all at the end.
+		while (size > 0 && times[start + size - 1] < firstTime) {
+			size--;
+		}
+		if (size == 0) {
+			start = times.length;
+		}
+	}
+	
+	/** Move the entries to the back of the arrays, so that there is at least as
+	 *  much free space in front of them as there are entries. Grows the arrays if needed. */
+	private void makeRoom() {
+		int capacity = Math.max(INITIAL_CAPACITY, 2 * (size + 1));
+		if (capacity < times.length) {
+			capacity = times.length;
+		}
+		int newStart = capacity - size;
+		for (int a = 0; a < columns.length; a++) {
+			int[] column = (capacity == times.length) ? columns[a] : new int[capacity];
+			System.arraycopy(columns[a], start, column, newStart, size);
+			columns[a] = column;
+		}
+		long[] newTimes = (capacity == times.length) ? times : new long[capacity];
+		System.arraycopy(times, start, newTimes, newStart, size);
+		times = newTimes;
+		start = newStart;
+	}
+	
+	/** Iterates over the entries as TPItemInfo objects, newest first. */
+	@Override
+	public Iterator<TPItemInfo> iterator() {
+		return new Iterator<TPItemInfo>() {
+			private int next = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+			
+			@Override
+			public TPItemInfo next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				return get(next++);
+			}
+		};
+	}
+}
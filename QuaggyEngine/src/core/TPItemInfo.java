@@ -1,8 +1,5 @@
 package core;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-
 /** Trading post information for a single GW2 item, at a snapshot
  *  in time. 
  *  @author Ryan Pindulic
@@ -28,14 +25,20 @@ public class TPItemInfo implements Comparable<TPItemInfo> {
 	private int[] attrs;	// Store attributes relevant to this TP listing
 	
 	private int itemID;				// Item's unique ID
-	private String timestamp;		// Timestamp at which this info was taken
+	private DateTime time;			// Time at which this info was taken
 	
 	/** Constructor for creating a TPInfo object 
 	 *  without sell or buy listings. */
 	public TPItemInfo(int id, int numBuy, int buyPrice, int numSell, int sellPrice, String timestamp) {
+		this(id, numBuy, buyPrice, numSell, sellPrice, new DateTime(timestamp));
+	}
+	
+	/** Constructor for creating a TPInfo object 
+	 *  without sell or buy listings, at an already parsed time. */
+	public TPItemInfo(int id, int numBuy, int buyPrice, int numSell, int sellPrice, DateTime time) {
 		this.attrs = new int[Attribute.values().length];
 		this.itemID = id;
-		this.timestamp = timestamp;
+		this.time = time;
 		
 		attrs[Attribute.NumBuy.ordinal()] = numBuy;
 		attrs[Attribute.BuyPrice.ordinal()] = buyPrice;
@@ -55,19 +58,25 @@ public class TPItemInfo implements Comparable<TPItemInfo> {
 	 *  or sell listings and without timestamp. Current
 	 *  time will be used instead. */
 	public TPItemInfo(int id, int numBuy, int buyPrice, int numSell, int sellPrice) {
-		this(id, numBuy, buyPrice, numSell, sellPrice, 
-				new SimpleDateFormat("yyyyMMdd_HHmmss").format(Calendar.getInstance().getTime()));
+		this(id, numBuy, buyPrice, numSell, sellPrice, DateTime.current());
 	}
 	
 	/** Constructor for creating a TPInfo object with the attributes as an array.
 	 *  Throws IllegalArgumentException if array length incorrect */
 	public TPItemInfo(int id, int[] attrs, String timestamp) {
+		this(id, attrs, new DateTime(timestamp));
+	}
+	
+	/** Constructor for creating a TPInfo object with the attributes as an array,
+	 *  at an already parsed time.
+	 *  Throws IllegalArgumentException if array length incorrect */
+	public TPItemInfo(int id, int[] attrs, DateTime time) {
 		if (attrs.length != Attribute.values().length) {
 			throw new IllegalArgumentException("TPItemInfo : provided attributes array wrong length");
 		}
 		this.itemID = id;
 		this.attrs = attrs;
-		this.timestamp = timestamp;
+		this.time = time;
 	}
 	
 	/** Gets the value of a given attribute. */
@@ -82,7 +91,7 @@ public class TPItemInfo implements Comparable<TPItemInfo> {
 	
 	@Override
 	public String toString() {
-		return "Item " + itemID + " at " + timestamp + " : " + get(Attribute.NumBuy) + 
+		return "Item " + itemID + " at " + time + " : " + get(Attribute.NumBuy) + 
 				" buy offers at " + get(Attribute.BuyPrice) + " per, " + 
 				get(Attribute.NumSell) + " sell offers at " + get(Attribute.SellPrice) + " per.";
 	}
@@ -92,9 +101,7 @@ public class TPItemInfo implements Comparable<TPItemInfo> {
 	 */
 	@Override
 	public int compareTo(TPItemInfo that) {
-		DateTime ours = new DateTime(timestamp);
-		DateTime theirs = new DateTime(that.timestamp);
-		return -1 * ours.compareTo(theirs);
+		return -1 * time.compareTo(that.time);
 	}
 	
 	/** Gets the ID of the item associated with this listing. */
@@ -104,7 +111,7 @@ public class TPItemInfo implements Comparable<TPItemInfo> {
 	
 	/** Return the date/time at which this measurement was taken. */
 	public DateTime time() {
-		return new DateTime(timestamp);
+		return time;
 	}
 	
 }
@@ -3,8 +3,9 @@ package executables;
 import io.DB;
 import io.SpidyAPI;
 
-/** Wipes the database's history and resyncs
- *  from SpidyAPI. Will take a very long time.
+/** Resyncs the database's history from SpidyAPI.
+ *  Will take a very long time, but if stopped it picks up where it left off
+ *  the next time it is run. Pass "fresh" to wipe the history and start over.
  * @author Ryan
  *
  */
@@ -14,6 +15,7 @@ public class DBHistorySync {
 	public static final int HISTORY_HORIZON = 3;
 	
 	public static void main(String[]args) {
-		new SpidyAPI().resyncHistory(new DB(), true, HISTORY_HORIZON);
+		boolean fresh = args.length > 0 && args[0].equals("fresh");
+		new SpidyAPI().resyncHistory(new DB(), fresh, HISTORY_HORIZON);
 	}
 }
@@ -1,15 +1,33 @@
 package executables;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import core.FeatureStore;
 import core.ItemDB;
 import core.TPSnapshot;
 import io.API;
 import io.DB;
+import io.FilterServer;
+import io.SnapshotServer;
 import io.SpidyAPI;
 
 /** Repeatedly calls DPUpdate to fetch and store a new
  *  snapshot of the TP, then forwards updated feature
  *  information to the T1 servers.
+ *
+ *  Each cycle runs as a pipeline of stages, each on its own thread:
+ *  a snapshot is fetched once every MINUTES_WAIT minutes, on the minute,
+ *  however long the other stages take. Features are then computed from it
+ *  while the next snapshot is being fetched, and every few cycles the
+ *  snapshot is saved to the DB in the background.
+ *  If computing falls behind, only the newest snapshot waiting for it is used.
  * @author Ryan
  *
  */
@@ -22,40 +40,125 @@ public class QuaggyEngine {
 	
 	// How many minutes to wait between each update.
 	private static final int MINUTES_WAIT = 1;
+	// How long each stage may take before we warn about it, in ms.
+	private static final long STAGE_BUDGET_MILLIS = TimeUnit.MINUTES.toMillis(MINUTES_WAIT);
+	// How long to spend computing features each cycle, leaving time to send them.
+	private static final long COMPUTE_BUDGET_MILLIS = STAGE_BUDGET_MILLIS * 3 / 4;
 	// The number of days of history to store in main memory.
 	private static final int HISTORY_HORIZON = 30;
 	// We should store the history 1 out of every X cycles
 	private static final int HISTORY_CYCLES = 5;
+	// The number of threads to compute feature vectors with.
+	private static final int FEATURE_THREADS = Runtime.getRuntime().availableProcessors();
+	// Where to keep the snapshot of every feature, and the address edge servers download it from.
+	// Each can be overridden with a system property, ie -Dquaggy.snapshot.port=8090
+	// Only served on loopback unless quaggy.snapshot.host says otherwise, ie 0.0.0.0 for every interface.
+	private static final Path SNAPSHOT_FILE = Paths.get(System.getProperty("quaggy.snapshot.file", "features.snapshot"));
+	private static final String SNAPSHOT_HOST = System.getProperty("quaggy.snapshot.host", "localhost");
+	private static final int SNAPSHOT_PORT = Integer.getInteger("quaggy.snapshot.port", 8090);
+	// The address to answer filters on, ie -Dquaggy.filter.port=8091
+	// Only on loopback unless quaggy.filter.host says otherwise, since nothing there is authenticated.
+	private static final String FILTER_HOST = System.getProperty("quaggy.filter.host", "localhost");
+	private static final int FILTER_PORT = Integer.getInteger("quaggy.filter.port", 8091);
+	
+	private static DB db;
+	private static API api;
+	// The newest snapshot fetched but not yet computed, if any.
+	private static AtomicReference<TPSnapshot> pending = new AtomicReference<TPSnapshot>();
+	// Number of cycles computed since we last saved a snapshot. Only used by the compute stage.
+	private static int cycle = 0;
+	
+	// One thread per stage, so each stage runs in order but they overlap one another.
+	private static ScheduledExecutorService fetcher = Executors.newSingleThreadScheduledExecutor();
+	private static ExecutorService computer = Executors.newSingleThreadExecutor();
+	private static ExecutorService persister = Executors.newSingleThreadExecutor();
 	
 	public static void main(String[]args) {
 		
 		//Get the current state
-		DB db = new DB();
-		API api = new SpidyAPI();
+		db = new DB();
+		api = new SpidyAPI();
 		items = db.getItemDB(HISTORY_HORIZON);
-		features = new FeatureStore();
+		features = new FeatureStore(FEATURE_THREADS);
+		features.setSnapshotFile(SNAPSHOT_FILE);
+		features.setCycleBudgetMillis(COMPUTE_BUDGET_MILLIS);
+		try {
+			new SnapshotServer(SNAPSHOT_HOST, SNAPSHOT_PORT, SNAPSHOT_FILE);
+		} catch (IOException e) {
+			System.out.println("Could not serve snapshots on port " + SNAPSHOT_PORT + " : " + e);
+		}
+		try {
+			new FilterServer(FILTER_HOST, FILTER_PORT, features.index(), features.subscriptions());
+		} catch (IOException e) {
+			System.out.println("Could not answer filters on port " + FILTER_PORT + " : " + e);
+		}
 		
 		//Continuously update
-		int cycle = 0;
-		while (true) {
-			try {
-				TPSnapshot snapshot = api.snapshot();
-				features.load(items, snapshot);
-				items.purge(HISTORY_HORIZON);
-				if (++cycle == HISTORY_CYCLES) {
-					cycle = 0;
-					items.addCurrentState(snapshot);
-					db.saveTPSnapshot(snapshot);
-				}
-				
-				System.out.println();
-				System.out.println("Database updated");
-				System.out.println();
-				
-				Thread.sleep(1000 * 60 * MINUTES_WAIT);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		fetcher.scheduleAtFixedRate(QuaggyEngine::fetch, 0, MINUTES_WAIT, TimeUnit.MINUTES);
+	}
+	
+	/** Fetch a new snapshot and hand it to the compute stage. */
+	private static void fetch() {
+		try {
+			long start = System.nanoTime();
+			TPSnapshot snapshot = api.snapshot();
+			logStage("Fetching snapshot", start);
+			if (pending.getAndSet(snapshot) == null) {
+				computer.execute(QuaggyEngine::compute);
 			}
+			else {
+				System.out.println("Computing features is behind, skipping an older snapshot");
+			}
+		} catch (RuntimeException e) {
+			// If this escapes, the executor never runs us again.
+			System.out.println("Failed to fetch snapshot : " + e);
+		}
+	}
+	
+	/** Compute and send features for the newest snapshot, and occasionally save it. */
+	private static void compute() {
+		TPSnapshot snapshot = pending.getAndSet(null);
+		try {
+			long start = System.nanoTime();
+			features.load(items, snapshot);
+			items.purge(HISTORY_HORIZON);
+			if (++cycle == HISTORY_CYCLES) {
+				cycle = 0;
+				items.addCurrentState(snapshot);
+				persister.execute(() -> persist(snapshot));
+			}
+			logStage("Computing features", start);
+			
+			System.out.println();
+			System.out.println("Database updated");
+			System.out.println(db.pool());
+			System.out.println(features.broadcastStats());
+			System.out.println();
+		} catch (RuntimeException e) {
+			System.out.println("Failed to compute features : " + e);
+			e.printStackTrace();
+		}
+	}
+	
+	/** Save a snapshot to the DB. */
+	private static void persist(TPSnapshot snapshot) {
+		try {
+			long start = System.nanoTime();
+			db.saveTPSnapshot(snapshot);
+			logStage("Saving snapshot", start);
+		} catch (RuntimeException e) {
+			System.out.println("Failed to save snapshot : " + e);
+		}
+	}
+	
+	/** Print how long a stage took since start (from System.nanoTime()),
+	 *  warning if it took longer than a whole cycle. */
+	private static void logStage(String stage, long start) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		System.out.println(stage + " took " + millis + "ms");
+		if (millis > STAGE_BUDGET_MILLIS) {
+			System.out.println("WARNING : " + stage + " overran the " + MINUTES_WAIT + " minute cycle by " +
+					(millis - STAGE_BUDGET_MILLIS) + "ms");
 		}
 	}
 }
@@ -0,0 +1,202 @@
+package io;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.text.DecimalFormat;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A bounded pool of JDBC connections to a single database.
+ *  Each operation borrows a connection, uses it, and hands it back, so
+ *  several threads can talk to the DB at once without sharing a socket.
+ *  Connections are opened lazily, up to the size of the pool.
+ *
+ *  Also keeps track of how long callers wait for a connection and how
+ *  many connections are in use, which is useful for sizing the pool.
+ * @author Ryan Pindulic
+ */
+public class ConnectionPool {
+	
+	private String url;						// JDBC url of the database
+	private Properties connectionProps;		// User, password, and driver settings
+	private long timeoutMillis;				// How long to wait for a free connection
+	private int size;						// Maximum number of open connections
+	
+	private LinkedBlockingDeque<Connection> idle;	// Open connections not in use
+	private Semaphore permits;						// One permit per connection we may hand out
+	private volatile boolean closed = false;
+	
+	// Metrics
+	private AtomicInteger active = new AtomicInteger();
+	private AtomicLong borrows = new AtomicLong();
+	private AtomicLong timeouts = new AtomicLong();
+	private AtomicLong totalWaitNanos = new AtomicLong();
+	private AtomicLong maxWaitNanos = new AtomicLong();
+	
+	/** Create a pool of at most size connections to url, waiting at most
+	 *  timeoutMillis for a connection to become free.
+	 *
+	 *  Throws IllegalArgumentException if size < 1 or timeoutMillis < 0.
+	 */
+	public ConnectionPool(String url, Properties connectionProps, int size, long timeoutMillis) {
+		if (size < 1) {
+			throw new IllegalArgumentException("ConnectionPool : size must be positive");
+		}
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("ConnectionPool : timeout must not be negative");
+		}
+		this.url = url;
+		this.connectionProps = connectionProps;
+		this.size = size;
+		this.timeoutMillis = timeoutMillis;
+		this.idle = new LinkedBlockingDeque<Connection>();
+		this.permits = new Semaphore(size, true);
+	}
+	
+	/** Borrow a connection from the pool, opening a new one if none are idle.
+	 *  The connection must be given back with release() once done.
+	 *
+	 *  Throws SQLException if the pool is closed, no connection frees up within
+	 *  the timeout, or a new connection cannot be opened.
+	 */
+	public Connection borrow() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new SQLException("Timed out after " + timeoutMillis +
+						"ms waiting for one of " + size + " connections");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection");
+		}
+		recordWait(System.nanoTime() - start);
+		try {
+			Connection conn = idle.pollFirst();
+			// Drop connections the server has closed on us.
+			while (conn != null && !conn.isValid(1)) {
+				closeQuietly(conn);
+				conn = idle.pollFirst();
+			}
+			if (conn == null) {
+				conn = DriverManager.getConnection(url, connectionProps);
+			}
+			active.incrementAndGet();
+			return conn;
+		}
+		catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+	}
+	
+	/** Give a borrowed connection back to the pool, or close it if the pool is closed. */
+	public void release(Connection conn) {
+		if (conn == null) return;
+		active.decrementAndGet();
+		try {
+			// Never hand the next borrower a half finished transaction.
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+			if (closed) {
+				closeQuietly(conn);
+			}
+			else {
+				idle.offerFirst(conn);
+				// close() may have emptied idle before we added to it.
+				if (closed && idle.remove(conn)) {
+					closeQuietly(conn);
+				}
+			}
+		}
+		catch (SQLException e) {
+			closeQuietly(conn);
+		}
+		permits.release();
+	}
+	
+	/** Close every idle connection. Borrowed connections are closed as they are released,
+	 *  and nothing more can be borrowed. */
+	public void close() {
+		closed = true;
+		Connection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			closeQuietly(conn);
+		}
+	}
+	
+	/** Close a connection, ignoring any errors. */
+	private static void closeQuietly(Connection conn) {
+		try {
+			conn.close();
+		}
+		catch (SQLException e) {
+			// Already broken; nothing more to do.
+		}
+	}
+	
+	/** Add a wait time to our metrics. */
+	private void recordWait(long nanos) {
+		borrows.incrementAndGet();
+		totalWaitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos));
+	}
+	
+	/** Number of connections currently borrowed. */
+	public int active() {
+		return active.get();
+	}
+	
+	/** Number of open connections not currently borrowed. */
+	public int idle() {
+		return idle.size();
+	}
+	
+	/** Maximum number of connections this pool will open. */
+	public int size() {
+		return size;
+	}
+	
+	/** Number of times a connection has been borrowed. */
+	public long borrows() {
+		return borrows.get();
+	}
+	
+	/** Number of times a caller gave up waiting for a connection. */
+	public long timeouts() {
+		return timeouts.get();
+	}
+	
+	/** Average time, in milliseconds, callers have waited for a connection. */
+	public double meanWaitMillis() {
+		long count = borrows.get();
+		if (count == 0) return 0;
+		return totalWaitNanos.get() / 1e6 / count;
+	}
+	
+	/** Longest time, in milliseconds, any caller has waited for a connection. */
+	public double maxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+	
+	@Override
+	public String toString() {
+		DecimalFormat format = new DecimalFormat("#0.000");
+		return "Connections: " + active() + " active, " + idle() + " idle, " + size + " max. " +
+				"Waits: " + borrows() + " borrows, " + format.format(meanWaitMillis()) + "ms mean, " +
+				format.format(maxWaitMillis()) + "ms max, " + timeouts() + " timeouts.";
+	}
+}
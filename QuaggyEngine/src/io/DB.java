@@ -1,19 +1,25 @@
 package io;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import core.DateTime;
 import core.ItemDB;
 import core.ItemInfo;
+import core.TPHistory;
 import core.TPItemInfo;
 import core.TPSnapshot;
 
@@ -22,26 +28,54 @@ import core.TPSnapshot;
  * Can either read from or write to the DB.
  * @author Ryan Pindulic
  */
-public class DB {
+public class DB implements HistoryStore {
 	
-	//Stores a connection to the MySQL DB. Null until connect() is called.
-	Connection conn;
+	//Pool of connections to the MySQL DB. Each operation borrows its own connection,
+	//so one DB can be shared by several threads.
+	private ConnectionPool pool;
+	//Number of rows to send to the DB at a time when writing in batches.
+	private int batchSize = DEFAULT_BATCH_SIZE;
 	
 	//Stores some information for accessing the DB.
-	private static final String USER = "root";
-	private static final String PASSWORD = "root";
-	private static final String SERVER_NAME = "localhost";
-	private static final int PORT_NUMBER = 3306;
-	private static final String DB_NAME = "quaggy";
+	//Each can be overridden with a system property, ie -Dquaggy.db.user=quaggy
+	private static final String USER = System.getProperty("quaggy.db.user", "root");
+	private static final String PASSWORD = System.getProperty("quaggy.db.password", "root");
+	private static final String SERVER_NAME = System.getProperty("quaggy.db.host", "localhost");
+	private static final int PORT_NUMBER = Integer.getInteger("quaggy.db.port", 3306);
+	private static final String DB_NAME = System.getProperty("quaggy.db.name", "quaggy");
 	
 	//The item table, which stores information about every item in GW2.
 	public static final String ITEM_TABLE = "items";
 	//The listings table, which stores information about the history of TP sales in GW2.
 	public static final String LISTINGS_TABLE = "listings";
+	//The backfill table, which stores the items a history backfill has finished, so it can resume.
+	public static final String BACKFILL_TABLE = "backfill";
+	
+	//Fetch size used when streaming history. MySQL only streams rows one at a
+	//time (instead of reading the whole result into memory) with this value.
+	private static final int HISTORY_FETCH_SIZE = Integer.MIN_VALUE;
+	//Initial number of rows to make room for when reading an item's history.
+	private static final int HISTORY_FETCH_CAPACITY = 1024;
+	//Default number of rows to send to the DB at a time when writing in batches.
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	//Default maximum number of connections open at once.
+	public static final int DEFAULT_POOL_SIZE = Integer.getInteger("quaggy.db.poolSize", 4);
+	//Default time to wait for a free connection before giving up.
+	public static final long DEFAULT_POOL_TIMEOUT_MILLIS = 30000;
 	
 	/** Create a new DB, and connect to it. */
 	public DB() {
-		connect();
+		this(DEFAULT_POOL_SIZE, DEFAULT_POOL_TIMEOUT_MILLIS);
+	}
+	
+	/** Create a new DB that keeps at most poolSize connections open,
+	 *  and waits at most timeoutMillis for one of them to become free.
+	 *  
+	 *  Throws IllegalArgumentException if we cannot connect, or if
+	 *  poolSize < 1 or timeoutMillis < 0.
+	 */
+	public DB(int poolSize, long timeoutMillis) {
+		connect(poolSize, timeoutMillis);
 	}
 	
 	/** Using the item table in the DB, return an ItemDB of
@@ -55,13 +89,14 @@ public class DB {
 		System.out.println();
 		System.out.println("******************");
 		System.out.println("Loading item database...");
-		Statement stmt = null;
+		Connection conn = null;
+		PreparedStatement stmt = null;
 	    try {
+	    	conn = pool.borrow();
 			Map<Integer, ItemInfo> rval = new HashMap<Integer, ItemInfo>();
 			//Query the items table to find all item information
-	        stmt = conn.createStatement();
-	        stmt.execute("SELECT * FROM " + ITEM_TABLE); 
-	        ResultSet rs = stmt.getResultSet();
+	        stmt = conn.prepareStatement("SELECT * FROM " + ITEM_TABLE); 
+	        ResultSet rs = stmt.executeQuery();
 	        while (rs.next()) {
 	        	//Parse the attributes returned by the SQL query into attributes
 	        	String[] attrs = new String[ItemInfo.Attribute.values().length];
@@ -70,20 +105,85 @@ public class DB {
 	        		String sqlName = attr.name().toUpperCase();
 	        		attrs[attr.ordinal()] = rs.getString(sqlName);
 	        	}
-	        	//Create the new iteminfo
-	        	ItemInfo info = new ItemInfo(idVal, attrs);
-	        	//Pull history if needed
-	        	info.setHistory(getHistory(idVal, DateTime.daysBack(horizonDays)));
 	        	//Map from the item ID to its attributes
-	        	rval.put(idVal, info);
+	        	rval.put(idVal, new ItemInfo(idVal, attrs));
 	        }
 	        stmt.close();
+	        //Pull history for every item at once
+	        loadHistories(conn, rval, DateTime.daysBack(horizonDays));
 	        System.out.println("Loading item database complete.");
 	        return new ItemDB(rval);
 	    } 
 	    catch (SQLException e) {
 	    	throw new IllegalArgumentException("Error loading Item DB From MySQL : " + e.toString());
 	    }
+	    finally {
+	    	pool.release(conn);
+	    }
+	}
+	
+	/** Loads the history of every item in items that occurred on or after firstDate,
+	 *  using a single query over the listings table. Rows are streamed rather than
+	 *  held in memory, and are split up into each item's history as they arrive.
+	 *  Items with no listings are left with an empty history.
+	 *  Uses the provided connection, which the caller has borrowed.
+	 *  
+	 *  Throws SQLException in case of failure.
+	 */
+	private void loadHistories(Connection conn, Map<Integer, ItemInfo> items, DateTime firstDate) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement("SELECT * FROM " + LISTINGS_TABLE + " L WHERE L.TIMESTAMP >= ?" +
+					" ORDER BY L.ID", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(HISTORY_FETCH_SIZE);
+			stmt.setString(1, firstDate.generateTimestamp());
+			ResultSet rs = stmt.executeQuery();
+			// Look up column positions once rather than by name on every row.
+			TPItemInfo.Attribute[] attrs = TPItemInfo.Attribute.values();
+			int idCol = rs.findColumn("ID");
+			int timeCol = rs.findColumn("TIMESTAMP");
+			int[] attrCols = new int[attrs.length];
+			for (TPItemInfo.Attribute attr : attrs) {
+				attrCols[attr.ordinal()] = rs.findColumn(attr.name().toUpperCase());
+			}
+			// Rows for the item we are currently reading, reused between items.
+			int currID = -1, size = 0;
+			long[] times = new long[HISTORY_FETCH_CAPACITY];
+			int[][] columns = new int[attrs.length][HISTORY_FETCH_CAPACITY];
+			while (rs.next()) {
+				int id = rs.getInt(idCol);
+				if (id != currID) {
+					setHistory(items, currID, times, columns, size);
+					currID = id;
+					size = 0;
+				}
+				if (size == times.length) {
+					times = Arrays.copyOf(times, size * 2);
+					for (int a = 0; a < columns.length; a++) {
+						columns[a] = Arrays.copyOf(columns[a], size * 2);
+					}
+				}
+				times[size] = new DateTime(rs.getString(timeCol)).toEpochSeconds();
+				for (int a = 0; a < attrCols.length; a++) {
+					columns[a][size] = rs.getInt(attrCols[a]);
+				}
+				size++;
+			}
+			setHistory(items, currID, times, columns, size);
+		}
+		finally {
+			if (stmt != null) {
+				stmt.close();
+			}
+		}
+	}
+	
+	/** Give the item with the given id the history stored in the first size rows
+	 *  of the provided columns, if it is a known item. */
+	private void setHistory(Map<Integer, ItemInfo> items, int id, long[] times, int[][] columns, int size) {
+		if (size > 0 && items.containsKey(id)) {
+			items.get(id).setHistory(new TPHistory(id, times, columns, size));
+		}
 	}
 	
 	/** Given an item's ID, return a list of all listings
@@ -93,13 +193,16 @@ public class DB {
 	 *  Throws IllegalArgumentException in case of failure.
 	 */
 	public List<TPItemInfo> getHistory(int itemID, DateTime firstDate) {
-		Statement stmt = null;
+		Connection conn = null;
+		PreparedStatement stmt = null;
 	    try {
+	    	conn = pool.borrow();
 	    	List<TPItemInfo> rval = new ArrayList<TPItemInfo>();
-	        stmt = conn.createStatement();
-	        stmt.execute("SELECT * FROM " + LISTINGS_TABLE + " L WHERE L.ID = " + itemID + 
-	        		" AND L.TIMESTAMP >= '" + firstDate.generateTimestamp() + "' ORDER BY timestamp"); 
-	        ResultSet rs = stmt.getResultSet();
+	        stmt = conn.prepareStatement("SELECT * FROM " + LISTINGS_TABLE + " L WHERE L.ID = ?" + 
+	        		" AND L.TIMESTAMP >= ? ORDER BY timestamp");
+	        stmt.setInt(1, itemID);
+	        stmt.setString(2, firstDate.generateTimestamp());
+	        ResultSet rs = stmt.executeQuery();
 	        while (rs.next()) {
 	        	String timestamp = rs.getString("TIMESTAMP");
 	        	
@@ -115,6 +218,9 @@ public class DB {
 	    catch (SQLException e) {
 	    	throw new IllegalArgumentException("Error loading Item DB From MySQL : " + e.toString());
 	    }
+	    finally {
+	    	pool.release(conn);
+	    }
 	}
 	
 	/** Given an ItemDB, saves this into the items table.
@@ -135,19 +241,167 @@ public class DB {
 	 *  Throws IllegalArgumentException in case of failure.
 	 */
 	public void saveTPSnapshot(TPSnapshot snapshot) {
+		List<TPItemInfo> listings = new ArrayList<TPItemInfo>();
 		for (int id : snapshot.validIDS()) {
+			listings.add(snapshot.get(id));
+		}
+		addListings(listings);
+	}
+	
+	/** Adds many TP listings to the listings table in the DB, in batches of
+	 *  batchSize rows, each batch committed as one transaction.
+	 *  
+	 *  Listings that are already stored are skipped. This typically means
+	 *  there has not been an update in this item's TP data since we last
+	 *  recorded it: either we are sampling too fast, or this is an item
+	 *  that is no longer available for sale and so has no new updates.
+	 *  
+	 *  Throws IllegalArgumentException in case of failure. Batches committed
+	 *  before the failure are kept.
+	 *  
+	 *  Safe to call from several threads at once; each call writes over its own connection.
+	 */
+	public void addListings(Iterable<TPItemInfo> listings) {
+		writeListings(listings, Collections.<Integer>emptyList());
+	}
+	
+	@Override
+	public void addBackfill(Iterable<TPItemInfo> listings, Collection<Integer> itemIDs) {
+		writeListings(listings, itemIDs);
+	}
+	
+	/** Writes listings in batches as in addListings, then adds itemIDs to the
+	 *  backfill table in the same transaction as the last batch.
+	 *  
+	 *  Throws IllegalArgumentException in case of failure.
+	 */
+	private void writeListings(Iterable<TPItemInfo> listings, Collection<Integer> itemIDs) {
+		TPItemInfo.Attribute[] attrs = TPItemInfo.Attribute.values();
+		String insertString = "INSERT INTO " + LISTINGS_TABLE + " VALUES (?,?";
+		for (int i = 0; i < attrs.length; i++) {
+			insertString += ",?";
+		}
+		// Leave existing rows alone rather than failing on them.
+		insertString += ") ON DUPLICATE KEY UPDATE ID = ID";
+		
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.borrow();
+			conn.setAutoCommit(false);
+			stmt = conn.prepareStatement(insertString);
+			int pending = 0;
+			for (TPItemInfo listing : listings) {
+				stmt.setInt(1, listing.getID());
+				stmt.setString(2, listing.time().generateTimestamp());
+				for (TPItemInfo.Attribute attr : attrs) {
+					stmt.setInt(attr.ordinal() + 3, listing.get(attr));
+				}
+				stmt.addBatch();
+				if (++pending >= batchSize) {
+					stmt.executeBatch();
+					conn.commit();
+					pending = 0;
+				}
+			}
+			if (pending > 0) {
+				stmt.executeBatch();
+			}
+			if (!itemIDs.isEmpty()) {
+				stmt.close();
+				stmt = conn.prepareStatement("INSERT INTO " + BACKFILL_TABLE + " VALUES (?)" +
+						" ON DUPLICATE KEY UPDATE ID = ID");
+				for (int id : itemIDs) {
+					stmt.setInt(1, id);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+			conn.commit();
+		}
+		catch (SQLException e) {
+			throw new IllegalArgumentException("Error inserting listings into DB : " + e.toString());
+		}
+		finally {
 			try {
-				this.addListing(snapshot.get(id));
+				if (stmt != null) {
+					stmt.close();
+				}
+			}
+			catch (SQLException e) {
+				// The statement is gone along with the batch; nothing to clean up.
 			}
-			catch (IllegalArgumentException e) {
-				// This means that we are trying to add a duplicate entry.
-				// In this case, that means there has not been an update
-				// in this item's TP data since we last recorded it.
-				// Either we are sampling too fast, or this is an item
-				// that is no longer available for sale and so has
-				// no new updates.
+			// Rolls back any uncommitted batch and restores autocommit.
+			pool.release(conn);
+		}
+	}
+	
+	@Override
+	public Set<Integer> backfilledIDs() {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			createBackfillTable();
+			conn = pool.borrow();
+			Set<Integer> rval = new HashSet<Integer>();
+			stmt = conn.prepareStatement("SELECT ID FROM " + BACKFILL_TABLE);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				rval.add(rs.getInt(1));
 			}
+			stmt.close();
+			return rval;
+		}
+		catch (SQLException e) {
+			throw new IllegalArgumentException("Error loading backfill progress : " + e.toString());
 		}
+		finally {
+			pool.release(conn);
+		}
+	}
+	
+	@Override
+	public void resetHistory() {
+		dropListingsTable();
+		createListingsTable();
+		clearBackfill();
+	}
+	
+	@Override
+	public void clearBackfill() {
+		try{
+			createBackfillTable();
+			executeUpdate("DELETE FROM " + BACKFILL_TABLE);
+		}
+		catch (SQLException e) {
+			throw new IllegalArgumentException("Error, could not clear backfill table : " + e.toString());
+		}
+	}
+	
+	/** Create the backfill table if it does not exist yet.
+	 *  Each tuple is the id of an item whose history has been backfilled. */
+	private void createBackfillTable() throws SQLException {
+		executeUpdate("CREATE TABLE IF NOT EXISTS " + BACKFILL_TABLE + " ( " +
+				"ID INTEGER NOT NULL, PRIMARY KEY (ID))");
+	}
+	
+	/** Returns the connection pool backing this DB, ie to report its metrics. */
+	public ConnectionPool pool() {
+		return pool;
+	}
+	
+	/** Close every connection to the DB once the current operations finish. */
+	public void close() {
+		pool.close();
+	}
+	
+	/** Sets how many rows are sent to the DB at a time by batched writes.
+	 *  Throws IllegalArgumentException if batchSize < 1. */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("DB : batch size must be positive");
+		}
+		this.batchSize = batchSize;
 	}
 	
 	/** Adds an item to the item table in the DB. 
@@ -274,6 +528,7 @@ public class DB {
 	 * @throws SQLException If something goes wrong
 	 */
 	private boolean executeUpdate(String command) throws SQLException {
+		Connection conn = pool.borrow();
 	    Statement stmt = null;
 	    try {
 	        stmt = conn.createStatement();
@@ -284,24 +539,28 @@ public class DB {
 	        if (stmt != null) { 
 	        	stmt.close(); 
 	        }
+	        pool.release(conn);
 	    }
 	}
 	
 	/** Connect to the Quaggy DB. Must succeed before read/write queries can be made. 
+	 	Opens one connection up front so a bad configuration fails here.
 	 	In case of failure, throw IllegalArgumentException. */
-	private void connect() {
+	private void connect(int poolSize, long timeoutMillis) {
+		Properties connectionProps = new Properties();
+		connectionProps.put("user", USER);
+		connectionProps.put("password", PASSWORD);
+		//Let the driver send each batch of inserts as multi-row statements.
+		connectionProps.put("rewriteBatchedStatements", "true");
+		
+		pool = new ConnectionPool("jdbc:mysql://"
+				+ SERVER_NAME + ":" + PORT_NUMBER + "/" + DB_NAME,
+				connectionProps, poolSize, timeoutMillis);
 		try{
-			Properties connectionProps = new Properties();
-			connectionProps.put("user", USER);
-			connectionProps.put("password", PASSWORD);
-	
-			conn = DriverManager.getConnection("jdbc:mysql://"
-					+ SERVER_NAME + ":" + PORT_NUMBER + "/" + DB_NAME,
-					connectionProps);
+			pool.release(pool.borrow());
 		}
-		catch (Exception e) {
+		catch (SQLException e) {
 			throw new IllegalArgumentException("Error connecting to db " + DB_NAME + "\n" + e);
 		}
-
 	}
 }
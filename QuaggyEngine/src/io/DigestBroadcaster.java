@@ -0,0 +1,326 @@
+package io;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import core.Digest;
+
+/** Sends digests to an edge server on background threads, so computing
+ *  features never waits on the network.
+ *
+ *  Producers submit() small digests (usually one item each) onto a bounded
+ *  queue. Each sender thread takes digests off the queue and merges them until
+ *  it has maxEntries values, or until lingerMillis passes without enough
+ *  arriving, and then posts the merged digest. The number of sender threads
+ *  is the most requests we will have in flight at once. If the queue is full,
+ *  submit() blocks until a sender catches up, for up to MAX_BLOCK_MILLIS.
+ *
+ *  RESTClient already retries a failed post a few times. If it still fails, or
+ *  the edge falls so far behind that submit() gives up waiting, the edge has
+ *  missed some values. From then on digests are dropped rather than sent, until
+ *  the caller checks needsResync() and sends the edge everything again. So a
+ *  down or slow edge costs one failed post, and never holds up the caller or
+ *  any other edge for long.
+ *
+ *  Also keeps track of each edge's latency, failures, and how far behind it is.
+ * @author Ryan Pindulic
+ */
+public class DigestBroadcaster {
+	
+	/** Default number of digests that can wait to be sent before submit() blocks. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+	/** Default number of digests we can be sending at once. */
+	public static final int DEFAULT_SENDERS = 2;
+	/** Default time to wait for more digests to merge before sending what we have. */
+	public static final long DEFAULT_LINGER_MILLIS = 20;
+	
+	/** How long submit() waits for room in a full queue before giving up on the edge. */
+	private static final long MAX_BLOCK_MILLIS = 1000;
+	
+	private String endpoint;				// Where to post digests
+	private int[] history;					// History lengths our digests are over
+	private int maxEntries;					// Most values to merge into one post
+	private long lingerMillis;				// How long to wait for more values to merge
+	private volatile boolean compress = true;
+	
+	private BlockingQueue<Digest> queue;
+	private Thread[] senders;
+	private volatile boolean closed = false;
+	
+	// Digests submitted but not yet sent or dropped, for flush().
+	private final Object lock = new Object();
+	private int pending = 0;
+	
+	// Set once the edge has missed a digest, until needsResync() is called.
+	private AtomicBoolean missed = new AtomicBoolean(false);
+	
+	// Metrics
+	private AtomicLong posts = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+	private AtomicLong bytesSent = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong totalLatencyNanos = new AtomicLong();
+	private AtomicLong maxLatencyNanos = new AtomicLong();
+	private volatile long lastSuccess = System.currentTimeMillis();
+	
+	/** Send digests over the given history lengths to endpoint, merging up to
+	 *  maxEntries values into each post, with the default queue capacity, number
+	 *  of senders, and linger time.
+	 */
+	public DigestBroadcaster(String endpoint, int[] history, int maxEntries) {
+		this(endpoint, history, maxEntries, DEFAULT_QUEUE_CAPACITY, DEFAULT_SENDERS, DEFAULT_LINGER_MILLIS);
+	}
+	
+	/** Send digests over the given history lengths to endpoint, merging up to
+	 *  maxEntries values into each post. At most capacity digests wait in the
+	 *  queue, and at most senders posts are in flight at once.
+	 *
+	 *  Throws IllegalArgumentException if maxEntries, capacity or senders < 1,
+	 *  or lingerMillis < 0.
+	 */
+	public DigestBroadcaster(String endpoint, int[] history, int maxEntries, int capacity,
+			int senders, long lingerMillis) {
+		if (maxEntries < 1 || capacity < 1 || senders < 1) {
+			throw new IllegalArgumentException("DigestBroadcaster : sizes must be positive");
+		}
+		if (lingerMillis < 0) {
+			throw new IllegalArgumentException("DigestBroadcaster : linger must not be negative");
+		}
+		this.endpoint = endpoint;
+		this.history = history;
+		this.maxEntries = maxEntries;
+		this.lingerMillis = lingerMillis;
+		this.queue = new ArrayBlockingQueue<Digest>(capacity);
+		this.senders = new Thread[senders];
+		for (int i = 0; i < senders; i++) {
+			this.senders[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					sendLoop();
+				}
+			}, "digest-sender-" + i);
+			this.senders[i].setDaemon(true);
+			this.senders[i].start();
+		}
+	}
+	
+	/** Sets whether digests are compressed before they are sent. On by default. */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+	
+	/** The endpoint we post digests to. */
+	public String endpoint() {
+		return endpoint;
+	}
+	
+	/** Queue a digest to be sent, blocking while the queue is full. If the edge
+	 *  has missed a digest, or the queue stays full for MAX_BLOCK_MILLIS, the
+	 *  digest is dropped instead (see needsResync()).
+	 *  The digest must not be changed afterwards. Empty digests are ignored.
+	 *  Throws IllegalStateException if we have been closed.
+	 */
+	public void submit(Digest digest) throws InterruptedException {
+		checkOpen();
+		if (digest.isEmpty()) return;
+		if (missed.get()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		synchronized (lock) {
+			pending++;
+		}
+		boolean queued = false;
+		try {
+			queued = queue.offer(digest, MAX_BLOCK_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		finally {
+			if (!queued) {
+				done(1);
+			}
+		}
+		if (!queued) {
+			System.out.println("Edge server " + endpoint + " is too far behind, dropping digests");
+			dropped.incrementAndGet();
+			missed.set(true);
+		}
+		else if (closed && queue.remove(digest)) {
+			// close() emptied the queue before we added to it, so nothing will send this.
+			dropped.incrementAndGet();
+			done(1);
+			checkOpen();
+		}
+	}
+	
+	/** Block until every digest submitted so far has been sent or dropped.
+	 *  Throws IllegalStateException if we are closed, rather than waiting for
+	 *  digests that will never be sent. */
+	public void flush() throws InterruptedException {
+		synchronized (lock) {
+			checkOpen();
+			while (pending > 0) {
+				lock.wait();
+				checkOpen();
+			}
+		}
+	}
+	
+	/** True iff the edge has missed a digest since the last call to needsResync(),
+	 *  in which case the caller should send it everything again.
+	 *  Digests are sent again after this is called. */
+	public boolean needsResync() {
+		return missed.getAndSet(false);
+	}
+	
+	/** Stop the sender threads. Digests still in the queue are dropped, and
+	 *  nothing more can be submitted. */
+	public void close() {
+		closed = true;
+		for (Thread sender : senders) {
+			sender.interrupt();
+		}
+		int drained = queue.drainTo(new ArrayList<Digest>());
+		dropped.addAndGet(drained);
+		synchronized (lock) {
+			pending -= drained;
+			// Wake anyone in flush(), which fails now that we're closed.
+			lock.notifyAll();
+		}
+	}
+	
+	/** Throw IllegalStateException if we have been closed. */
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("DigestBroadcaster : " + endpoint + " is closed");
+		}
+	}
+	
+	/** Take digests off the queue, merge them, and send them, until interrupted. */
+	private void sendLoop() {
+		try {
+			while (true) {
+				Digest first = queue.take();
+				int count = 1;
+				try {
+					Digest merged = new Digest(history);
+					merged.addAll(first);
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+					while (merged.size() < maxEntries) {
+						Digest next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (next == null) break;
+						count++;
+						merged.addAll(next);
+					}
+					send(merged);
+				}
+				catch (RuntimeException e) {
+					// Don't let one bad digest stop this sender; the edge has just missed it.
+					System.out.println("Failed to send digest to edge server " + endpoint + " : " + e);
+					failed();
+				}
+				finally {
+					done(count);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// Closed
+		}
+	}
+	
+	/** Post a digest, unless the edge has already missed one. */
+	private void send(Digest digest) {
+		if (missed.get()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		byte[] body = digest.encode(compress);
+		long start = System.nanoTime();
+		try {
+			RESTClient.post(endpoint, body, Digest.CONTENT_TYPE);
+			recordLatency(System.nanoTime() - start);
+			posts.incrementAndGet();
+			bytesSent.addAndGet(body.length);
+			lastSuccess = System.currentTimeMillis();
+		}
+		catch (IllegalArgumentException e) { // Endpoint / edge server not up
+			System.out.println("Failed to write to edge server " + endpoint);
+			failed();
+		}
+	}
+	
+	/** Record a failed post, after which the edge needs everything sent again. */
+	private void failed() {
+		failures.incrementAndGet();
+		dropped.incrementAndGet();
+		missed.set(true);
+	}
+	
+	private void recordLatency(long nanos) {
+		totalLatencyNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, nanos));
+	}
+	
+	/** Mark count submitted digests as sent or dropped. */
+	private void done(int count) {
+		synchronized (lock) {
+			pending -= count;
+			lock.notifyAll();
+		}
+	}
+	
+	/** Number of digests posted successfully. */
+	public long posts() {
+		return posts.get();
+	}
+	
+	/** Number of posts that failed, even after retrying. */
+	public long failures() {
+		return failures.get();
+	}
+	
+	/** Number of digests dropped because the edge missed one or fell too far behind. */
+	public long dropped() {
+		return dropped.get();
+	}
+	
+	/** Mean time taken by a successful post, in milliseconds. */
+	public double meanLatencyMillis() {
+		long n = posts.get();
+		return (n == 0) ? 0 : totalLatencyNanos.get() / 1e6 / n;
+	}
+	
+	/** Longest time taken by a successful post, in milliseconds. */
+	public double maxLatencyMillis() {
+		return maxLatencyNanos.get() / 1e6;
+	}
+	
+	/** Number of digests waiting to be sent. */
+	public int queued() {
+		return queue.size();
+	}
+	
+	/** How long the edge has gone without a successful post while digests were
+	 *  waiting for it, in milliseconds. 0 if it is up to date. */
+	public long lagMillis() {
+		synchronized (lock) {
+			if (pending == 0 && !missed.get()) return 0;
+		}
+		return System.currentTimeMillis() - lastSuccess;
+	}
+	
+	@Override
+	public String toString() {
+		DecimalFormat format = new DecimalFormat("#0.000");
+		return "Edge " + endpoint + ": " + posts() + " posts, " + (bytesSent.get() / 1024) + "KB sent, " +
+				format.format(meanLatencyMillis()) + "ms mean, " + format.format(maxLatencyMillis()) +
+				"ms max, " + failures() + " failures, " + dropped() + " dropped, " + queued() +
+				" queued, " + lagMillis() + "ms behind.";
+	}
+}
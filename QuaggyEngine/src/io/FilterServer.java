@@ -0,0 +1,379 @@
+package io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import core.FeatureIndex;
+import core.FeatureVector.Feature;
+import core.Filter;
+import core.Subscriptions;
+
+/** Answers filters from the engine's FeatureIndex at /filter, so filtering doesn't
+ *  have to wait for every feature to reach an edge server's cache.
+ *
+ *  POST a filter in the same JSON format as config/*.json (see core.Filter).
+ *  The response is {"Count": number of items passing, "Results": [{Feature: value}],
+ *  "Next": page token}, with results in the filter's sort order, NaN and infinite
+ *  features as null, and at most Limit of them if the filter sets one. Next is only
+ *  there if there are more results, and can be sent back as the filter's After to get
+ *  them. Count is left out if the results were found without looking at every item
+ *  passing. An invalid filter gets a 400 with {"Error": reason}.
+ *
+ *  A filter can also be left standing (see core.Subscriptions): POST
+ *  {"Filter": filter, "Callback": url} to /subscribe, where url is http or https,
+ *  and the response is {"Id": id}.
+ *  Every item passing the filter is then posted to the callback straight away, and
+ *  after that, whenever a cycle changes which items pass, the change is posted as
+ *  {"Id": id, "Added": [{Feature: value}], "Removed": [item ID]}. POST {"Id": id} to
+ *  /unsubscribe to stop, which gets a 404 if there is no such subscription. Each
+ *  callback is posted its changes in order, one at a time, and a post that takes longer
+ *  than PUSH_TIMEOUT_MILLIS fails, so a slow callback only holds up its own changes.
+ *  After a failed post, every item passing is posted again in its place as
+ *  {"Id": id, "Reset": true, "Added": [{Feature: value}], "Removed": []}, which replaces
+ *  whatever the callback was told before. A callback that fails MAX_FAILURES times in
+ *  a row is unsubscribed.
+ *
+ *  Nothing here is authenticated, so by default we only listen on loopback.
+ * @author Ryan Pindulic
+ */
+public class FilterServer {
+	
+	/** Path filters are answered at. */
+	public static final String PATH = "/filter";
+	/** Path to leave a filter standing at. */
+	public static final String SUBSCRIBE_PATH = "/subscribe";
+	/** Path to stop a standing filter at. */
+	public static final String UNSUBSCRIBE_PATH = "/unsubscribe";
+	
+	/** Number of filters that can be answered at once. */
+	private static final int THREADS = 4;
+	/** Number of callbacks that can be posted to at once. */
+	private static final int PUSH_THREADS = 4;
+	/** How long a post to a callback may take before it counts as failed, in ms. */
+	private static final int PUSH_TIMEOUT_MILLIS = 2000;
+	/** How long to wait after a failed post before resending, in ms, doubled for each failure since. */
+	private static final int RETRY_MILLIS = 500;
+	/** Number of failed posts in a row after which a callback is unsubscribed. */
+	private static final int MAX_FAILURES = 3;
+	
+	private HttpServer server;
+	private ExecutorService executor;
+	private Subscriptions subscriptions;
+	// Posts changes to callbacks, one post at a time per callback (see Callback).
+	private ScheduledExecutorService pusher = Executors.newScheduledThreadPool(PUSH_THREADS);
+	
+	/** Something answering the body of a POST. */
+	private interface Endpoint {
+		/** Fill in the response to body, and return the status to send with it.
+		 *  Throws IllegalArgumentException if the body is invalid. */
+		public int answer(String body, JSONObject response);
+	}
+	
+	/** Start answering filters from index, and keeping standing filters in subscriptions,
+	 *  on the given port of the loopback interface. Throws IOException if the port can't be bound. */
+	public FilterServer(int port, FeatureIndex index, Subscriptions subscriptions) throws IOException {
+		this(InetAddress.getLoopbackAddress().getHostAddress(), port, index, subscriptions);
+	}
+	
+	/** Start answering filters from index, and keeping standing filters in subscriptions,
+	 *  on the given host name or address and port. Throws IOException if the port can't be bound. */
+	public FilterServer(String host, int port, final FeatureIndex index, Subscriptions subscriptions)
+			throws IOException {
+		this.subscriptions = subscriptions;
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		serve(PATH, new Endpoint() {
+			@Override
+			public int answer(String body, JSONObject response) {
+				return filter(index, body, response);
+			}
+		});
+		serve(SUBSCRIBE_PATH, new Endpoint() {
+			@Override
+			public int answer(String body, JSONObject response) {
+				return subscribe(body, response);
+			}
+		});
+		serve(UNSUBSCRIBE_PATH, new Endpoint() {
+			@Override
+			public int answer(String body, JSONObject response) {
+				return unsubscribe(body, response);
+			}
+		});
+		executor = Executors.newFixedThreadPool(THREADS);
+		server.setExecutor(executor);
+		server.start();
+	}
+	
+	/** The port we are serving on. */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+	
+	/** Stop serving, and stop posting to callbacks. */
+	public void close() {
+		server.stop(0);
+		executor.shutdown();
+		pusher.shutdownNow();
+	}
+	
+	/** Answer POSTs to path with endpoint. */
+	private void serve(String path, final Endpoint endpoint) {
+		server.createContext(path, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange, endpoint);
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+	
+	private static void serve(HttpExchange exchange, Endpoint endpoint) throws IOException {
+		if (!exchange.getRequestMethod().equals("POST")) {
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+		JSONObject response = new JSONObject();
+		int status;
+		try {
+			status = endpoint.answer(read(exchange.getRequestBody()), response);
+		}
+		catch (IllegalArgumentException e) {
+			status = 400;
+			response = new JSONObject();
+			response.put("Error", e.getMessage());
+		}
+		byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+	
+	/** Answer a filter. */
+	private static int filter(FeatureIndex index, String body, JSONObject response) {
+		Filter filter = Filter.parse(body);
+		FeatureIndex.Result result = index.query(filter);
+		if (result.total() >= 0) {
+			response.put("Count", result.total());
+		}
+		response.put("Results", toJSON(result.items()));
+		if (result.next() != null) {
+			response.put("Next", result.next());
+		}
+		return 200;
+	}
+	
+	/** Leave a filter standing. */
+	private int subscribe(String body, JSONObject response) {
+		JSONObject request = JSONInterface.loadFromText(body);
+		Filter filter = new Filter(JSONInterface.getObject(request, "Filter"));
+		String callback = JSONInterface.get(request, "Callback");
+		URL url;
+		try {
+			url = new URL(callback);
+		}
+		catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Subscribe : bad callback " + callback);
+		}
+		boolean web = url.getProtocol().equals("http") || url.getProtocol().equals("https");
+		if (!web || url.getHost().isEmpty()) {
+			throw new IllegalArgumentException("Subscribe : callback must be an http or https URL, not " + callback);
+		}
+		response.put("Id", subscriptions.subscribe(filter, new Callback(callback)));
+		return 200;
+	}
+	
+	/** Stop a standing filter. */
+	private int unsubscribe(String body, JSONObject response) {
+		int id = JSONInterface.getInt(JSONInterface.loadFromText(body), "Id");
+		if (!subscriptions.unsubscribe(id)) {
+			response.put("Error", "No subscription " + id);
+			return 404;
+		}
+		response.put("Id", id);
+		return 200;
+	}
+	
+	/** Posts a subscription's changes to its callback URL. Changes wait in a queue of
+	 *  their own, and only one pusher thread at a time posts them, oldest first. After
+	 *  each post the callback goes to the back of the pusher's queue, so callbacks with
+	 *  many changes waiting take turns with the rest.
+	 *
+	 *  A change whose post fails may or may not have arrived, so rather than post it
+	 *  again, we wait a while and then post every item passing instead, as a reset
+	 *  (see Subscriptions.resync()), with the changes since then after it. */
+	private class Callback implements Subscriptions.Listener {
+		private String url;
+		private Deque<String> queue = new ArrayDeque<String>();	// Changes not yet posted. Guarded by this.
+		private boolean pushing = false;	// Whether a pusher thread is posting our queue. Guarded by this.
+		private int failures = 0;			// Failed posts in a row. Only used while pushing.
+		
+		private Callback(String url) {
+			this.url = url;
+		}
+		
+		@Override
+		public void matchesChanged(int subscription, List<double[]> added, List<Integer> removed) {
+			enqueue(subscription, change(subscription, added, removed, false), false);
+		}
+		
+		@Override
+		public void matchesReset(int subscription, List<double[]> matches) {
+			enqueue(subscription, change(subscription, matches, Collections.<Integer>emptyList(), true), true);
+		}
+		
+		@Override
+		public synchronized void unsubscribed(int subscription) {
+			queue.clear();
+		}
+		
+		/** Queue a change to be posted, replacing every change still waiting if it's a reset. */
+		private void enqueue(int subscription, String json, boolean reset) {
+			synchronized (this) {
+				if (reset) {
+					queue.clear();
+				}
+				queue.add(json);
+				if (pushing) return;
+				pushing = true;
+			}
+			schedule(subscription, 0);
+		}
+		
+		/** Have a pusher thread post the oldest change waiting, after delay ms. */
+		private void schedule(final int subscription, long delay) {
+			try {
+				pusher.schedule(() -> pushNext(subscription), delay, TimeUnit.MILLISECONDS);
+			}
+			catch (RejectedExecutionException e) {
+				// We've been closed, so nothing more is posted.
+				synchronized (this) {
+					queue.clear();
+					pushing = false;
+				}
+			}
+		}
+		
+		private void pushNext(int subscription) {
+			if (failures > 0 && !subscriptions.resync(subscription)) {
+				// Unsubscribed while we were waiting to retry.
+				synchronized (this) {
+					queue.clear();
+				}
+			}
+			String json;
+			synchronized (this) {
+				json = queue.peek();
+				if (json == null) {
+					pushing = false;
+					return;
+				}
+			}
+			if (!push(subscription, json)) {
+				if (++failures >= MAX_FAILURES && subscriptions.unsubscribe(subscription)) {
+					System.out.println("Unsubscribed " + subscription + " after " + failures + " failures");
+					synchronized (this) {
+						pushing = false;
+					}
+					return;
+				}
+				schedule(subscription, RETRY_MILLIS << (failures - 1));
+				return;
+			}
+			failures = 0;
+			synchronized (this) {
+				// Unless a reset or unsubscribing has replaced it while we were posting.
+				if (queue.peek() == json) {
+					queue.poll();
+				}
+				if (queue.isEmpty()) {
+					pushing = false;
+					return;
+				}
+			}
+			schedule(subscription, 0);
+		}
+		
+		/** Post a change. Returns false if it failed. */
+		private boolean push(int subscription, String json) {
+			try {
+				RESTClient.post(url, json, PUSH_TIMEOUT_MILLIS);
+				return true;
+			}
+			catch (IllegalArgumentException e) {
+				System.out.println("Failed to push to subscription " + subscription + " : " + e.getMessage());
+				return false;
+			}
+		}
+	}
+	
+	/** A change to the items passing a subscription, as posted to its callback. */
+	private static String change(int subscription, List<double[]> added, List<Integer> removed, boolean reset) {
+		JSONObject change = new JSONObject();
+		change.put("Id", subscription);
+		if (reset) {
+			change.put("Reset", true);
+		}
+		change.put("Added", toJSON(added));
+		change.put("Removed", new JSONArray(removed));
+		return change.toString();
+	}
+	
+	/** A list of maps from feature name to value (see toJSON(double[])). */
+	private static JSONArray toJSON(List<double[]> items) {
+		JSONArray result = new JSONArray();
+		for (double[] values : items) {
+			result.put(toJSON(values));
+		}
+		return result;
+	}
+	
+	/** A map from feature name to value, with NaN and infinity as null since JSON has neither. */
+	private static JSONObject toJSON(double[] values) {
+		JSONObject result = new JSONObject();
+		for (Feature f : Feature.values()) {
+			double val = values[f.ordinal()];
+			result.put(f.name(), (Double.isNaN(val) || Double.isInfinite(val)) ? JSONObject.NULL : val);
+		}
+		return result;
+	}
+	
+	/** Read the whole of a request body as text. */
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			bytes.write(buffer, 0, n);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
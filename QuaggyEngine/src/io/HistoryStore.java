@@ -0,0 +1,30 @@
+package io;
+
+import java.util.Collection;
+import java.util.Set;
+
+import core.TPItemInfo;
+
+/** Somewhere a history backfill can write listings to, and keep track
+ *  of which items it has finished, so an interrupted backfill can pick up
+ *  where it left off. DB is the real implementation.
+ * @author Ryan Pindulic
+ */
+public interface HistoryStore {
+	
+	/** Wipe all stored history and backfill progress. */
+	public void resetHistory();
+	
+	/** IDs of the items whose history has been completely stored
+	 *  by the current backfill. */
+	public Set<Integer> backfilledIDs();
+	
+	/** Store the given listings, then record every item in itemIDs as
+	 *  backfilled. Items are only recorded once all their listings are stored.
+	 *  Listings that are already stored are skipped.
+	 */
+	public void addBackfill(Iterable<TPItemInfo> listings, Collection<Integer> itemIDs);
+	
+	/** Forget backfill progress, once a backfill has finished every item. */
+	public void clearBackfill();
+}
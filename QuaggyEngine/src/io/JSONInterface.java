@@ -4,9 +4,14 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -17,18 +22,16 @@ import org.json.JSONObject;
  */
 public abstract class JSONInterface {
 	
-	/** Given a URL, load the plaintext of the URL. */
+	/** Given a URL, load the plaintext of the URL.
+	 *  Uses RESTClient's shared connections, so loading many pages
+	 *  from the same site doesn't reconnect every time. */
 	public static String loadFromWeb(String urlText) throws MalformedURLException, IOException{
-		final URL url = new URL(urlText);
-		final BufferedReader in = new BufferedReader (new InputStreamReader(
-				url.openConnection().getInputStream()));
-		StringBuilder totalText = new StringBuilder();
-		String inputLine;
-		while ((inputLine = in.readLine()) != null) {
-			totalText.append(inputLine);
-		}
-		in.close();
-		return totalText.toString();
+		try {
+			return RESTClient.execute(new HttpGet(urlText));
+		}
+		catch (IllegalArgumentException e) {
+			throw new MalformedURLException(urlText + " : " + e.getMessage());
+		}
 	}
 	
 	/** Loads the text from a URL, but without checked exceptions.
@@ -80,6 +83,45 @@ public abstract class JSONInterface {
 		}
 	}
 	
+	/** Given a URL location corresponding to a JSON API page, read the page
+	 *  with parser as it arrives, without ever holding the whole page in memory.
+	 *  Returns whatever parser builds. The parser may be run again from the
+	 *  start if the connection fails part way, so it should not have side effects.
+	 *  In the case of failure, throws an IllegalArgumentException.
+	 */
+	public static <T> T streamJSON(String url, final JSONStream.Parser<T> parser) {
+		try{
+			return RESTClient.execute(new HttpGet(url), new RESTClient.BodyReader<T>() {
+				@Override
+				public T read(HttpEntity body) throws IOException {
+					if (body == null) {
+						throw new IOException("Empty response");
+					}
+					Charset charset = ContentType.getOrDefault(body).getCharset();
+					Reader reader = new InputStreamReader(body.getContent(),
+							charset == null ? StandardCharsets.UTF_8 : charset);
+					try {
+						return parser.parse(new JSONStream(reader));
+					}
+					catch (IllegalArgumentException e) {
+						// Report a dropped connection as such, so the request is retried.
+						if (e.getCause() != null && e.getCause().getCause() instanceof IOException) {
+							throw (IOException) e.getCause().getCause();
+						}
+						throw e;
+					}
+					finally {
+						reader.close();
+					}
+				}
+			});
+		}
+		catch (Exception e) {
+			throw new IllegalArgumentException(
+					"Error streaming JSON from GW2 API : " + e.toString());
+		}
+	}
+	
 	/** Given raw text, parse it into a JSON object.
 	 *  In the case of failure, throws an IllegalArgumentException. 
 	 */
@@ -0,0 +1,136 @@
+package io;
+
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/** Reads JSON one token at a time, rather than building the whole document
+ *  in memory the way JSONObject does. Useful for huge pages such as the list
+ *  of every item, where we only want a few fields from each entry.
+ *
+ *  Objects are read by calling beginObject() and then nextKey() until it
+ *  returns null, reading or skipping the value after every key. Arrays are
+ *  read by calling beginArray() and then reading a value while hasNext().
+ *
+ *  Any malformed input throws IllegalArgumentException. If the underlying
+ *  reader fails, the IOException is kept as the cause of the cause.
+ *  @author Ryan Pindulic
+ */
+public class JSONStream {
+	
+	/** Something that builds a result from a JSONStream. */
+	public interface Parser<T> {
+		public T parse(JSONStream json);
+	}
+	
+	private JSONTokener tokener;
+	
+	/** Read JSON from the given reader. */
+	public JSONStream(Reader reader) {
+		this.tokener = new JSONTokener(reader);
+	}
+	
+	/** Read the start of an object. */
+	public void beginObject() {
+		expect('{');
+	}
+	
+	/** Read the start of an array. */
+	public void beginArray() {
+		expect('[');
+	}
+	
+	/** Read the next key in the current object, or null once the object has ended. */
+	public String nextKey() {
+		try {
+			char c = nextEntry();
+			if (c == '}') return null;
+			if (c != '"' && c != '\'') {
+				throw tokener.syntaxError("Expected a key");
+			}
+			String key = tokener.nextString(c);
+			if (tokener.nextClean() != ':') {
+				throw tokener.syntaxError("Expected a ':' after key " + key);
+			}
+			return key;
+		}
+		catch (JSONException e) {
+			throw new IllegalArgumentException("JSON stream : " + e.getMessage(), e);
+		}
+	}
+	
+	/** True iff there is another value in the current array. */
+	public boolean hasNext() {
+		try {
+			char c = nextEntry();
+			if (c == ']') return false;
+			tokener.back();
+			return true;
+		}
+		catch (JSONException e) {
+			throw new IllegalArgumentException("JSON stream : " + e.getMessage(), e);
+		}
+	}
+	
+	/** Read the next value, building it as org.json would
+	 *  (String, Number, Boolean, JSONObject.NULL, JSONObject or JSONArray). */
+	public Object nextValue() {
+		try {
+			return tokener.nextValue();
+		}
+		catch (JSONException e) {
+			throw new IllegalArgumentException("JSON stream : " + e.getMessage(), e);
+		}
+	}
+	
+	/** Skip over the next value. */
+	public void skipValue() {
+		nextValue();
+	}
+	
+	/** Read the next value as an int. Numeric strings are accepted, as in JSONObject.getInt. */
+	public int nextInt() {
+		Object value = nextValue();
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		try {
+			return Integer.parseInt((String) value);
+		}
+		catch (Exception e) {
+			throw new IllegalArgumentException("JSON stream : expected an int, found " + value);
+		}
+	}
+	
+	/** Read the next value as a String. */
+	public String nextString() {
+		Object value = nextValue();
+		if (!(value instanceof String)) {
+			throw new IllegalArgumentException("JSON stream : expected a string, found " + value);
+		}
+		return (String) value;
+	}
+	
+	/** Read the first character of the next entry in an object or array,
+	 *  skipping the comma separating it from the last one. */
+	private char nextEntry() {
+		char c = tokener.nextClean();
+		if (c == ',') {
+			c = tokener.nextClean();
+		}
+		return c;
+	}
+	
+	/** Read the next non-whitespace character, which must be c. */
+	private void expect(char c) {
+		try {
+			if (tokener.nextClean() != c) {
+				throw tokener.syntaxError("Expected a '" + c + "'");
+			}
+		}
+		catch (JSONException e) {
+			throw new IllegalArgumentException("JSON stream : " + e.getMessage(), e);
+		}
+	}
+}
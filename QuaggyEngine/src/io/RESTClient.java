@@ -1,51 +1,79 @@
 package io;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 
 /** Useful class for making REST API calls, typically
  *  to the T1 server. Use API classes for communicating
- *  with GW2 APIs. */
-@SuppressWarnings("deprecation")
+ *  with GW2 APIs.
+ *
+ *  Every request goes through one shared HTTP client, which keeps connections
+ *  alive and pooled between calls, asks for gzipped responses, and retries
+ *  failed requests a few times with a growing delay. */
 public class RESTClient {
 	
+	// Connection pool limits.
+	private static final int MAX_CONNECTIONS = 64;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 16;
+	// Timeouts, in milliseconds.
+	private static final int CONNECT_TIMEOUT = 5000;		// Opening a connection
+	private static final int SOCKET_TIMEOUT = 30000;		// Waiting for data once connected
+	private static final int POOL_TIMEOUT = 30000;			// Waiting for a free pooled connection
+	// Check a pooled connection is still open if it has sat idle this long, since
+	// servers may close keep-alive connections on their end at any time.
+	private static final int VALIDATE_AFTER_INACTIVITY = 200;
+	// How many times to try a request, and how long to wait before the first retry.
+	// The wait doubles after each failed attempt.
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long RETRY_BACKOFF_MILLIS = 250;
+	
+	// Shared by every request. Content compression is on by default, so
+	// gzipped responses are requested and decoded for us.
+	private static final CloseableHttpClient client = HttpClients.custom()
+			.setConnectionManager(connectionManager())
+			.setDefaultRequestConfig(RequestConfig.custom()
+					.setConnectTimeout(CONNECT_TIMEOUT)
+					.setSocketTimeout(SOCKET_TIMEOUT)
+					.setConnectionRequestTimeout(POOL_TIMEOUT)
+					.build())
+			.disableAutomaticRetries()	// We retry ourselves, with backoff
+			.build();
+	
+	/** Build the pool of keep-alive connections used by the shared client. */
+	private static PoolingHttpClientConnectionManager connectionManager() {
+		PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager();
+		manager.setMaxTotal(MAX_CONNECTIONS);
+		manager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+		manager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+		return manager;
+	}
+	
 	/** GET command on the provided endpoint. Return result.
 	 *  IllegalArgumentException thrown in case of failure.
 	 */
 	public static String get(String url) {
 		try{
-			DefaultHttpClient client = new DefaultHttpClient();
 			HttpGet getRequest = new HttpGet(url);
 			getRequest.addHeader("accept", "application/json");
-			HttpResponse response = client.execute(getRequest);
-			if (response.getStatusLine().getStatusCode() != 200) {
-				client.close();
-				throw new RuntimeException("Failed : HTTP Error Code : " + 
-						response.getStatusLine());
-			}
-			BufferedReader br = new BufferedReader(new InputStreamReader(
-					response.getEntity().getContent()));
-			
-			String output = "";
-			String curr;
-			while ((curr = br.readLine()) != null) output += curr + "\n";
-			client.getConnectionManager().shutdown();
-			client.close();
-			return output;
-		}
-		catch (ClientProtocolException e) {
-			throw new IllegalArgumentException(url + " invalid endpoint");
+			return execute(getRequest);
 		}
 		catch (IOException e) {
-			throw new IllegalArgumentException(url + " invalid endpoint");
+			throw new IllegalArgumentException(url + " invalid endpoint : " + e.getMessage());
 		}
 	}
 	
@@ -54,33 +82,115 @@ public class RESTClient {
 	 */
 	public static String post(String url, String json) {
 		try{
-			DefaultHttpClient client = new DefaultHttpClient();
 			HttpPost postRequest = new HttpPost(url);
-			StringEntity input = new StringEntity(json);
-			input.setContentType("application/json");
-			postRequest.setEntity(input);
-			HttpResponse response = client.execute(postRequest);
-			if (response.getStatusLine().getStatusCode() != 200) {
-				client.close();
-				throw new RuntimeException("Failed : HTTP Error Code : " + 
-						response.getStatusLine());
-			}
-			BufferedReader br = new BufferedReader(new InputStreamReader(
-					response.getEntity().getContent()));
-			
-			String output = "";
-			String curr;
-			while ((curr = br.readLine()) != null) output += curr + "\n";
-			client.getConnectionManager().shutdown();
-			client.close();
-			return output;
+			postRequest.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+			return execute(postRequest);
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException(url + " invalid endpoint : " + e.getMessage());
+		}
+	}
+	
+	/** POST command on the provided endpoint, tried only once, giving up if connecting
+	 *  or waiting for the response takes longer than timeoutMillis. Return result.
+	 *  IllegalArgumentException thrown in case of failure.
+	 */
+	public static String post(String url, String json, int timeoutMillis) {
+		try{
+			HttpPost postRequest = new HttpPost(url);
+			postRequest.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+			postRequest.setConfig(RequestConfig.custom()
+					.setConnectTimeout(timeoutMillis)
+					.setSocketTimeout(timeoutMillis)
+					.setConnectionRequestTimeout(timeoutMillis)
+					.build());
+			return execute(postRequest, BUFFERED, 1);
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException(url + " invalid endpoint : " + e.getMessage());
+		}
+	}
+	
+	/** Something that reads the body of a successful response. */
+	interface BodyReader<T> {
+		public T read(HttpEntity body) throws IOException;
+	}
+	
+	/** Reads the whole body into one String. */
+	private static final BodyReader<String> BUFFERED = new BodyReader<String>() {
+		@Override
+		public String read(HttpEntity body) throws IOException {
+			return body == null ? "" : EntityUtils.toString(body, StandardCharsets.UTF_8);
 		}
-		catch (ClientProtocolException e) {
-			throw new IllegalArgumentException(url + " invalid endpoint");
+	};
+	
+	/** POST command on the provided endpoint with a raw body of the given
+	 *  content type. Return result.
+	 *  IllegalArgumentException thrown in case of failure.
+	 */
+	public static String post(String url, byte[] body, String contentType) {
+		try{
+			HttpPost postRequest = new HttpPost(url);
+			postRequest.setEntity(new ByteArrayEntity(body, ContentType.create(contentType)));
+			return execute(postRequest);
 		}
 		catch (IOException e) {
-			throw new IllegalArgumentException(url + " invalid endpoint");
+			throw new IllegalArgumentException(url + " invalid endpoint : " + e.getMessage());
 		}
 	}
 	
+	/** Send a request with the shared client and return the body of the response.
+	 *  Throws IOException if the request ultimately fails.
+	 */
+	static String execute(HttpRequestBase request) throws IOException {
+		return execute(request, BUFFERED);
+	}
+	
+	/** Send a request with the shared client and return whatever reader builds
+	 *  from the body of the response, which lets large bodies be read as a stream.
+	 *  Connection failures and server errors (5xx, or 429 Too Many Requests) are
+	 *  retried up to MAX_ATTEMPTS times in total; any other non-200 response is not.
+	 *  If reading the body fails, the whole request is retried and reader runs again.
+	 *
+	 *  Throws IOException if the request ultimately fails.
+	 */
+	static <T> T execute(HttpRequestBase request, BodyReader<T> reader) throws IOException {
+		return execute(request, reader, MAX_ATTEMPTS);
+	}
+	
+	/** As above, but tried at most the given number of times in total. */
+	private static <T> T execute(HttpRequestBase request, BodyReader<T> reader, int attempts) throws IOException {
+		long backoff = RETRY_BACKOFF_MILLIS;
+		for (int attempt = 1; ; attempt++) {
+			boolean retry;
+			IOException failure;
+			try (CloseableHttpResponse response = client.execute(request)) {
+				int status = response.getStatusLine().getStatusCode();
+				if (status == 200) {
+					return reader.read(response.getEntity());
+				}
+				// Drain the body so the connection can go back to the pool.
+				EntityUtils.consume(response.getEntity());
+				failure = new IOException("Failed : HTTP Error Code : " + response.getStatusLine());
+				retry = status >= 500 || status == 429;
+			}
+			catch (IOException e) {
+				failure = e;
+				retry = true;
+			}
+			if (!retry || attempt >= attempts) {
+				throw failure;
+			}
+			request.reset();
+			try {
+				Thread.sleep(backoff);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted before retrying " + request.getURI());
+			}
+			backoff *= 2;
+		}
+	}
+
 }
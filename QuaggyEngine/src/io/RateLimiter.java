@@ -0,0 +1,42 @@
+package io;
+
+/** Spaces out requests to a remote API so that, across every thread
+ *  sharing this limiter, at most a fixed number are started per second.
+ *  Callers block in acquire() until their turn comes up.
+ * @author Ryan Pindulic
+ */
+public class RateLimiter {
+	
+	private long intervalNanos;		// Minimum time between two requests
+	private long nextFree;			// Earliest time (System.nanoTime) the next request may start
+	
+	/** Create a limiter allowing requestsPerSecond requests every second.
+	 *  Throws IllegalArgumentException if requestsPerSecond is not positive.
+	 */
+	public RateLimiter(double requestsPerSecond) {
+		if (!(requestsPerSecond > 0)) {
+			throw new IllegalArgumentException("RateLimiter : rate must be positive");
+		}
+		this.intervalNanos = (long) (1e9 / requestsPerSecond);
+		this.nextFree = System.nanoTime();
+	}
+	
+	/** Block until we are allowed to make another request.
+	 *  Throws InterruptedException if interrupted while waiting.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait = reserve();
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		}
+	}
+	
+	/** Claim the next free slot, returning how many nanoseconds until it starts.
+	 *  Only the bookkeeping is done under the lock, so waiting threads don't block each other. */
+	private synchronized long reserve() {
+		long now = System.nanoTime();
+		long slot = Math.max(nextFree, now);
+		nextFree = slot + intervalNanos;
+		return slot - now;
+	}
+}
@@ -0,0 +1,83 @@
+package io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/** A file holding the latest value of every feature, so a freshly started edge
+ *  server can fill its cache in one transfer rather than waiting for us to
+ *  cycle through every item.
+ *
+ *  Format (version 1): "QSN", version (byte), then any number of frames,
+ *  each an int length followed by that many bytes of an encoded core.Digest.
+ *  Splitting it into frames means neither side holds the whole thing in memory
+ *  at once. QuaggyEdge/digest.py reads it.
+ *
+ *  A new snapshot is written next to the old one and then renamed over it, so
+ *  readers always see a complete file, and anyone who has the old one mapped
+ *  keeps reading the old one.
+ * @author Ryan Pindulic
+ */
+public class SnapshotFile {
+	
+	/** Version of the file format written by Writer. */
+	public static final int VERSION = 1;
+	/** Content type to serve snapshots with. */
+	public static final String CONTENT_TYPE = "application/x-quaggy-snapshot";
+	
+	private static final byte[] MAGIC = {'Q', 'S', 'N'};
+	
+	/** Map the snapshot at path into memory, read-only.
+	 *  Throws IOException if it doesn't exist or can't be read. */
+	public static MappedByteBuffer map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+	
+	/** Writes a new snapshot. Nothing is visible at the destination until commit(). */
+	public static class Writer implements AutoCloseable {
+		
+		private Path path;					// Where the snapshot ends up
+		private Path temp;					// Where we write it until it's complete
+		private DataOutputStream out;
+		private boolean committed = false;
+		
+		/** Start writing a snapshot to go at path. */
+		public Writer(Path path) throws IOException {
+			this.path = path.toAbsolutePath();
+			this.temp = Files.createTempFile(this.path.getParent(), path.getFileName().toString(), ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+		}
+		
+		/** Add an encoded digest to the snapshot. */
+		public void add(byte[] digest) throws IOException {
+			out.writeInt(digest.length);
+			out.write(digest);
+		}
+		
+		/** Finish the snapshot and move it into place, replacing any old one. */
+		public void commit() throws IOException {
+			out.close();
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+		
+		/** Throw away the snapshot if it was never committed. */
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				out.close();
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** Serves the latest SnapshotFile at /snapshot, so edge servers can fill
+ *  their caches when they start. The file is memory-mapped and copied straight
+ *  to the socket, so serving it costs no more than the transfer itself.
+ * @author Ryan Pindulic
+ */
+public class SnapshotServer {
+	
+	/** Path the snapshot is served at. */
+	public static final String PATH = "/snapshot";
+	
+	/** Number of edges that can download the snapshot at once. */
+	private static final int THREADS = 4;
+	
+	private HttpServer server;
+	private ExecutorService executor;
+	
+	/** Start serving the snapshot at file on the given port of the loopback interface.
+	 *  Throws IOException if the port can't be bound. */
+	public SnapshotServer(int port, Path file) throws IOException {
+		this(InetAddress.getLoopbackAddress().getHostAddress(), port, file);
+	}
+	
+	/** Start serving the snapshot at file on the given host name or address and port.
+	 *  Throws IOException if the port can't be bound. */
+	public SnapshotServer(String host, int port, final Path file) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange, file);
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newFixedThreadPool(THREADS);
+		server.setExecutor(executor);
+		server.start();
+	}
+	
+	/** The port we are serving on. */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+	
+	/** Stop serving. */
+	public void close() {
+		server.stop(0);
+		executor.shutdown();
+	}
+	
+	private static void serve(HttpExchange exchange, Path file) throws IOException {
+		if (!exchange.getRequestMethod().equals("GET")) {
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+		MappedByteBuffer snapshot;
+		try {
+			snapshot = SnapshotFile.map(file);
+		}
+		catch (NoSuchFileException e) { // No cycle has finished yet
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", SnapshotFile.CONTENT_TYPE);
+		exchange.sendResponseHeaders(200, snapshot.remaining());
+		OutputStream body = exchange.getResponseBody();
+		WritableByteChannel channel = Channels.newChannel(body);
+		while (snapshot.hasRemaining()) {
+			channel.write(snapshot);
+		}
+		body.close();
+	}
+}
@@ -3,6 +3,7 @@ package io;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONArray;
@@ -27,9 +28,21 @@ public class SpidyAPI extends API {
 	
 	private static final String TYPE_NAMES_LOC = "types";			//The location of the type names inde
 	private static final String ALL_ITEMS_LOC = "all-items/all";	//Location where a list of all in-game items is stored.
-
+	private static final String LISTINGS_LOC = "listings/";			//Location of the pages of an item's listing history
+	
+	public static final String DEFAULT_URL = "http://www.gw2spidy.com/api/v0.9/json/";
+	
+	// Settings for resyncing history.
+	private static final int BACKFILL_THREADS = 8;						// Items fetched at once
+	private static final double BACKFILL_REQUESTS_PER_SECOND = 10;		// Limit on pages fetched per second
+	
 	public SpidyAPI() {
-		super("http://www.gw2spidy.com/api/v0.9/json/");
+		this(DEFAULT_URL);
+	}
+	
+	/** Create an API reading from a Spidy API (or a copy of it) at the given base URL. */
+	public SpidyAPI(String url) {
+		super(url);
 		initTypeNames();
 	}
 	
@@ -43,126 +56,209 @@ public class SpidyAPI extends API {
 					JSONInterface.get(curr, "name"));
 		}
 	}
-
+	
 	@Override
 	public ItemDB getItemDB() {
 		//Debug comments
 		System.out.println();
 		System.out.println("****************");
 		System.out.println("Syncing items table from GW2 Spidy DB.");
-		//Create the map we will try to fill for the itemdb
-		Map<Integer, ItemInfo> itemDB = new HashMap<Integer, ItemInfo>();		
-		//Get item json from api
-		JSONObject json = JSONInterface.loadJSON(BASE_URL + ALL_ITEMS_LOC);
-		JSONArray results = JSONInterface.getArray(json, "results");
-		for (int i = 0; i < results.length(); i++) {
-			JSONObject item = JSONInterface.getObjectAtIndex(results, i);
-			//Load the necessary information from this item.
-			int id = JSONInterface.getInt(item, "data_id");
-			String name = JSONInterface.get(item, "name");
-			int typeID = JSONInterface.getInt(item, "type_id");
-			String type = typeNames.get(typeID);
-			if (type == null) {
-				throw new IllegalArgumentException("Type ID " + id + " detected for item " + 
-						id + " but not found in type database!");
+		//Stream item json from api, one item at a time
+		Map<Integer, ItemInfo> itemDB = JSONInterface.streamJSON(BASE_URL + ALL_ITEMS_LOC,
+				new JSONStream.Parser<Map<Integer, ItemInfo>>() {
+			@Override
+			public Map<Integer, ItemInfo> parse(JSONStream json) {
+				//Create the map we will try to fill for the itemdb
+				Map<Integer, ItemInfo> itemDB = new HashMap<Integer, ItemInfo>();
+				beginResults(json);
+				while (json.hasNext()) {
+					ItemInfo newInfo = parseItem(json);
+					itemDB.put(newInfo.getId(), newInfo);
+				}
+				skipRest(json);
+				return itemDB;
 			}
-			int rarity = JSONInterface.getInt(item, "rarity");
-			int level = JSONInterface.getInt(item, "restriction_level");
-			//TODO: Load these variables dynamically
-			int vendor_value = -1;
-			int default_skin = -1;
-			String urlLoc = JSONInterface.get(item, "img");
-			//Create the new itemInfo
-			ItemInfo newInfo = new ItemInfo(id, name, type, ""+rarity, ""+level,
-					""+vendor_value, ""+default_skin, urlLoc);
-			itemDB.put(id, newInfo);
-		}
+		});
 		System.out.println("Syncing items table complete.");
 		return new ItemDB(itemDB);
 	}
-
-
+	
+	/** Read a single item from the all items list, building its ItemInfo. */
+	private ItemInfo parseItem(JSONStream json) {
+		int id = -1, typeID = -1, rarity = -1, level = -1;
+		String name = null, urlLoc = null;
+		//Load the necessary information from this item, ignoring the rest.
+		json.beginObject();
+		String key;
+		while ((key = json.nextKey()) != null) {
+			switch (key) {
+				case "data_id": id = json.nextInt(); break;
+				case "name": name = json.nextString(); break;
+				case "type_id": typeID = json.nextInt(); break;
+				case "rarity": rarity = json.nextInt(); break;
+				case "restriction_level": level = json.nextInt(); break;
+				case "img": urlLoc = json.nextString(); break;
+				default: json.skipValue();
+			}
+		}
+		if (name == null || urlLoc == null) {
+			throw new IllegalArgumentException("Item " + id + " is missing its name or image");
+		}
+		String type = typeNames.get(typeID);
+		if (type == null) {
+			throw new IllegalArgumentException("Type ID " + typeID + " detected for item " + 
+					id + " but not found in type database!");
+		}
+		//TODO: Load these variables dynamically
+		int vendor_value = -1;
+		int default_skin = -1;
+		//Create the new itemInfo
+		return new ItemInfo(id, name, type, ""+rarity, ""+level,
+				""+vendor_value, ""+default_skin, urlLoc);
+	}
+	
+	
 	@Override
 	public TPSnapshot snapshot() {
 		//Debug comments
 		System.out.println();
 		System.out.println("****************");
 		System.out.println("Taking snapshot from GW2 Spidy DB.");
-		//Create a map we will try to fill for the snapshot
-		Map<Integer, TPItemInfo> snapshot = new HashMap<Integer, TPItemInfo>();
-		//Get JSON information from remote API
-		JSONObject json = JSONInterface.loadJSON(BASE_URL + ALL_ITEMS_LOC);
-		JSONArray results = JSONInterface.getArray(json, "results");
-		for (int i = 0; i < results.length(); i++) {
-			JSONObject curr = JSONInterface.getObjectAtIndex(results, i);
-			int id = JSONInterface.getInt(curr, "data_id");
-			int sellPrice = JSONInterface.getInt(curr, "min_sale_unit_price");
-			int numSell = JSONInterface.getInt(curr, "sale_availability");
-			int buyPrice = JSONInterface.getInt(curr, "max_offer_unit_price");
-			int numBuy = JSONInterface.getInt(curr, "offer_availability");
-			String timestamp = JSONInterface.get(curr, "price_last_changed");
-			TPItemInfo currentInfo = new TPItemInfo(id, numBuy, buyPrice, numSell, sellPrice, timestamp);
-			snapshot.put(id, currentInfo);
-		}
+		//Stream JSON information from remote API, one item at a time
+		Map<Integer, TPItemInfo> snapshot = JSONInterface.streamJSON(BASE_URL + ALL_ITEMS_LOC,
+				new JSONStream.Parser<Map<Integer, TPItemInfo>>() {
+			@Override
+			public Map<Integer, TPItemInfo> parse(JSONStream json) {
+				//Create a map we will try to fill for the snapshot
+				Map<Integer, TPItemInfo> snapshot = new HashMap<Integer, TPItemInfo>();
+				beginResults(json);
+				while (json.hasNext()) {
+					TPItemInfo currentInfo = parseListing(json);
+					snapshot.put(currentInfo.getID(), currentInfo);
+				}
+				skipRest(json);
+				return snapshot;
+			}
+		});
 		System.out.println("Taking snapshot complete.");
 		return new TPSnapshot(snapshot);
 	}
-
+	
+	/** Read a single item from the all items list, building its current TP state.
+	 *  Throws IllegalArgumentException if any of the fields we need are missing. */
+	private static TPItemInfo parseListing(JSONStream json) {
+		Integer id = null, sellPrice = null, numSell = null, buyPrice = null, numBuy = null;
+		String timestamp = null;
+		json.beginObject();
+		String key;
+		while ((key = json.nextKey()) != null) {
+			switch (key) {
+				case "data_id": id = json.nextInt(); break;
+				case "min_sale_unit_price": sellPrice = json.nextInt(); break;
+				case "sale_availability": numSell = json.nextInt(); break;
+				case "max_offer_unit_price": buyPrice = json.nextInt(); break;
+				case "offer_availability": numBuy = json.nextInt(); break;
+				case "price_last_changed": timestamp = json.nextString(); break;
+				default: json.skipValue();
+			}
+		}
+		if (id == null) {
+			throw new IllegalArgumentException("Item is missing data_id");
+		}
+		require(id, sellPrice, "min_sale_unit_price");
+		require(id, numSell, "sale_availability");
+		require(id, buyPrice, "max_offer_unit_price");
+		require(id, numBuy, "offer_availability");
+		require(id, timestamp, "price_last_changed");
+		return new TPItemInfo(id, numBuy, buyPrice, numSell, sellPrice, timestamp);
+	}
+	
+	/** Throw IllegalArgumentException if the named field of item id was missing. */
+	private static void require(int id, Object value, String name) {
+		if (value == null) {
+			throw new IllegalArgumentException("Item " + id + " is missing " + name);
+		}
+	}
+	
+	/** Read up to the start of the results array in a Spidy page,
+	 *  skipping any fields that come before it. */
+	private static void beginResults(JSONStream json) {
+		json.beginObject();
+		String key;
+		while ((key = json.nextKey()) != null) {
+			if (key.equals("results")) {
+				json.beginArray();
+				return;
+			}
+			json.skipValue();
+		}
+		throw new IllegalArgumentException("JSON get array : bad name results");
+	}
+	
+	/** Skip whatever fields of a Spidy page come after the results array. */
+	private static void skipRest(JSONStream json) {
+		while (json.nextKey() != null) {
+			json.skipValue();
+		}
+	}
+	
 	@Override
 	public void resyncHistory(DB database, boolean fresh, int historyHorizon, int start) {
+		resyncHistory(database, fresh, historyHorizon, start,
+				new SpidyBackfill(this, BACKFILL_THREADS, BACKFILL_REQUESTS_PER_SECOND));
+	}
+	
+	/** Same as resyncHistory above, but writing to any HistoryStore using the given backfill.
+	 *  Items the store has already backfilled are skipped, so calling this again
+	 *  after an interruption picks up where the last call left off.
+	 */
+	public void resyncHistory(HistoryStore store, boolean fresh, int historyHorizon, int start, SpidyBackfill backfill) {
 		DateTime firstDate = DateTime.daysBack(historyHorizon);
 		//Completely refresh the table if we want it to be fresh
 		if (fresh) {
-			database.dropListingsTable();
-			database.createListingsTable();
+			store.resetHistory();
 		}
 		//Debug print statements
 		System.out.println();
 		System.out.println("*****************");
 		System.out.println("Beginning Spidy DB History Sync.");
 		//Grab the list of items we'll need from the API
-		ItemDB items = getItemDB();
-		
-		//For each valid ID, get its history and write that history to the listings table
-		int numDone = 0;
-		for (Integer id : items.validIDS()) {
-			numDone++;
-			//Skip until we've found the appropriate starting location
-			if (id < start) continue;
-			//Provide update on our progress
-			System.out.println("Spidy DB History Sync Percent Complete : " + 
-					formatPercent(numDone, items.validIDS().size()) + ". Loading " + id);
-			//Get the history for this item from the API
-			ItemInfo augmented = getItemHistory(id, items);
-			//Don't bother wasting DB space if this isn't tradeable
-			int historySize = augmented.getHistory().size();
-			if (historySize == 0) continue;
-			//Add the history to the DB only if necessary.
-			for (TPItemInfo historical : augmented.getHistory()) {
-				if (historical.time().compareTo(firstDate) >= 0) {
-					database.addListing(historical);
-				}
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id : getItemDB().validIDS()) {
+			if (id >= start) ids.add(id);
+		}
+		try {
+			int failed = backfill.run(store, ids, firstDate);
+			if (failed > 0) {
+				System.out.println("Spidy DB History Sync could not load " + failed +
+						" items. Run again to retry them.");
+			}
+			else {
+				System.out.println("Spidy DB History Sync Complete.");
 			}
 		}
-		System.out.println("Spidy DB History Sync Complete.");
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Spidy DB History Sync interrupted. Run again to resume.");
+		}
 	}
 	
-
 	/** Given an itemID, return that item's entire history, as stored
-	 * by the GW2Spidy API, as an ItemInfo object. Requires the current itemDB
-	 * so it knows how to initialize the item without history.
+	 *  by the GW2Spidy API, sorted from newest to oldest.
+	 *  Waits on limiter (if not null) before requesting each page.
+	 *  
+	 *  Throws IllegalArgumentException if a page cannot be loaded, and
+	 *  InterruptedException if interrupted while waiting on the limiter.
 	 */
-	private ItemInfo getItemHistory(int itemID, ItemDB items) {
-		//Base item info, w/o history
-		ItemInfo baseInfo = new ItemInfo(items.getItemInfo(itemID));
+	List<TPItemInfo> getItemHistory(int itemID, RateLimiter limiter) throws InterruptedException {
 		//Map from timestamps to their corresponding info
 		HashMap<String, TPItemInfo> history = new HashMap<String, TPItemInfo>();
 		
 		//First, add sell listings
 		int currPage = 1, lastPage = -1; //for traversing API
 		do{
-			String url = BASE_URL + "listings/" + itemID + "/sell/" + currPage;
-			JSONObject sellJSON = JSONInterface.loadJSON(url);
+			String url = BASE_URL + LISTINGS_LOC + itemID + "/sell/" + currPage;
+			JSONObject sellJSON = loadJSON(url, limiter);
 			//Update our page navigation information
 			currPage = JSONInterface.getInt(sellJSON, "page");
 			lastPage = JSONInterface.getInt(sellJSON, "last_page");
@@ -184,8 +280,8 @@ public class SpidyAPI extends API {
 		//Next, add buy listings
 		currPage = 1; lastPage = -1; //for traversing API
 		do{
-			String url = BASE_URL + "listings/" + itemID + "/buy/" + currPage;
-			JSONObject sellJSON = JSONInterface.loadJSON(url);
+			String url = BASE_URL + LISTINGS_LOC + itemID + "/buy/" + currPage;
+			JSONObject sellJSON = loadJSON(url, limiter);
 			//Update our page navigation information
 			currPage = JSONInterface.getInt(sellJSON, "page");
 			lastPage = JSONInterface.getInt(sellJSON, "last_page");
@@ -210,19 +306,19 @@ public class SpidyAPI extends API {
 		}
 		while (currPage <= lastPage);
 		
-		//Convert our hashmap to an arraylist of all timestamps for which we have information
-		ArrayList<TPItemInfo> finalList = new ArrayList<TPItemInfo>();
-		for (String timestamp : history.keySet()) {
-			TPItemInfo snap = history.get(timestamp);
-			finalList.add(snap);
-		}
-		
+		//Convert our hashmap to a list of all timestamps for which we have information
+		List<TPItemInfo> finalList = new ArrayList<TPItemInfo>(history.values());
 		//Sort list by timestamp
 		Collections.sort(finalList);
-		//Update our (copied) item DB to include history and return it
-		baseInfo.setHistory(finalList);
-		return baseInfo;
-			
+		return finalList;
+	}
+	
+	/** Load a JSON page, first waiting our turn on limiter if it is not null. */
+	private static JSONObject loadJSON(String url, RateLimiter limiter) throws InterruptedException {
+		if (limiter != null) {
+			limiter.acquire();
+		}
+		return JSONInterface.loadJSON(url);
 	}
 
 }
@@ -0,0 +1,160 @@
+package io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import core.DateTime;
+import core.TPItemInfo;
+
+/** Pulls the listing history of many items from the Spidy API at once.
+ *  A fixed number of worker threads each fetch the pages of one item at a time,
+ *  sharing a RateLimiter so we don't hammer the API. Finished items are handed
+ *  to the calling thread, which writes them to a HistoryStore in batches and
+ *  records them as done, so a backfill that is stopped part way can be resumed.
+ * @author Ryan Pindulic
+ */
+public class SpidyBackfill {
+	
+	// Number of fetched items that may wait to be written before workers block.
+	private static final int RESULT_QUEUE_CAPACITY = 64;
+	
+	private SpidyAPI api;				// Where to fetch history from
+	private int threads;				// Number of items fetched at once
+	private RateLimiter limiter;		// Shared by every worker
+	private int batchSize = DB.DEFAULT_BATCH_SIZE;	// Rows to collect before writing
+	
+	/** Create a backfill reading from api with the given number of threads,
+	 *  requesting at most requestsPerSecond pages every second.
+	 *  Throws IllegalArgumentException if threads or requestsPerSecond is not positive.
+	 */
+	public SpidyBackfill(SpidyAPI api, int threads, double requestsPerSecond) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("SpidyBackfill : threads must be positive");
+		}
+		this.api = api;
+		this.threads = threads;
+		this.limiter = new RateLimiter(requestsPerSecond);
+	}
+	
+	/** Sets roughly how many rows are collected before they are written to the store.
+	 *  Throws IllegalArgumentException if batchSize < 1. */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("SpidyBackfill : batch size must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+	
+	/** Backfill the history of each item in ids that occurred on or after firstDate,
+	 *  skipping any item the store has already backfilled.
+	 *  Once every item has been stored, the store's progress is cleared.
+	 *
+	 *  Items whose history cannot be loaded are skipped and left out of the progress,
+	 *  so the next run tries them again. Returns the number of such items.
+	 *  Throws InterruptedException if interrupted; everything written so far is kept.
+	 */
+	public int run(HistoryStore store, List<Integer> ids, final DateTime firstDate) throws InterruptedException {
+		Set<Integer> done = store.backfilledIDs();
+		List<Integer> todo = new ArrayList<Integer>();
+		for (int id : ids) {
+			if (!done.contains(id)) todo.add(id);
+		}
+		if (todo.size() < ids.size()) {
+			System.out.println("Resuming backfill, " + (ids.size() - todo.size()) + " of " +
+					ids.size() + " items already done.");
+		}
+		
+		final BlockingQueue<Fetched> results = new ArrayBlockingQueue<Fetched>(RESULT_QUEUE_CAPACITY);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		int failed = 0;
+		try {
+			for (final int id : todo) {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						// Always hand back a result, or the loop below waits for it forever.
+						Fetched result = new Fetched(id, null);
+						try {
+							result = fetch(id, firstDate);
+						}
+						catch (InterruptedException e) {
+							// Backfill was stopped; leave this item for next time.
+							return;
+						}
+						catch (Throwable e) {
+							System.out.println("Could not load history for item " + id + " : " + e);
+						}
+						try {
+							results.put(result);
+						}
+						catch (InterruptedException e) {
+							// Backfill was stopped; leave this item for next time.
+						}
+					}
+				});
+			}
+			
+			// Write results as they come in, a batch at a time.
+			List<TPItemInfo> pending = new ArrayList<TPItemInfo>();
+			List<Integer> pendingIDs = new ArrayList<Integer>();
+			for (int numDone = 1; numDone <= todo.size(); numDone++) {
+				Fetched item = results.take();
+				if (item.listings == null) {
+					failed++;
+				}
+				else {
+					pending.addAll(item.listings);
+					pendingIDs.add(item.id);
+				}
+				if (!pendingIDs.isEmpty() && (pending.size() >= batchSize || numDone == todo.size())) {
+					store.addBackfill(pending, pendingIDs);
+					pending.clear();
+					pendingIDs.clear();
+					System.out.println("Spidy DB History Sync Percent Complete : " +
+							API.formatPercent(numDone, todo.size()) + ". Loaded " + item.id);
+				}
+			}
+		}
+		finally {
+			workers.shutdownNow();
+		}
+		if (failed == 0) {
+			store.clearBackfill();
+		}
+		return failed;
+	}
+	
+	/** Fetch the history of a single item, keeping only listings on or after firstDate.
+	 *  Failures are reported in the result rather than thrown. */
+	private Fetched fetch(int id, DateTime firstDate) throws InterruptedException {
+		try {
+			List<TPItemInfo> listings = new ArrayList<TPItemInfo>();
+			for (TPItemInfo historical : api.getItemHistory(id, limiter)) {
+				if (historical.time().compareTo(firstDate) >= 0) {
+					listings.add(historical);
+				}
+			}
+			return new Fetched(id, listings);
+		}
+		catch (RuntimeException e) {
+			System.out.println("Could not load history for item " + id + " : " + e.getMessage());
+			return new Fetched(id, null);
+		}
+	}
+	
+	/** The history loaded for one item. Listings are null if loading failed. */
+	private static class Fetched {
+		private int id;
+		private List<TPItemInfo> listings;
+		
+		private Fetched(int id, List<TPItemInfo> listings) {
+			this.id = id;
+			this.listings = listings;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ConnectionPool;
+
+/** Checks ConnectionPool against a stub JDBC driver whose connections only track their state. */
+public class ConnectionPoolTester {
+	
+	private static final String URL = "jdbc:quaggystub:test";
+	
+	private StubDriver driver = new StubDriver();
+	
+	/** What a stub connection has been asked to do. */
+	private static class StubState {
+		private boolean autoCommit = true;
+		private int rollbacks = 0;
+		private boolean closed = false;
+	}
+	
+	/** Hands out stub connections, keeping the state of each. */
+	private static class StubDriver implements Driver {
+		private List<StubState> opened = Collections.synchronizedList(new ArrayList<StubState>());
+		
+		@Override
+		public Connection connect(String url, Properties info) throws SQLException {
+			if (!acceptsURL(url)) return null;
+			final StubState state = new StubState();
+			opened.add(state);
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] {Connection.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					switch (method.getName()) {
+					case "isValid": return !state.closed;
+					case "isClosed": return state.closed;
+					case "getAutoCommit": return state.autoCommit;
+					case "setAutoCommit": state.autoCommit = (Boolean) args[0]; return null;
+					case "rollback": state.rollbacks++; return null;
+					case "close": state.closed = true; return null;
+					case "hashCode": return System.identityHashCode(proxy);
+					case "equals": return proxy == args[0];
+					default: throw new UnsupportedOperationException(method.getName());
+					}
+				}
+			});
+		}
+		
+		@Override
+		public boolean acceptsURL(String url) {
+			return url.equals(URL);
+		}
+		
+		@Override
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+		
+		@Override
+		public int getMajorVersion() {
+			return 1;
+		}
+		
+		@Override
+		public int getMinorVersion() {
+			return 0;
+		}
+		
+		@Override
+		public boolean jdbcCompliant() {
+			return false;
+		}
+		
+		@Override
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
+	
+	@Before
+	public void registerDriver() throws SQLException {
+		DriverManager.registerDriver(driver);
+	}
+	
+	@After
+	public void deregisterDriver() throws SQLException {
+		DriverManager.deregisterDriver(driver);
+	}
+	
+	@Test
+	public void timesOut() throws SQLException {
+		ConnectionPool pool = new ConnectionPool(URL, new Properties(), 1, 50);
+		Connection conn = pool.borrow();
+		try {
+			pool.borrow();
+			fail("Borrowed more connections than the pool holds");
+		}
+		catch (SQLException e) {
+			// Expected
+		}
+		assertEquals(1, pool.timeouts());
+		
+		// Once it's back, the same connection is handed out again.
+		pool.release(conn);
+		assertSame(conn, pool.borrow());
+		assertEquals(1, driver.opened.size());
+	}
+	
+	@Test
+	public void servesWaitersInOrder() throws SQLException, InterruptedException {
+		final ConnectionPool pool = new ConnectionPool(URL, new Properties(), 1, 5000);
+		Connection conn = pool.borrow();
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> waiters = new ArrayList<Thread>();
+		for (final String name : new String[] {"first", "second", "third"}) {
+			Thread waiter = new Thread(() -> {
+				try {
+					Connection borrowed = pool.borrow();
+					order.add(name);
+					pool.release(borrowed);
+				}
+				catch (SQLException e) {
+					order.add(e.getMessage());
+				}
+			});
+			waiter.start();
+			waiters.add(waiter);
+			// Give it time to start waiting before the next one does.
+			Thread.sleep(100);
+		}
+		pool.release(conn);
+		for (Thread waiter : waiters) {
+			waiter.join();
+		}
+		assertEquals(3, order.size());
+		assertEquals("first", order.get(0));
+		assertEquals("second", order.get(1));
+		assertEquals("third", order.get(2));
+	}
+	
+	@Test
+	public void rollsBackOnRelease() throws SQLException {
+		ConnectionPool pool = new ConnectionPool(URL, new Properties(), 2, 50);
+		Connection conn = pool.borrow();
+		conn.setAutoCommit(false);
+		pool.release(conn);
+		StubState state = driver.opened.get(0);
+		assertEquals(1, state.rollbacks);
+		assertTrue(state.autoCommit);
+		
+		// Committed connections are handed back as they are.
+		conn = pool.borrow();
+		pool.release(conn);
+		assertEquals(1, state.rollbacks);
+		assertFalse(state.closed);
+	}
+	
+	@Test
+	public void closesReleasedConnections() throws SQLException {
+		ConnectionPool pool = new ConnectionPool(URL, new Properties(), 2, 50);
+		Connection idle = pool.borrow();
+		Connection borrowed = pool.borrow();
+		pool.release(idle);
+		pool.close();
+		assertTrue(driver.opened.get(0).closed);
+		assertFalse(driver.opened.get(1).closed);
+		
+		// Connections borrowed before closing are closed when they come back.
+		pool.release(borrowed);
+		assertTrue(driver.opened.get(1).closed);
+		assertEquals(0, pool.idle());
+		try {
+			pool.borrow();
+			fail("Borrowed from a closed pool");
+		}
+		catch (SQLException e) {
+			// Expected
+		}
+	}
+}
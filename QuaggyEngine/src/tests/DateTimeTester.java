@@ -45,4 +45,25 @@ public class DateTimeTester {
 		assertEquals(0, DateTime.daysBetween(t2, t1));
 	}
 
+	@Test
+	public void epochSeconds() {
+		assertEquals(0, new DateTime("1970-01-01 00:00:00").toEpochSeconds());
+		assertEquals(1451606400L, new DateTime("2016-01-01 00:00:00").toEpochSeconds());
+		assertEquals(951782400L, new DateTime("2000-02-29 00:00:00").toEpochSeconds());
+		
+		DateTime t1, t2;
+		t1 = new DateTime("2015-12-27 01:16:54");
+		assertTrue(DateTime.fromEpochSeconds(t1.toEpochSeconds()).equals(t1));
+		t1 = new DateTime("2016-02-29 23:59:59");
+		assertTrue(DateTime.fromEpochSeconds(t1.toEpochSeconds()).equals(t1));
+		assertEquals(t1.toEpochSeconds() + 1, t1.add(DateTime.DELTA_TIME).toEpochSeconds());
+		
+		// Negative intervals, and undoing an interval with its inverse.
+		t1 = new DateTime("2016-03-01 00:30:00");
+		t2 = new DateTime("0000-00-~1 ~1:00:00");
+		assertEquals("2016-2-28 23:30:0", t1.add(t2).toString());
+		assertTrue(t1.add(t2).add(t2.invert()).equals(t1));
+		assertEquals(2, DateTime.daysBetween(t1.add(t2), t1));
+	}
+
 }
@@ -0,0 +1,169 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import core.FeatureIndex;
+import core.FeatureVector;
+import core.FeatureVector.Feature;
+import core.FeatureVector.Mode;
+import core.Filter;
+import core.ItemDB;
+import core.ItemFeatures;
+import core.TPItemInfo;
+import core.TPSnapshot;
+
+/** Checks that FeatureIndex answers filters the same as checking every feature vector. */
+public class FeatureIndexTester {
+	
+	/** History windows of the index, in days. */
+	static final int[] HISTORY = {1, 10};
+	
+	/** An item's features over every window and pair of modes. */
+	static ItemFeatures features(ItemDB items, TPSnapshot snapshot, int id) {
+		ItemFeatures result = new ItemFeatures(id, HISTORY.length);
+		for (int w = 0; w < HISTORY.length; w++) {
+			for (Mode buy : Mode.values()) {
+				for (Mode sell : Mode.values()) {
+					result.set(w, buy, sell, new FeatureVector(id, items, snapshot, HISTORY[w], buy, sell));
+				}
+			}
+		}
+		return result;
+	}
+	
+	/** An index holding every item in snapshot. */
+	private static FeatureIndex index(ItemDB items, TPSnapshot snapshot) {
+		FeatureIndex index = new FeatureIndex(HISTORY);
+		for (int id : snapshot.validIDS()) {
+			index.update(features(items, snapshot, id));
+		}
+		return index;
+	}
+	
+	/** A snapshot of items in which some change, and some stop being traded. */
+	private static TPSnapshot changed(ItemDB items, Random rand) {
+		Map<Integer, TPItemInfo> rows = new HashMap<Integer, TPItemInfo>();
+		for (int id : items.validIDS()) {
+			TPItemInfo row = items.snapshot().get(id);
+			int change = rand.nextInt(4);
+			rows.put(id, (change > 1) ? row : new TPItemInfo(id, change * rand.nextInt(3000),
+					row.get(TPItemInfo.Attribute.BuyPrice), rand.nextInt(3000),
+					row.get(TPItemInfo.Attribute.SellPrice), row.time()));
+		}
+		return new TPSnapshot(rows);
+	}
+	
+	/** The items with features in snapshot passing filter, found by checking every one,
+	 *  in the filter's order. */
+	private static List<FeatureVector> scan(ItemDB items, TPSnapshot snapshot, Collection<Integer> ids,
+			final Filter filter) {
+		int days = HISTORY[0];
+		for (int window : HISTORY) {
+			if (window <= filter.historyDays()) {
+				days = window;
+			}
+		}
+		List<FeatureVector> result = new ArrayList<FeatureVector>();
+		for (int id : ids) {
+			FeatureVector fv = new FeatureVector(id, items, snapshot, days, filter.buyMode(), filter.sellMode());
+			if (filter.matches(fv)) {
+				result.add(fv);
+			}
+		}
+		Collections.sort(result, (FeatureVector a, FeatureVector b) -> filter.compare(
+				a.get(filter.sortFeature()), (int) a.get(Feature.ItemID),
+				b.get(filter.sortFeature()), (int) b.get(Feature.ItemID)));
+		return result;
+	}
+	
+	/** Check that index answers filter with expected, a page at a time if it has a limit. */
+	private static void assertPages(FeatureIndex index, String filter, List<FeatureVector> expected) {
+		Filter page = Filter.parse(filter);
+		int seen = 0;
+		while (true) {
+			FeatureIndex.Result result = index.query(page);
+			assertTrue(page.limit() > 0 || result.total() >= 0);
+			if (result.total() >= 0) {
+				assertEquals(expected.size(), result.total());
+			}
+			for (double[] values : result.items()) {
+				assertEquals(expected.get(seen).get(Feature.ItemID), values[Feature.ItemID.ordinal()], 0);
+				assertEquals(expected.get(seen).get(page.sortFeature()), values[page.sortFeature().ordinal()], 0);
+				seen++;
+			}
+			if (result.next() == null) break;
+			assertEquals(page.limit(), result.items().size());
+			page = Filter.parse(filter.substring(0, filter.length() - 1) + ", \"After\": \"" + result.next() + "\"}");
+		}
+		assertEquals(expected.size(), seen);
+	}
+	
+	@Test
+	public void answersLikeScanning() {
+		ItemDB items = FilterTester.items(new Random(5), 300);
+		FeatureIndex index = index(items, items.snapshot());
+		assertEquals(300, index.size());
+		String all = FilterTester.FILTER.replace("\"Limit\": 10, ", "");
+		for (String filter : new String[] {all, all.replace("Desc", "Asc"), all.replace("12", "1")}) {
+			List<FeatureVector> expected = scan(items, items.snapshot(), items.validIDS(), Filter.parse(filter));
+			assertTrue(expected.size() > 0 && expected.size() < 300);
+			assertPages(index, filter, expected);
+		}
+	}
+	
+	@Test
+	public void keepsSortedColumnsUpToDate() {
+		Random rand = new Random(5);
+		ItemDB items = FilterTester.items(rand, 300);
+		FeatureIndex index = index(items, items.snapshot());
+		String filter = FilterTester.FILTER.replace("\"Limit\": 10, ", "");
+		// Answering builds the sorted columns, which then have to follow the changes.
+		assertPages(index, filter, scan(items, items.snapshot(), items.validIDS(), Filter.parse(filter)));
+		
+		// Items that stop being traded are dropped, the rest are replaced.
+		TPSnapshot snapshot = changed(items, rand);
+		Set<Integer> keep = new HashSet<Integer>();
+		for (int id : items.validIDS()) {
+			if (snapshot.get(id).get(TPItemInfo.Attribute.NumBuy) == 0) continue;
+			keep.add(id);
+			if (snapshot.get(id) != items.snapshot().get(id)) {
+				index.update(features(items, snapshot, id));
+			}
+		}
+		index.retainAll(keep);
+		assertTrue(keep.size() < 300);
+		assertEquals(keep.size(), index.size());
+		assertPages(index, filter, scan(items, snapshot, keep, Filter.parse(filter)));
+	}
+	
+	@Test
+	public void pagesInOrder() {
+		ItemDB items = FilterTester.items(new Random(5), 300);
+		FeatureIndex index = index(items, items.snapshot());
+		// Both a selective filter, for which every item passing is found, and one without
+		// bounds, for which the index goes through the sorted order until the page is full.
+		String selective = FilterTester.FILTER;
+		String broad = selective.replaceAll("\"Bounds\": \\{.*\\}\\}$", "\"Bounds\": {}}");
+		assertNotEquals(selective, broad);
+		for (String filter : new String[] {selective, broad}) {
+			for (String order : new String[] {"Desc", "Asc"}) {
+				for (int limit : new int[] {0, 1, 10, 100}) {
+					String page = filter.replace("Desc", order).replace("\"Limit\": 10", "\"Limit\": " + limit);
+					assertPages(index, page, scan(items, items.snapshot(), items.validIDS(), Filter.parse(page)));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,466 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import core.DateTime;
+import core.Digest;
+import core.FeatureStore;
+import core.FeatureVector;
+import core.FeatureVector.Feature;
+import core.FeatureVector.Mode;
+import core.ItemDB;
+import core.ItemInfo;
+import core.TPItemInfo;
+import core.TPSnapshot;
+import io.DigestBroadcaster;
+import io.SnapshotFile;
+import io.SnapshotServer;
+
+/** Checks which features FeatureStore sends to a stub edge server. */
+public class FeatureStoreTester {
+	
+	private static final int NUM_ITEMS = 3;
+	
+	private List<HttpServer> servers = new ArrayList<HttpServer>();
+	private List<String> received = Collections.synchronizedList(new ArrayList<String>());
+	private String endpoint;
+	
+	@Before
+	public void startServer() throws IOException {
+		endpoint = startEdge(received, new AtomicBoolean(true));
+	}
+	
+	/** Start a stub edge server which adds the keys of every digest it gets to received,
+	 *  or fails with a 500 if up is not set. Returns its digest endpoint. */
+	private String startEdge(final List<String> received, final AtomicBoolean up) throws IOException {
+		return startEdge(received, null, up);
+	}
+	
+	/** Start a stub edge server as above, which also adds every key and value it gets
+	 *  to values, if that is not null. */
+	private String startEdge(final List<String> received, final List<String> values, final AtomicBoolean up)
+			throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/backend/digest", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				assertEquals(Digest.CONTENT_TYPE, exchange.getRequestHeaders().getFirst("Content-Type"));
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				InputStream in = exchange.getRequestBody();
+				byte[] buffer = new byte[4096];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					body.write(buffer, 0, n);
+				}
+				if (up.get()) {
+					Map<String, Double> digest = Digest.decode(body.toByteArray());
+					received.addAll(digest.keySet());
+					if (values != null) {
+						for (Map.Entry<String, Double> entry : digest.entrySet()) {
+							values.add(entry.getKey() + "=" + entry.getValue());
+						}
+					}
+				}
+				exchange.sendResponseHeaders(up.get() ? 200 : 500, -1);
+				OutputStream out = exchange.getResponseBody();
+				out.close();
+			}
+		});
+		server.start();
+		servers.add(server);
+		return "http://localhost:" + server.getAddress().getPort() + "/backend/digest";
+	}
+	
+	@After
+	public void stopServer() {
+		for (HttpServer server : servers) {
+			server.stop(0);
+		}
+	}
+	
+	/** Build items with a day of hourly history. */
+	private ItemDB items() {
+		return items(NUM_ITEMS);
+	}
+	
+	/** Build count items with a day of hourly history. */
+	private ItemDB items(int count) {
+		Map<Integer, ItemInfo> map = new HashMap<Integer, ItemInfo>();
+		for (int id = 1; id <= count; id++) {
+			ItemInfo item = new ItemInfo(id, "Item " + id, "Crafting Material", "1", "0", "-1", "-1", "");
+			List<TPItemInfo> history = new ArrayList<TPItemInfo>();
+			DateTime time = new DateTime("2016-02-20 12:00:00");
+			DateTime step = new DateTime("00-00-00 ~1:00:00");
+			for (int i = 0; i < 24; i++) {
+				history.add(new TPItemInfo(id, 10 + i, 100 * id + i % 5, 20 + i, 150 * id + i % 7, time.toString()));
+				time = time.add(step);
+			}
+			item.setHistory(history);
+			map.put(id, item);
+		}
+		return new ItemDB(map);
+	}
+	
+	/** A snapshot of items, with item 1's buy price raised. */
+	private TPSnapshot bumped(ItemDB items) {
+		return bumped(items, 3);
+	}
+	
+	/** A snapshot of items, with item 1's buy price raised by the given amount. */
+	private TPSnapshot bumped(ItemDB items, int by) {
+		Map<Integer, TPItemInfo> rows = new HashMap<Integer, TPItemInfo>();
+		for (int id : items.validIDS()) {
+			rows.put(id, items.getItemInfo(id).getHistory().get(0));
+		}
+		TPItemInfo old = rows.get(1);
+		rows.put(1, new TPItemInfo(1, old.get(TPItemInfo.Attribute.NumBuy),
+				old.get(TPItemInfo.Attribute.BuyPrice) + by, old.get(TPItemInfo.Attribute.NumSell),
+				old.get(TPItemInfo.Attribute.SellPrice), old.time()));
+		return new TPSnapshot(rows);
+	}
+	
+	/** A copy of snapshot with row in place of its item's row. */
+	private static TPSnapshot withRow(TPSnapshot snapshot, TPItemInfo row) {
+		Map<Integer, TPItemInfo> rows = new HashMap<Integer, TPItemInfo>();
+		for (int id : snapshot.validIDS()) {
+			rows.put(id, snapshot.get(id));
+		}
+		rows.put(row.getID(), row);
+		return new TPSnapshot(rows);
+	}
+	
+	/** A snapshot of items with item 1's buy price raised, and item 2 barely traded,
+	 *  which leaves item 2 quiet (see ItemPriority) for a cycle. */
+	private TPSnapshot quiet(ItemDB items) {
+		TPItemInfo row = items.snapshot().get(2);
+		return withRow(bumped(items), new TPItemInfo(2, 1, row.get(TPItemInfo.Attribute.BuyPrice), 1,
+				row.get(TPItemInfo.Attribute.SellPrice), row.time()));
+	}
+	
+	@Test
+	public void digestRoundTrip() {
+		ItemDB items = items();
+		TPSnapshot snapshot = items.snapshot();
+		FeatureVector fv = new FeatureVector(2, items, snapshot, 9, Mode.INSTANT, Mode.BID);
+		Digest digest = new Digest(new int[] {1, 9});
+		long mask = (1L << Feature.SellPrice.ordinal()) | (1L << Feature.MedianProfit.ordinal());
+		digest.add(2, 1, Mode.INSTANT, Mode.BID, fv, mask);
+		assertEquals(2, digest.size());
+		
+		for (boolean compress : new boolean[] {false, true}) {
+			Map<String, Double> decoded = Digest.decode(digest.encode(compress));
+			assertEquals(2, decoded.size());
+			assertEquals(fv.get(Feature.SellPrice), decoded.get("2:9:Instant:Bid:SellPrice"), 0);
+			assertEquals(fv.get(Feature.MedianProfit), decoded.get("2:9:Instant:Bid:MedianProfit"), 0);
+		}
+	}
+	
+	@Test(timeout = 5000)
+	public void closeDropsQueuedDigests() throws IOException, InterruptedException {
+		// An edge slow enough that digests are still queued when we close.
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/backend/digest", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(500);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		servers.add(server);
+		DigestBroadcaster edge = new DigestBroadcaster("http://localhost:" + server.getAddress().getPort() +
+				"/backend/digest", new int[] {1}, 1, 16, 1, 0);
+		ItemDB items = items();
+		FeatureVector fv = new FeatureVector(1, items, items.snapshot(), 1, Mode.INSTANT, Mode.BID);
+		for (int i = 0; i < 5; i++) {
+			Digest digest = new Digest(new int[] {1});
+			digest.add(1, 0, Mode.INSTANT, Mode.BID, fv, 1L << Feature.SellPrice.ordinal());
+			edge.submit(digest);
+		}
+		
+		// Neither waits for digests that will never be sent.
+		edge.close();
+		assertTrue(edge.dropped() >= 4);
+		try {
+			edge.flush();
+			fail("Flushed a closed broadcaster");
+		}
+		catch (IllegalStateException e) {
+			// Expected
+		}
+		try {
+			edge.submit(new Digest(new int[] {1}));
+			fail("Submitted to a closed broadcaster");
+		}
+		catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+	
+	@Test
+	public void sendsOnlyChanges() throws InterruptedException {
+		ItemDB items = items();
+		FeatureStore store = new FeatureStore(2, endpoint);
+		store.setFullResyncCycles(3);
+		int perItem = 14 * 4 * FeatureVector.Feature.values().length;
+		
+		// The first cycle sends everything.
+		store.load(items, items.snapshot());
+		store.flush();
+		assertEquals(NUM_ITEMS * perItem, received.size());
+		
+		// Nothing changed, so nothing is sent.
+		received.clear();
+		store.load(items, items.snapshot());
+		store.flush();
+		assertEquals(0, received.size());
+		
+		// Only the features of item 1 that depend on its buy price are sent.
+		received.clear();
+		store.load(items, bumped(items));
+		store.flush();
+		assertFalse(received.isEmpty());
+		assertTrue(received.size() < perItem);
+		for (String key : received) {
+			assertTrue(key, key.startsWith("1:"));
+			assertFalse(key, key.endsWith(":ItemID") || key.endsWith(":SellPrice"));
+		}
+		
+		// Third cycle since the last full one, so everything is sent again.
+		received.clear();
+		store.load(items, bumped(items));
+		store.flush();
+		assertEquals(NUM_ITEMS * perItem, received.size());
+		store.close();
+	}
+	
+	@Test
+	public void sendsCreepingChanges() throws InterruptedException {
+		ItemDB items = items();
+		FeatureStore store = new FeatureStore(1, endpoint);
+		store.setEpsilon(1.5);
+		String key = "1:1:Instant:Instant:BuyPrice";
+		store.load(items, items.snapshot());
+		store.flush();
+		assertTrue(received.contains(key));
+		
+		// Moving less than epsilon from what the edge has isn't sent...
+		received.clear();
+		store.load(items, bumped(items, 1));
+		store.flush();
+		assertFalse(received.contains(key));
+		
+		// ...but moving less than epsilon again takes it past epsilon from what the edge has.
+		received.clear();
+		store.load(items, bumped(items, 2));
+		store.flush();
+		assertTrue(received.contains(key));
+		
+		// Which is then what later values are compared with.
+		received.clear();
+		store.load(items, bumped(items, 3));
+		store.flush();
+		assertFalse(received.contains(key));
+		store.close();
+	}
+	
+	@Test
+	public void sameForAnyThreadCount() throws IOException, InterruptedException {
+		// Enough items that the pool splits them between workers.
+		ItemDB items = items(50);
+		List<List<String>> sent = new ArrayList<List<String>>();
+		for (int threads : new int[] {1, 4}) {
+			List<String> values = Collections.synchronizedList(new ArrayList<String>());
+			FeatureStore store = new FeatureStore(threads, startEdge(received, values,
+					new AtomicBoolean(true)));
+			store.load(items, items.snapshot());
+			store.load(items, bumped(items));
+			store.flush();
+			store.close();
+			Collections.sort(values);
+			sent.add(values);
+		}
+		assertFalse(sent.get(0).isEmpty());
+		assertEquals(sent.get(0), sent.get(1));
+	}
+	
+	@Test
+	public void recomputesBusiestFirst() throws InterruptedException {
+		ItemDB items = items();
+		FeatureStore store = new FeatureStore(1, endpoint);
+		store.load(items, items.snapshot());
+		assertEquals(Arrays.asList(1, 2, 3), store.lastRecomputed());
+		
+		// When everything is resent, the item that moved goes first and the quiet one last.
+		store.setFullResyncCycles(1);
+		store.load(items, quiet(items));
+		assertEquals(Arrays.asList(1, 3, 2), store.lastRecomputed());
+		store.close();
+	}
+	
+	@Test
+	public void defersQuietItems() throws InterruptedException {
+		ItemDB items = items();
+		FeatureStore store = new FeatureStore(1, endpoint);
+		store.load(items, items.snapshot());
+		
+		// Item 2 changed, but so little that it can wait...
+		store.load(items, quiet(items));
+		assertEquals(Arrays.asList(1), store.lastRecomputed());
+		
+		// ...but not for more than QUIET_CYCLES cycles.
+		boolean recomputed = false;
+		for (int cycle = 2; cycle <= FeatureStore.QUIET_CYCLES && !recomputed; cycle++) {
+			store.load(items, quiet(items));
+			recomputed = store.lastRecomputed().contains(2);
+		}
+		assertTrue(recomputed);
+		store.load(items, quiet(items));
+		assertTrue(store.lastRecomputed().isEmpty());
+		store.close();
+	}
+	
+	@Test
+	public void finishesOverBudgetItemsNextCycle() throws InterruptedException {
+		int numItems = 200;
+		ItemDB items = items(numItems);
+		FeatureStore store = new FeatureStore(1, endpoint);
+		store.setCycleBudgetMillis(1);
+		
+		// Not everything fits in the first cycle, and the rest go first in the next.
+		store.load(items, items.snapshot());
+		List<Integer> first = new ArrayList<Integer>(store.lastRecomputed());
+		assertFalse(first.isEmpty());
+		assertTrue(first.size() < numItems);
+		store.load(items, items.snapshot());
+		assertEquals(first.size() + 1, (int) store.lastRecomputed().get(0));
+		while (store.lastRecomputed().size() > 0) {
+			store.load(items, items.snapshot());
+		}
+		store.flush();
+		
+		// A full resync that runs out of time still reaches every item, in later cycles,
+		// even though none of them changed.
+		store.setFullResyncCycles(1);
+		received.clear();
+		store.load(items, items.snapshot());
+		Set<Integer> resent = new HashSet<Integer>(store.lastRecomputed());
+		assertTrue(resent.size() < numItems);
+		store.setFullResyncCycles(FeatureStore.DEFAULT_FULL_RESYNC_CYCLES);
+		for (int cycle = 0; cycle < numItems && resent.size() < numItems; cycle++) {
+			store.load(items, items.snapshot());
+			assertFalse(store.lastRecomputed().isEmpty());
+			resent.addAll(store.lastRecomputed());
+		}
+		assertEquals(numItems, resent.size());
+		store.flush();
+		int perItem = 14 * 4 * FeatureVector.Feature.values().length;
+		assertEquals(numItems * perItem, new HashSet<String>(received).size());
+		store.close();
+	}
+	
+	@Test
+	public void catchesUpRecoveredEdge() throws IOException, InterruptedException {
+		ItemDB items = items();
+		List<String> other = Collections.synchronizedList(new ArrayList<String>());
+		AtomicBoolean up = new AtomicBoolean(false);
+		FeatureStore store = new FeatureStore(1, Arrays.asList(endpoint, startEdge(other, up)));
+		int perItem = 14 * 4 * FeatureVector.Feature.values().length;
+		
+		// The second edge is down, but the first still gets everything.
+		store.load(items, items.snapshot());
+		store.flush();
+		assertEquals(NUM_ITEMS * perItem, received.size());
+		assertTrue(other.isEmpty());
+		// Both sender threads may have been posting when it failed.
+		assertTrue(store.edges().get(1).failures() >= 1);
+		
+		// Once it's back up, the second edge gets everything while the first gets only changes.
+		up.set(true);
+		received.clear();
+		store.load(items, bumped(items));
+		store.flush();
+		assertTrue(received.size() < perItem);
+		assertEquals(NUM_ITEMS * perItem, new HashSet<String>(other).size());
+		assertEquals(0, store.edges().get(1).lagMillis());
+		store.close();
+	}
+	
+	@Test
+	public void servesSnapshot() throws IOException, InterruptedException {
+		ItemDB items = items();
+		Path dir = Files.createTempDirectory("quaggy");
+		Path file = dir.resolve("features.snapshot");
+		FeatureStore store = new FeatureStore(1, endpoint);
+		store.setSnapshotFile(file);
+		SnapshotServer server = new SnapshotServer(0, file);
+		try {
+			store.load(items, items.snapshot());
+			store.load(items, bumped(items));
+			store.flush();
+			
+			HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.port() +
+					SnapshotServer.PATH).openConnection();
+			assertEquals(SnapshotFile.CONTENT_TYPE, conn.getContentType());
+			DataInputStream in = new DataInputStream(conn.getInputStream());
+			byte[] header = new byte[4];
+			in.readFully(header);
+			assertEquals("QSN", new String(header, 0, 3, "US-ASCII"));
+			Map<String, Double> features = new HashMap<String, Double>();
+			int length;
+			while ((length = in.read()) >= 0) {
+				length = (length << 24) | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 |
+						in.readUnsignedByte();
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				features.putAll(Digest.decode(frame));
+			}
+			in.close();
+			
+			// Everything is there, with the latest values.
+			assertEquals(NUM_ITEMS * 14 * 4 * Feature.values().length, features.size());
+			assertEquals(bumped(items).get(1).get(TPItemInfo.Attribute.BuyPrice),
+					features.get("1:1:Instant:Instant:BuyPrice"), 0);
+		}
+		finally {
+			server.close();
+			store.close();
+			Files.deleteIfExists(file);
+			Files.delete(dir);
+		}
+	}
+}
@@ -4,16 +4,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import core.FeatureVector;
+import core.Filter;
 import core.ItemDB;
 import core.ItemType;
 import core.TPSnapshot;
@@ -31,16 +28,7 @@ import io.JSONInterface;
  */
 public class FilterManager {
 	
-	private int historyDays;					// How many historical days should we consider?
-	private Mode buyMode;						// Should we put a buy bid or do it instantly?
-	private Mode sellMode;						// Should we put a sell bid or do it instantly?
-	
-	private Map<Feature, Double> minVals;		// Minimum values allowed for a given feature
-	private Map<Feature, Double> maxVals;		// Maximum values allowed for a given feature
-	private Set<ItemType> itemTypes;			// Allowed item types
-	
-	private Feature sortFeature;				// Which feature should we sort filter results by?
-	private boolean sortAsc;					// If true, sort ascending. Else, sort descending.
+	private Filter filter;						// The filter, compiled
 	
 	/** Create a new PreferenceParser and perform the analysis.
 	 *  Throws IllegalArgumentException in case of invalid
@@ -49,96 +37,48 @@ public class FilterManager {
 	 *  for file.
 	 */
 	public FilterManager(String file) {
-		minVals = new HashMap<Feature, Double>();
-		maxVals = new HashMap<Feature, Double>();
-		itemTypes = new HashSet<ItemType>();
 		// Parse the input file as JSON.
 		String jsonText = JSONInterface.parseFile("config/" + file + ".json");
-		JSONObject root = JSONInterface.loadFromText(jsonText);
-		historyDays = JSONInterface.getInt(root, "HistoryDays");
-		
-		// Parse modes into enums.
-		String buyModeS = JSONInterface.get(root, "BuyMode");
-		String sellModeS = JSONInterface.get(root, "SellMode");
-		if (!buyModeS.equalsIgnoreCase("bid") && !buyModeS.equalsIgnoreCase("instant")) {
-			throw new IllegalArgumentException("Buy Mode : " + buyModeS + " invalid.");
-		}
-		if (!sellModeS.equalsIgnoreCase("bid") && !sellModeS.equalsIgnoreCase("instant")) {
-			throw new IllegalArgumentException("Sell Mode : " + sellModeS + " invalid.");
-		}
-		buyMode = (buyModeS.equalsIgnoreCase("bid")) ? Mode.BID : Mode.INSTANT;
-		sellMode = (sellModeS.equalsIgnoreCase("bid")) ? Mode.BID : Mode.INSTANT;
-		
-		// Try to parse min/max values into maps.
-		JSONObject bounds = JSONInterface.getObject(root, "Bounds");
-		for (Feature f : Feature.values()) {
-			try{
-				JSONObject fOb = JSONInterface.getObject(bounds, f.name());
-				try {
-					minVals.put(f, JSONInterface.getDouble(fOb, "Min"));
-				} catch (IllegalArgumentException e) {}
-				try {
-					maxVals.put(f, JSONInterface.getDouble(fOb, "Max"));
-				} catch (IllegalArgumentException e) {}
-			}
-			catch (IllegalArgumentException e) {}
-		}
-		
-		// Parse the list of itemTypes we're considering.
-		JSONArray types = JSONInterface.getArray(root, "Types");
-		for (int i = 0; i < types.length(); i++) {
-			itemTypes.add(ItemType.fromString(JSONInterface.getAtIndex(types, i)));
-		}
-		
-		// Parse sort information.
-		sortFeature = Feature.valueOf(JSONInterface.get(root, "SortBy"));
-		String sortOrder = JSONInterface.get(root, "SortOrder");
-		if (!sortOrder.equalsIgnoreCase("ASC") && !sortOrder.equalsIgnoreCase("DESC")) {
-			throw new IllegalArgumentException("Sort order " + sortOrder + " but must be ASC or DESC");
-		}
-		sortAsc = (sortOrder.equalsIgnoreCase("ASC"));
+		filter = new Filter(JSONInterface.loadFromText(jsonText));
 	}
 	
 	/** Gets the number of historical days we want to consider. */
 	public int historyDays() {
-		return historyDays;
+		return filter.historyDays();
 	}
 	
 	/** Gets the mode we will be using to buy items, instantly or bid. */
 	public Mode buyMode() {
-		return buyMode;
+		return filter.buyMode();
 	}
 
 	/** Gets the mode we will be using to sell items, instantly or bid. */
 	public Mode sellMode() {
-		return sellMode;
+		return filter.sellMode();
 	}
 	
 	/** Given a feature vector, decide whether it meets the standards
 	 *  set by the user filter or not. 
 	 */
 	public boolean filter(FeatureVector fv) {
-		// Check to make sure the item type is correct.
-		ItemType type = ItemType.values()[(int)fv.get(Feature.ItemType)];
-		if (!itemTypes.contains(type)) return false;
-		// Check to make sure each feature is correct.
-		for (Feature f : Feature.values()) {
-			if (minVals.containsKey(f) && fv.get(f) < minVals.get(f)) return false;
-			if (maxVals.containsKey(f) && fv.get(f) > maxVals.get(f)) return false;
-		}
-		return true;
+		return filter.matches(fv);
 	}
 	
 	/** Gets a set of all the item types to consider. */
 	public Set<ItemType> itemTypes() {
-		return itemTypes;
+		Set<ItemType> result = EnumSet.noneOf(ItemType.class);
+		for (ItemType type : ItemType.values()) {
+			if (filter.allows(type)) result.add(type);
+		}
+		return result;
 	}
 	
 	/** What is the minimum value of feature f to consider?
 	 * (Double.MIN_VALUE if no minimum specified)
 	 */
 	public double minAllowed(Feature f) {
-		if (minVals.containsKey(f)) return minVals.get(f);
+		int i = bound(f);
+		if (i >= 0 && filter.min(i) != Double.NEGATIVE_INFINITY) return filter.min(i);
 		else return Double.MIN_VALUE;
 	}
 	
@@ -146,10 +86,16 @@ public class FilterManager {
 	 * (Double.MAX_VALUE if no minimum specified)
 	 */
 	public double maxAllowed(Feature f) {
-		if (maxVals.containsKey(f)) return maxVals.get(f);
+		int i = bound(f);
+		if (i >= 0 && filter.max(i) != Double.POSITIVE_INFINITY) return filter.max(i);
 		else return Double.MAX_VALUE;
 	}
 	
+	/** Index of the filter's bound on f, or -1 if it has none. */
+	private int bound(Feature f) {
+		return Arrays.asList(filter.bounded()).indexOf(f);
+	}
+	
 	/** Given a database of all items to consider (including history) and a snapshot
 	 *  of the current state of the TP, look through all items in the DB
 	 *  and return a list of the feature vectors corresponding to those allowed
@@ -168,22 +114,30 @@ public class FilterManager {
 			FeatureVector fv = new FeatureVector(id, items, snapshot, 
 					historyDays(), buyMode(), sellMode());
 			// Add information only if good deal.
-			if (filter(fv)) {
+			if (filter.matches(fv)) {
 				result.add(fv);
 			}
 		}
-		// Sort results.
-		Collections.sort(result, new Comparator<FeatureVector>() {
+		// Sort results, keeping only the best if there's a limit.
+		Comparator<FeatureVector> order = new Comparator<FeatureVector>() {
 			@Override
 			public int compare(FeatureVector fv1, FeatureVector fv2) {
-				double val1 = fv1.get(sortFeature);
-				double val2 = fv2.get(sortFeature);
-				double diff = sortAsc ? val1 - val2 : val2 - val1;
-				if (Math.abs(diff) < 0.0001) return 0;
-				else if (diff < 0) return -1;
-				else return 1;
+				Feature sort = filter.sortFeature();
+				return filter.compare(fv1.get(sort), (int) fv1.get(Feature.ItemID),
+						fv2.get(sort), (int) fv2.get(Feature.ItemID));
+			}
+		};
+		if (filter.limit() > 0 && result.size() > filter.limit()) {
+			// The last of the best so far is at the head, ready to be dropped.
+			PriorityQueue<FeatureVector> best = new PriorityQueue<FeatureVector>(filter.limit() + 1,
+					Collections.reverseOrder(order));
+			for (FeatureVector fv : result) {
+				best.add(fv);
+				if (best.size() > filter.limit()) best.poll();
 			}
-		});
+			result = new ArrayList<FeatureVector>(best);
+		}
+		Collections.sort(result, order);
 		
 		System.out.println("Deal prediction algorithm complete.");
 		return result;
@@ -194,21 +148,20 @@ public class FilterManager {
 		String res = "\n";
 		res += "*******************\n";
 		res += "User Preferences\n";
-		res += "Days of history considered: " + historyDays + "\n";
-		res += "Buy mode: " + buyMode.name() + "\n";
-		res += "Sell mode: " + sellMode.name() + "\n";
-		res += "Item types: " + Arrays.toString(itemTypes.toArray()) + "\n";
-		for (Feature f : Feature.values()) {
-			if (minVals.containsKey(f) || maxVals.containsKey(f)) {
-				res += f.name();
-				if (minVals.containsKey(f)) {
-					res += " Min: " + minVals.get(f);
-				}
-				if (maxVals.containsKey(f)) {
-					res += " Max: " + maxVals.get(f);
-				}
-				res += "\n";
+		res += "Days of history considered: " + historyDays() + "\n";
+		res += "Buy mode: " + buyMode().name() + "\n";
+		res += "Sell mode: " + sellMode().name() + "\n";
+		res += "Item types: " + Arrays.toString(itemTypes().toArray()) + "\n";
+		Feature[] bounded = filter.bounded();
+		for (int i = 0; i < bounded.length; i++) {
+			res += bounded[i].name();
+			if (filter.min(i) != Double.NEGATIVE_INFINITY) {
+				res += " Min: " + filter.min(i);
+			}
+			if (filter.max(i) != Double.POSITIVE_INFINITY) {
+				res += " Max: " + filter.max(i);
 			}
+			res += "\n";
 		}
 		return res;
 	}
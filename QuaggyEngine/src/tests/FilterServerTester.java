@@ -0,0 +1,352 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import core.DateTime;
+import core.FeatureIndex;
+import core.FeatureVector.Feature;
+import core.Filter;
+import core.ItemDB;
+import core.ItemFeatures;
+import core.ItemInfo;
+import core.Subscriptions;
+import core.TPItemInfo;
+import core.TPSnapshot;
+import io.FilterServer;
+
+/** Checks FilterServer's answers to filters and subscriptions over HTTP. */
+public class FilterServerTester {
+	
+	/** A filter passing the items whose buy price is at least (Min) or at most (Max) 101. */
+	private static final String BUY_PRICE = "{\"HistoryDays\": 1, \"BuyMode\": \"Instant\", " +
+			"\"SellMode\": \"Instant\", \"SortBy\": \"BuyPrice\", \"SortOrder\": \"Asc\", " +
+			"\"Types\": [\"CraftingMaterial\"], " +
+			"\"Bounds\": {\"BuyPrice\": {\"%s\": 101}}}";
+	
+	private FeatureIndex index = new FeatureIndex(FeatureIndexTester.HISTORY);
+	private Subscriptions subscriptions = new Subscriptions(index);
+	private FilterServer server;
+	private List<HttpServer> callbacks = new ArrayList<HttpServer>();
+	
+	@Before
+	public void startServer() throws IOException {
+		server = new FilterServer(0, index, subscriptions);
+	}
+	
+	@After
+	public void stopServer() {
+		server.close();
+		for (HttpServer callback : callbacks) {
+			callback.stop(0);
+		}
+	}
+	
+	/** Build three items with a day of hourly history, item n's buy price around 100n. */
+	private static ItemDB items() {
+		Map<Integer, ItemInfo> map = new HashMap<Integer, ItemInfo>();
+		for (int id = 1; id <= 3; id++) {
+			ItemInfo item = new ItemInfo(id, "Item " + id, "Crafting Material", "1", "0", "-1", "-1", "");
+			List<TPItemInfo> history = new ArrayList<TPItemInfo>();
+			DateTime time = new DateTime("2016-02-20 12:00:00");
+			DateTime step = new DateTime("00-00-00 ~1:00:00");
+			for (int i = 0; i < 24; i++) {
+				history.add(new TPItemInfo(id, 10 + i, 100 * id + i % 5, 20 + i, 150 * id + i % 7, time.toString()));
+				time = time.add(step);
+			}
+			item.setHistory(history);
+			map.put(id, item);
+		}
+		return new ItemDB(map);
+	}
+	
+	/** A snapshot of items, with item 1's buy price raised by 3. */
+	private static TPSnapshot bumped(ItemDB items) {
+		Map<Integer, TPItemInfo> rows = new HashMap<Integer, TPItemInfo>();
+		for (int id : items.validIDS()) {
+			rows.put(id, items.getItemInfo(id).getHistory().get(0));
+		}
+		TPItemInfo old = rows.get(1);
+		rows.put(1, new TPItemInfo(1, old.get(TPItemInfo.Attribute.NumBuy),
+				old.get(TPItemInfo.Attribute.BuyPrice) + 3, old.get(TPItemInfo.Attribute.NumSell),
+				old.get(TPItemInfo.Attribute.SellPrice), old.time()));
+		return new TPSnapshot(rows);
+	}
+	
+	/** Put the features of every item in snapshot in the index, and tell the subscriptions,
+	 *  as FeatureStore does at the end of a cycle. */
+	private void load(ItemDB items, TPSnapshot snapshot) {
+		List<ItemFeatures> changed = new ArrayList<ItemFeatures>();
+		for (int id : snapshot.validIDS()) {
+			ItemFeatures item = FeatureIndexTester.features(items, snapshot, id);
+			index.update(item);
+			changed.add(item);
+		}
+		subscriptions.update(changed, Collections.<Integer>emptyList());
+	}
+	
+	/** Start a stub callback which adds every change posted to it to changes, once gate
+	 *  has been opened. Returns its URL. */
+	private String startCallback(List<JSONObject> changes, CountDownLatch gate) throws IOException {
+		return startCallback(changes, gate, -1);
+	}
+	
+	/** As above, but answering the post numbered fail (from 0) with a 500, without adding it. */
+	private String startCallback(final List<JSONObject> changes, final CountDownLatch gate, final int fail)
+			throws IOException {
+		final AtomicInteger posts = new AtomicInteger();
+		HttpServer callback = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		callback.createContext("/changes", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					gate.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				JSONObject change = new JSONObject(new Scanner(exchange.getRequestBody(), "UTF-8").useDelimiter("\\A").next());
+				if (posts.getAndIncrement() == fail) {
+					exchange.sendResponseHeaders(500, -1);
+				}
+				else {
+					changes.add(change);
+					exchange.sendResponseHeaders(200, -1);
+				}
+				exchange.close();
+			}
+		});
+		callback.start();
+		callbacks.add(callback);
+		return "http://localhost:" + callback.getAddress().getPort() + "/changes";
+	}
+	
+	/** A subscription to filter with the given callback. */
+	private static String subscription(String filter, String callback) {
+		return "{\"Filter\": " + filter + ", \"Callback\": \"" + callback + "\"}";
+	}
+	
+	@Test
+	public void answersFilters() throws IOException {
+		ItemDB items = FilterTester.items(new Random(5), 300);
+		load(items, items.snapshot());
+		for (String filter : new String[] {FilterTester.FILTER, FilterTester.FILTER.replace("\"Limit\": 10, ", "")}) {
+			FeatureIndex.Result expected = index.query(Filter.parse(filter));
+			JSONObject response = post(FilterServer.PATH, filter, 200);
+			assertEquals(expected.total() >= 0, response.has("Count"));
+			if (response.has("Count")) {
+				assertEquals(expected.total(), response.getInt("Count"));
+			}
+			assertEquals(expected.next() != null, response.has("Next"));
+			if (response.has("Next")) {
+				assertEquals(expected.next(), response.getString("Next"));
+			}
+			JSONArray results = response.getJSONArray("Results");
+			assertEquals(expected.items().size(), results.length());
+			for (int i = 0; i < results.length(); i++) {
+				double[] values = expected.items().get(i);
+				for (Feature f : Feature.values()) {
+					assertEquals(values[f.ordinal()], results.getJSONObject(i).getDouble(f.name()), 0);
+				}
+			}
+		}
+		
+		// A bad filter is rejected, and so is anything but a POST.
+		assertTrue(post(FilterServer.PATH, FilterTester.FILTER.replace("Desc", "Sideways"), 400).has("Error"));
+		HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.port() +
+				FilterServer.PATH).openConnection();
+		assertEquals(405, conn.getResponseCode());
+	}
+	
+	@Test
+	public void pushesMatchChanges() throws IOException, InterruptedException {
+		ItemDB items = items();
+		List<JSONObject> changes = Collections.synchronizedList(new ArrayList<JSONObject>());
+		String url = startCallback(changes, new CountDownLatch(0));
+		load(items, items.snapshot());
+		int above = post(FilterServer.SUBSCRIBE_PATH,
+				subscription(String.format(BUY_PRICE, "Min"), url), 200).getInt("Id");
+		int below = post(FilterServer.SUBSCRIBE_PATH,
+				subscription(String.format(BUY_PRICE, "Max"), url), 200).getInt("Id");
+		assertEquals(2, subscriptions.size());
+		
+		// Each is sent what passes it straight away, then only what changed.
+		load(items, bumped(items));
+		Map<Integer, List<JSONObject>> byId = awaitChanges(changes, 4);
+		assertEquals(Arrays.asList(2.0, 3.0), itemIds(byId.get(above).get(0).getJSONArray("Added")));
+		assertEquals(Arrays.asList(1.0), itemIds(byId.get(above).get(1).getJSONArray("Added")));
+		assertEquals(0, byId.get(above).get(1).getJSONArray("Removed").length());
+		assertEquals(Arrays.asList(1.0), itemIds(byId.get(below).get(0).getJSONArray("Added")));
+		assertEquals(0, byId.get(below).get(1).getJSONArray("Added").length());
+		assertEquals(1, byId.get(below).get(1).getJSONArray("Removed").getInt(0));
+		
+		// Nothing changed, so nothing is sent.
+		load(items, bumped(items));
+		Thread.sleep(200);
+		assertEquals(4, changes.size());
+		
+		post(FilterServer.UNSUBSCRIBE_PATH, "{\"Id\": " + above + "}", 200);
+		post(FilterServer.UNSUBSCRIBE_PATH, "{\"Id\": " + above + "}", 404);
+		assertEquals(1, subscriptions.size());
+	}
+	
+	@Test
+	public void rejectsOtherCallbacks() throws IOException {
+		for (String callback : new String[] {"nowhere", "file:///etc/passwd", "ftp://localhost/changes", "http://"}) {
+			post(FilterServer.SUBSCRIBE_PATH, subscription(String.format(BUY_PRICE, "Min"), callback), 400);
+		}
+		assertEquals(0, subscriptions.size());
+	}
+	
+	@Test
+	public void slowCallbackOnlyDelaysItself() throws IOException, InterruptedException {
+		ItemDB items = items();
+		List<JSONObject> slowChanges = Collections.synchronizedList(new ArrayList<JSONObject>());
+		List<JSONObject> fastChanges = Collections.synchronizedList(new ArrayList<JSONObject>());
+		CountDownLatch gate = new CountDownLatch(1);
+		String slow = startCallback(slowChanges, gate);
+		String fast = startCallback(fastChanges, new CountDownLatch(0));
+		load(items, items.snapshot());
+		try {
+			// The slow callback is stuck on its first change while the fast one gets both of its own,
+			// well before the slow one's post could time out.
+			post(FilterServer.SUBSCRIBE_PATH, subscription(String.format(BUY_PRICE, "Min"), slow), 200);
+			post(FilterServer.SUBSCRIBE_PATH, subscription(String.format(BUY_PRICE, "Min"), fast), 200);
+			load(items, bumped(items));
+			awaitChanges(fastChanges, 2, 1000);
+			assertEquals(0, slowChanges.size());
+		}
+		finally {
+			gate.countDown();
+		}
+		
+		// Then the slow one gets its changes, in order.
+		awaitChanges(slowChanges, 2);
+		assertEquals(Arrays.asList(2.0, 3.0), itemIds(slowChanges.get(0).getJSONArray("Added")));
+		assertEquals(Arrays.asList(1.0), itemIds(slowChanges.get(1).getJSONArray("Added")));
+	}
+	
+	@Test
+	public void resetsAfterFailedPost() throws IOException, InterruptedException {
+		ItemDB items = items();
+		List<JSONObject> changes = Collections.synchronizedList(new ArrayList<JSONObject>());
+		// The post of item 1 starting to pass fails, so it can't just be left out.
+		String url = startCallback(changes, new CountDownLatch(0), 1);
+		load(items, items.snapshot());
+		int id = post(FilterServer.SUBSCRIBE_PATH,
+				subscription(String.format(BUY_PRICE, "Min"), url), 200).getInt("Id");
+		load(items, bumped(items));
+		
+		// Instead everything passing is sent again, replacing what was sent before.
+		awaitChanges(changes, 2);
+		assertFalse(changes.get(0).has("Reset"));
+		assertTrue(changes.get(1).getBoolean("Reset"));
+		assertEquals(Arrays.asList(1.0, 2.0, 3.0), matches(changes));
+		
+		// After which only changes are sent again, until the callback is unsubscribed.
+		load(items, items.snapshot());
+		awaitChanges(changes, 3);
+		assertFalse(changes.get(2).has("Reset"));
+		assertEquals(Arrays.asList(2.0, 3.0), matches(changes));
+		post(FilterServer.UNSUBSCRIBE_PATH, "{\"Id\": " + id + "}", 200);
+		load(items, bumped(items));
+		Thread.sleep(200);
+		assertEquals(3, changes.size());
+	}
+	
+	/** The item IDs a subscriber would have after applying changes in order, ascending. */
+	private static List<Double> matches(List<JSONObject> changes) {
+		TreeSet<Double> ids = new TreeSet<Double>();
+		synchronized (changes) {
+			for (JSONObject change : changes) {
+				if (change.optBoolean("Reset")) {
+					ids.clear();
+				}
+				ids.addAll(itemIds(change.getJSONArray("Added")));
+				JSONArray removed = change.getJSONArray("Removed");
+				for (int i = 0; i < removed.length(); i++) {
+					ids.remove(removed.getDouble(i));
+				}
+			}
+		}
+		return new ArrayList<Double>(ids);
+	}
+	
+	/** Wait for count changes to be posted, and return them grouped by subscription ID. */
+	private static Map<Integer, List<JSONObject>> awaitChanges(List<JSONObject> changes, int count)
+			throws InterruptedException {
+		return awaitChanges(changes, count, 5000);
+	}
+	
+	/** As above, waiting at most the given number of ms. */
+	private static Map<Integer, List<JSONObject>> awaitChanges(List<JSONObject> changes, int count, int millis)
+			throws InterruptedException {
+		for (int waited = 0; changes.size() < count && waited < millis; waited += 10) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, changes.size());
+		Map<Integer, List<JSONObject>> byId = new HashMap<Integer, List<JSONObject>>();
+		synchronized (changes) {
+			for (JSONObject change : changes) {
+				if (!byId.containsKey(change.getInt("Id"))) {
+					byId.put(change.getInt("Id"), new ArrayList<JSONObject>());
+				}
+				byId.get(change.getInt("Id")).add(change);
+			}
+		}
+		return byId;
+	}
+	
+	/** The item IDs of a list of results. */
+	private static List<Double> itemIds(JSONArray results) {
+		List<Double> ids = new ArrayList<Double>();
+		for (int i = 0; i < results.length(); i++) {
+			ids.add(results.getJSONObject(i).getDouble("ItemID"));
+		}
+		return ids;
+	}
+	
+	/** Post a request to the server's path, check the response status, and return the response. */
+	private JSONObject post(String path, String body, int status) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.port() +
+				path).openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		OutputStream out = conn.getOutputStream();
+		out.write(body.getBytes("UTF-8"));
+		out.close();
+		assertEquals(status, conn.getResponseCode());
+		InputStream in = (status == 200) ? conn.getInputStream() : conn.getErrorStream();
+		JSONObject response = new JSONObject(new Scanner(in, "UTF-8").useDelimiter("\\A").next());
+		in.close();
+		return response;
+	}
+}
@@ -0,0 +1,171 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import core.DateTime;
+import core.FeatureVector;
+import core.FeatureVector.Feature;
+import core.FeatureVector.Mode;
+import core.Filter;
+import core.ItemDB;
+import core.ItemInfo;
+import core.ItemType;
+import core.TPItemInfo;
+import core.TPSnapshot;
+
+/** Checks that Filters parse, match, order and page the way the edge servers expect. */
+public class FilterTester {
+	
+	/** A filter bounded on two features, over the 10 day window of FeatureIndexTester.HISTORY. */
+	static final String FILTER = "{\"HistoryDays\": 12, \"BuyMode\": \"Bid\", \"SellMode\": \"Instant\", " +
+			"\"SortBy\": \"MeanProfit\", \"SortOrder\": \"Desc\", \"Limit\": 10, " +
+			"\"Types\": [\"CraftingMaterial\", \"Bag\"], " +
+			"\"Bounds\": {\"OurBuyPrice\": {\"Max\": 800}, \"NumSellOrders\": {\"Min\": 1000}}}";
+	
+	/** Build count items of a few types, with a couple of days of hourly history at random prices. */
+	static ItemDB items(Random rand, int count) {
+		String[] types = {"Crafting Material", "Bag", "Weapon"};
+		Map<Integer, ItemInfo> map = new HashMap<Integer, ItemInfo>();
+		for (int id = 1; id <= count; id++) {
+			ItemInfo item = new ItemInfo(id, "Item " + id, types[id % types.length], "1", "0", "-1", "-1", "");
+			List<TPItemInfo> history = new ArrayList<TPItemInfo>();
+			DateTime time = new DateTime("2016-02-20 12:00:00");
+			DateTime step = new DateTime("00-00-00 ~1:00:00");
+			for (int i = 0; i < 48; i++) {
+				history.add(new TPItemInfo(id, 1 + rand.nextInt(3000), 100 + rand.nextInt(1000),
+						rand.nextInt(3000), 100 + rand.nextInt(1000), time.toString()));
+				time = time.add(step);
+			}
+			item.setHistory(history);
+			map.put(id, item);
+		}
+		return new ItemDB(map);
+	}
+	
+	@Test
+	public void parses() {
+		Filter filter = Filter.parse(FILTER);
+		assertEquals(12, filter.historyDays());
+		assertEquals(Mode.BID, filter.buyMode());
+		assertEquals(Mode.INSTANT, filter.sellMode());
+		assertEquals(Feature.MeanProfit, filter.sortFeature());
+		assertFalse(filter.sortAsc());
+		assertEquals(10, filter.limit());
+		assertFalse(filter.hasAfter());
+		assertTrue(filter.allows(ItemType.CraftingMaterial));
+		assertTrue(filter.allows(ItemType.Bag));
+		assertFalse(filter.allows(ItemType.Weapon));
+		
+		// Bounds are kept in Feature order, with the side that isn't bounded infinite.
+		Feature[] expected = {Feature.OurBuyPrice, Feature.NumSellOrders};
+		Arrays.sort(expected);
+		assertArrayEquals(expected, filter.bounded());
+		for (int i = 0; i < expected.length; i++) {
+			boolean price = expected[i] == Feature.OurBuyPrice;
+			assertEquals(price ? Double.NEGATIVE_INFINITY : 1000, filter.min(i), 0);
+			assertEquals(price ? 800 : Double.POSITIVE_INFINITY, filter.max(i), 0);
+		}
+		
+		// Without a Limit, everything comes back.
+		assertEquals(0, Filter.parse(FILTER.replace("\"Limit\": 10, ", "")).limit());
+	}
+	
+	@Test
+	public void rejectsInvalidFilters() {
+		String[] invalid = {
+				FILTER.replace("\"Desc\"", "\"Sideways\""),
+				FILTER.replace("\"Bid\"", "\"Haggle\""),
+				FILTER.replace("NumSellOrders", "NumSellers"),
+				FILTER.replace("\"Bag\"", "\"Spaceship\""),
+				FILTER.replace("\"HistoryDays\": 12", "\"HistoryDays\": 0"),
+				FILTER.replace("\"Limit\": 10", "\"Limit\": -1"),
+				FILTER.replace("\"Limit\": 10", "\"Limit\": 10, \"After\": \"nope\""),
+				FILTER.replace("\"SortBy\": \"MeanProfit\", ", ""),
+		};
+		for (String filter : invalid) {
+			try {
+				Filter.parse(filter);
+				fail("Parsed " + filter);
+			}
+			catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+	
+	@Test
+	public void matchesInAnyBoundOrder() {
+		ItemDB items = items(new Random(5), 300);
+		TPSnapshot snapshot = items.snapshot();
+		Filter compiled = Filter.parse(FILTER);
+		// Put the second bound first.
+		Filter reordered = compiled.ordered(new double[] {1, 0});
+		assertEquals(compiled.bounded()[1], reordered.bounded()[0]);
+		assertEquals(compiled.max(1), reordered.max(0), 0);
+		int passed = 0;
+		for (int id : items.validIDS()) {
+			FeatureVector fv = new FeatureVector(id, items, snapshot, 10, Mode.BID, Mode.INSTANT);
+			ItemType type = ItemType.values()[(int) fv.get(Feature.ItemType)];
+			boolean passes = (type == ItemType.CraftingMaterial || type == ItemType.Bag) &&
+					fv.get(Feature.NumSellOrders) >= 1000 && fv.get(Feature.OurBuyPrice) <= 800;
+			assertEquals(passes, compiled.matches(fv));
+			assertEquals(passes, reordered.matches(fv));
+			passed += passes ? 1 : 0;
+		}
+		assertTrue(passed > 0 && passed < items.validIDS().size());
+		
+		try {
+			compiled.ordered(new double[] {1});
+			fail("Ordered two bounds by one pass rate");
+		}
+		catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	@Test
+	public void ordersAndPages() {
+		Filter desc = Filter.parse(FILTER);
+		Filter asc = Filter.parse(FILTER.replace("Desc", "Asc"));
+		for (Filter filter : new Filter[] {asc, desc}) {
+			assertEquals(filter.sortAsc(), filter.compare(1, 5, 2, 1) < 0);
+			// NaN comes last either way, and ties are broken by ascending ID.
+			assertTrue(filter.compare(Double.NaN, 1, 5, 2) > 0);
+			assertTrue(filter.compare(5, 2, Double.NaN, 1) < 0);
+			assertTrue(filter.compare(3, 1, 3, 2) < 0);
+			assertTrue(filter.compare(Double.NaN, 1, Double.NaN, 2) < 0);
+			assertEquals(0, filter.compare(3, 1, 3, 1));
+		}
+		
+		// A page token picks up right after the item it was made from.
+		String page = FILTER.replace("\"Limit\": 10", "\"Limit\": 10, \"After\": \"" + Filter.token(3.5, 7) + "\"");
+		Filter after = Filter.parse(page);
+		assertTrue(after.hasAfter());
+		assertEquals(3.5, after.afterValue(), 0);
+		assertEquals(7, after.afterId());
+		assertFalse(after.isAfter(3.5, 7));
+		assertFalse(after.isAfter(4, 1));
+		assertTrue(after.isAfter(3.5, 8));
+		assertTrue(after.isAfter(3, 1));
+		assertTrue(after.isAfter(Double.NaN, 1));
+		Filter afterNaN = Filter.parse(page.replace(Filter.token(3.5, 7), Filter.token(Double.NaN, 2)));
+		assertTrue(Double.isNaN(afterNaN.afterValue()));
+		assertFalse(afterNaN.isAfter(Double.NaN, 1));
+		assertTrue(afterNaN.isAfter(Double.NaN, 3));
+		
+		// Without the page, everything passing comes back.
+		Filter all = after.withoutPage();
+		assertEquals(0, all.limit());
+		assertFalse(all.hasAfter());
+		assertEquals(10, after.limit());
+	}
+}
@@ -0,0 +1,199 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import core.DateTime;
+import core.FeatureVector;
+import core.FeatureVector.Feature;
+import core.FeatureVector.Mode;
+import core.HistoryStats;
+import core.ItemDB;
+import core.ItemInfo;
+import core.PrefixMedians;
+import core.RunningStats;
+import core.TPItemInfo;
+import core.TPSnapshot;
+
+public class HistoryStatsTester {
+
+	private static final int[] HISTORY = {1,2,3,4,5,6,7,8,9,10,15,20,25,30};
+
+	/** Build an item with a few weeks of hourly history at random prices. */
+	private ItemInfo randomItem(Random rand, int id) {
+		ItemInfo item = new ItemInfo(id, "Item " + id, "Crafting Material", "1", "0", "-1", "-1", "");
+		List<TPItemInfo> history = new ArrayList<TPItemInfo>();
+		DateTime time = new DateTime("2016-02-20 12:00:00");
+		DateTime step = new DateTime("00-00-00 ~1:00:00");
+		int entries = 1 + rand.nextInt(24 * 35);
+		for (int i = 0; i < entries; i++) {
+			history.add(new TPItemInfo(id, rand.nextInt(5000), 100 + rand.nextInt(900000),
+					rand.nextInt(5000), 100 + rand.nextInt(900000), time.toString()));
+			time = time.add(step);
+		}
+		item.setHistory(history);
+		return item;
+	}
+
+	@Test
+	public void matchesItemInfo() {
+		Random rand = new Random(17);
+		for (int trial = 0; trial < 20; trial++) {
+			ItemInfo item = randomItem(rand, trial);
+			ItemDB items = new ItemDB(itemMap(item));
+			HistoryStats stats = new HistoryStats(item, HISTORY);
+			for (int w = 0; w < HISTORY.length; w++) {
+				int n = stats.count(w);
+				FeatureVector single = new FeatureVector(trial, items, items.snapshot(),
+						HISTORY[w], Mode.BID, Mode.BID);
+				assertEquals(n, (int) single.get(Feature.NumConsidered));
+				for (TPItemInfo.Attribute attr : new TPItemInfo.Attribute[]
+						{TPItemInfo.Attribute.BuyPrice, TPItemInfo.Attribute.SellPrice}) {
+					assertEquals(item.mean(attr, n), stats.mean(attr, w), 0);
+					assertEquals(item.median(attr, n), stats.median(attr, w), 0);
+					assertEquals(item.meanSlope(attr, n), stats.meanSlope(attr, w), 0);
+					assertEquals(item.variance(attr, n), stats.variance(attr, w),
+							1e-9 * Math.max(1, item.variance(attr, n)));
+					// ItemInfo shares RunningStats with HistoryStats, so check both against
+					// statistics computed the long way too.
+					double[] values = new double[n];
+					for (int i = 0; i < n; i++) {
+						values[i] = item.getHistory().get(i).get(attr);
+					}
+					assertEquals(naiveMean(values), stats.mean(attr, w), 1e-9 * Math.abs(naiveMean(values)));
+					assertEquals(naiveVariance(values), stats.variance(attr, w),
+							1e-9 * Math.max(1, naiveVariance(values)));
+					assertEquals(naiveSlope(values), stats.meanSlope(attr, w), 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void profitMatchesDirectComputation() {
+		Random rand = new Random(42);
+		ItemInfo item = randomItem(rand, 7);
+		ItemDB items = new ItemDB(itemMap(item));
+		TPSnapshot snapshot = items.snapshot();
+		HistoryStats stats = new HistoryStats(item, HISTORY);
+		TPItemInfo current = snapshot.get(7);
+		for (int w = 0; w < HISTORY.length; w++) {
+			for (Mode buy : Mode.values()) {
+				for (Mode sell : Mode.values()) {
+					FeatureVector fv = new FeatureVector(7, items, snapshot, stats, w, buy, sell);
+					double ourBuy = (buy == Mode.INSTANT) ? current.get(TPItemInfo.Attribute.SellPrice)
+							: current.get(TPItemInfo.Attribute.BuyPrice);
+					TPItemInfo.Attribute selling = (sell == Mode.INSTANT) ?
+							TPItemInfo.Attribute.BuyPrice : TPItemInfo.Attribute.SellPrice;
+					int n = stats.count(w);
+					core.DoubleFunction profit = (double s) -> (s * TPItemInfo.TAX_FACTOR - ourBuy) / ourBuy;
+					assertEquals(item.mean(selling, n, profit), fv.get(Feature.MeanProfit), 1e-12);
+					assertEquals(item.median(selling, n, profit), fv.get(Feature.MedianProfit), 1e-12);
+					assertEquals(item.variance(selling, n, profit), fv.get(Feature.VarProfit), 1e-12);
+				}
+			}
+		}
+	}
+
+	private static Map<Integer, ItemInfo> itemMap(ItemInfo item) {
+		Map<Integer, ItemInfo> map = new HashMap<Integer, ItemInfo>();
+		map.put(item.getId(), item);
+		return map;
+	}
+
+	@Test
+	public void prefixMedians() {
+		// Few distinct values, so there are plenty of ties.
+		Random rand = new Random(7);
+		PrefixMedians medians = new PrefixMedians(4);
+		for (int trial = 0; trial < 50; trial++) {
+			int off = rand.nextInt(3);
+			int[] values = new int[off + 1 + rand.nextInt(60)];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = rand.nextInt(6);
+			}
+			medians.reset(values, off, values.length - off);
+			for (int n = 1; off + n <= values.length; n++) {
+				medians.push();
+				int[] prefix = Arrays.copyOfRange(values, off, off + n);
+				Arrays.sort(prefix);
+				double expected = (n % 2 == 0) ? (prefix[n/2 - 1] + prefix[n/2]) / 2.0 : prefix[n/2];
+				assertEquals(expected, medians.median(), 0);
+			}
+		}
+	}
+
+	/** Mean of values, by summing them. */
+	private static double naiveMean(double[] values) {
+		double sum = 0;
+		for (double x : values) sum += x;
+		return sum / values.length;
+	}
+
+	/** Population variance of values, by summing squared differences from their mean. */
+	private static double naiveVariance(double[] values) {
+		double mean = naiveMean(values);
+		double sum = 0;
+		for (double x : values) sum += (x - mean) * (x - mean);
+		return sum / values.length;
+	}
+
+	/** Average change from one value to the next, by summing every change. */
+	private static double naiveSlope(double[] values) {
+		if (values.length < 2) return 0;
+		double sum = 0;
+		for (int i = 1; i < values.length; i++) sum += values[i] - values[i - 1];
+		return sum / (values.length - 1);
+	}
+
+	@Test
+	public void runningStats() {
+		// Large values with a small spread, where summing squares would lose the variance.
+		Random rand = new Random(5);
+		for (int n : new int[] {1, 2, 3, 50, 1000}) {
+			double[] values = new double[n];
+			for (int i = 0; i < n; i++) {
+				values[i] = 1e6 + rand.nextInt(1000) + rand.nextDouble();
+			}
+			RunningStats stats = new RunningStats();
+			for (double x : values) stats.add(x);
+			assertEquals(n, stats.count());
+			assertEquals(naiveMean(values), stats.mean(), 1e-12 * 1e6);
+			assertEquals(naiveVariance(values), stats.variance(), 1e-9 * Math.max(1, naiveVariance(values)));
+			assertEquals(naiveSlope(values), stats.slope(), 1e-9);
+		}
+	}
+
+	@Test
+	public void runningStatsMerge() {
+		// Accumulating in parts and merging matches accumulating all at once.
+		Random rand = new Random(3);
+		double[] values = new double[500];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 1e6 + rand.nextInt(1000);
+		}
+		RunningStats whole = new RunningStats();
+		for (double x : values) whole.add(x);
+		assertEquals(naiveMean(values), whole.mean(), 1e-12 * 1e6);
+		assertEquals(naiveVariance(values), whole.variance(), 1e-9 * naiveVariance(values));
+		assertEquals(naiveSlope(values), whole.slope(), 1e-9);
+		for (int split : new int[] {0, 1, 137, 499, 500}) {
+			RunningStats left = new RunningStats(), right = new RunningStats();
+			for (int i = 0; i < split; i++) left.add(values[i]);
+			for (int i = split; i < values.length; i++) right.add(values[i]);
+			left.merge(right);
+			assertEquals(whole.count(), left.count());
+			assertEquals(whole.mean(), left.mean(), 1e-9);
+			assertEquals(whole.variance(), left.variance(), 1e-9 * whole.variance());
+			assertEquals(whole.slope(), left.slope(), 1e-12);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import io.JSONStream;
+
+public class JSONStreamTester {
+	
+	@Test
+	public void test() {
+		JSONStream json = new JSONStream(new StringReader(
+				"{ \"count\": 2, \"nested\": {\"a\": [1, {\"b\": 2}]},\n" +
+				"  \"results\": [ {\"id\": 1, \"name\": \"Quaggan\", \"price\": \"15\"},\n" +
+				"               {\"price\": 30, \"id\": 2, \"extra\": [true, null]} ],\n" +
+				"  \"last\": \"done\" }"));
+		json.beginObject();
+		assertEquals("count", json.nextKey());
+		assertEquals(2, json.nextInt());
+		assertEquals("nested", json.nextKey());
+		json.skipValue();
+		assertEquals("results", json.nextKey());
+		json.beginArray();
+		
+		int total = 0, items = 0;
+		while (json.hasNext()) {
+			json.beginObject();
+			String key;
+			while ((key = json.nextKey()) != null) {
+				if (key.equals("price")) total += json.nextInt();
+				else if (key.equals("name")) assertEquals("Quaggan", json.nextString());
+				else json.skipValue();
+			}
+			items++;
+		}
+		assertEquals(2, items);
+		assertEquals(45, total);
+		
+		assertEquals("last", json.nextKey());
+		assertEquals("done", json.nextString());
+		assertNull(json.nextKey());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsBadInput() {
+		JSONStream json = new JSONStream(new StringReader("{\"a\" 1}"));
+		json.beginObject();
+		json.nextKey();
+	}
+}
@@ -0,0 +1,93 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import io.JSONInterface;
+import io.RESTClient;
+
+/** Checks the shared HTTP client against a local server. */
+public class RESTClientTester {
+	
+	private HttpServer server;
+	private AtomicInteger flakyCalls = new AtomicInteger();
+	private AtomicInteger missingCalls = new AtomicInteger();
+	
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		// Fails twice, then answers with a gzipped body.
+		server.createContext("/flaky", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (flakyCalls.incrementAndGet() < 3) {
+					respond(exchange, 503, new byte[0]);
+					return;
+				}
+				assertTrue(exchange.getRequestHeaders().getFirst("Accept-Encoding").contains("gzip"));
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+				gzip.write("{\"results\":[1,2,3]}".getBytes("UTF-8"));
+				gzip.close();
+				exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+				respond(exchange, 200, bytes.toByteArray());
+			}
+		});
+		// Client errors should not be retried.
+		server.createContext("/missing", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				missingCalls.incrementAndGet();
+				respond(exchange, 404, new byte[0]);
+			}
+		});
+		server.start();
+	}
+	
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+	
+	private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+	
+	private String url(String path) {
+		return "http://localhost:" + server.getAddress().getPort() + path;
+	}
+	
+	@Test
+	public void retriesServerErrorsAndDecodesGzip() {
+		assertEquals(3, JSONInterface.getArray(JSONInterface.loadJSON(url("/flaky")), "results").length());
+		assertEquals(3, flakyCalls.get());
+	}
+	
+	@Test
+	public void doesNotRetryClientErrors() {
+		try {
+			RESTClient.get(url("/missing"));
+			fail("Expected the 404 to be reported");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals(1, missingCalls.get());
+		}
+	}
+}
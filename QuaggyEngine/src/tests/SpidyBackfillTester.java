@@ -0,0 +1,200 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import core.TPItemInfo;
+import core.TPSnapshot;
+import io.HistoryStore;
+import io.SpidyAPI;
+import io.SpidyBackfill;
+
+/** Runs a backfill against a local server serving canned Spidy pages. */
+public class SpidyBackfillTester {
+	
+	private HttpServer server;
+	private Map<String, String> pages = new HashMap<String, String>();
+	private List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+	
+	/** Stores everything in memory. */
+	private static class MemoryStore implements HistoryStore {
+		private List<TPItemInfo> listings = new ArrayList<TPItemInfo>();
+		private Set<Integer> backfilled = new HashSet<Integer>();
+		private boolean cleared = false;
+		
+		@Override
+		public void resetHistory() {
+			listings.clear();
+			backfilled.clear();
+		}
+		
+		@Override
+		public Set<Integer> backfilledIDs() {
+			return new HashSet<Integer>(backfilled);
+		}
+		
+		@Override
+		public void addBackfill(Iterable<TPItemInfo> listings, Collection<Integer> itemIDs) {
+			for (TPItemInfo listing : listings) {
+				this.listings.add(listing);
+			}
+			backfilled.addAll(itemIDs);
+		}
+		
+		@Override
+		public void clearBackfill() {
+			backfilled.clear();
+			cleared = true;
+		}
+		
+		/** Get the stored listing for item id at the given time, or null. */
+		private TPItemInfo find(int id, String time) {
+			for (TPItemInfo listing : listings) {
+				if (listing.getID() == id && listing.time().toString().equals(time)) return listing;
+			}
+			return null;
+		}
+	}
+	
+	@Before
+	public void startServer() throws IOException {
+		pages.put("/types", "{\"results\":[{\"id\":0,\"name\":\"Armor\"}]}");
+		pages.put("/all-items/all", "{\"results\":[" + item(1) + "," + item(2) + "," + item(3) + "]}");
+		// Item 1 has one page of each, and a buy listing with no matching sell listing.
+		pages.put("/listings/1/sell/1", page(1, 1, listing(100, 5, 2, "2016-01-01 10:00:00 UTC")));
+		pages.put("/listings/1/buy/1", page(1, 1, listing(90, 7, 3, "2016-01-01 10:00:00 UTC") + "," +
+				listing(80, 1, 1, "2016-01-01 11:00:00 UTC")));
+		// Item 2 has two pages of sell listings.
+		pages.put("/listings/2/sell/1", page(1, 2, listing(200, 1, 1, "2016-01-02 10:00:00 UTC")));
+		pages.put("/listings/2/sell/2", page(2, 2, listing(210, 1, 1, "2016-01-02 11:00:00 UTC")));
+		pages.put("/listings/2/buy/1", page(1, 0, ""));
+		// Item 3 was never traded.
+		pages.put("/listings/3/sell/1", page(1, 0, ""));
+		pages.put("/listings/3/buy/1", page(1, 0, ""));
+		
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String path = exchange.getRequestURI().getPath();
+				requested.add(path);
+				String body = pages.get(path);
+				byte[] bytes = (body == null ? "" : body).getBytes("UTF-8");
+				exchange.sendResponseHeaders(body == null ? 404 : 200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+		});
+		server.start();
+	}
+	
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+	
+	private static String item(int id) {
+		return "{\"data_id\":" + id + ",\"name\":\"Item " + id + "\",\"type_id\":0,\"rarity\":1," +
+				"\"restriction_level\":0,\"img\":\"\",\"min_sale_unit_price\":" + (id * 10) +
+				",\"sale_availability\":" + id + ",\"max_offer_unit_price\":" + (id * 9) +
+				",\"offer_availability\":" + (id + 1) + ",\"price_last_changed\":\"2016-01-03 00:00:00 UTC\"}";
+	}
+	
+	private static String page(int page, int lastPage, String results) {
+		return "{\"page\":" + page + ",\"last_page\":" + lastPage + ",\"results\":[" + results + "]}";
+	}
+	
+	private static String listing(int price, int quantity, int listings, String time) {
+		return "{\"unit_price\":" + price + ",\"quantity\":" + quantity + ",\"listings\":" + listings +
+				",\"listing_datetime\":\"" + time + "\"}";
+	}
+	
+	private SpidyAPI api() {
+		return new SpidyAPI("http://localhost:" + server.getAddress().getPort() + "/");
+	}
+	
+	@Test
+	public void backfillsEveryItem() {
+		MemoryStore store = new MemoryStore();
+		SpidyBackfill backfill = new SpidyBackfill(api(), 3, 1000);
+		backfill.setBatchSize(2);
+		api().resyncHistory(store, true, Integer.MAX_VALUE, 0, backfill);
+		
+		assertEquals(4, store.listings.size());
+		TPItemInfo merged = store.find(1, "2016-1-1 10:0:0");
+		assertEquals(100, merged.get(TPItemInfo.Attribute.SellPrice));
+		assertEquals(5, merged.get(TPItemInfo.Attribute.NumSell));
+		assertEquals(90, merged.get(TPItemInfo.Attribute.BuyPrice));
+		assertEquals(3, merged.get(TPItemInfo.Attribute.BuyListings));
+		TPItemInfo buyOnly = store.find(1, "2016-1-1 11:0:0");
+		assertEquals(80, buyOnly.get(TPItemInfo.Attribute.BuyPrice));
+		assertEquals(0, buyOnly.get(TPItemInfo.Attribute.SellPrice));
+		assertNotNull(store.find(2, "2016-1-2 11:0:0"));
+		// Everything finished, so there is nothing left to resume.
+		assertTrue(store.cleared);
+		assertTrue(store.backfilledIDs().isEmpty());
+	}
+	
+	@Test
+	public void streamsSnapshot() {
+		TPSnapshot snapshot = api().snapshot();
+		assertEquals(3, snapshot.validIDS().size());
+		assertEquals(20, snapshot.get(2).get(TPItemInfo.Attribute.SellPrice));
+		assertEquals(18, snapshot.get(2).get(TPItemInfo.Attribute.BuyPrice));
+		assertEquals(3, snapshot.get(2).get(TPItemInfo.Attribute.NumBuy));
+		assertEquals("2016-1-3 0:0:0", snapshot.get(2).time().toString());
+	}
+	
+	@Test
+	public void rejectsIncompleteSnapshot() {
+		for (String field : new String[] {"data_id", "min_sale_unit_price", "offer_availability"}) {
+			pages.put("/all-items/all", "{\"results\":[" + item(1) + "," +
+					item(2).replace("\"" + field + "\"", "\"renamed\"") + "]}");
+			try {
+				api().snapshot();
+				fail("Snapshot without " + field);
+			}
+			catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(field));
+			}
+		}
+	}
+	
+	@Test
+	public void resumesAndRetriesFailures() {
+		MemoryStore store = new MemoryStore();
+		store.backfilled.add(1);
+		pages.remove("/listings/3/buy/1");
+		api().resyncHistory(store, false, Integer.MAX_VALUE, 0, new SpidyBackfill(api(), 2, 1000));
+		
+		// Item 1 was already done, so none of its pages should have been requested.
+		for (String path : requested) {
+			assertFalse(path, path.startsWith("/listings/1/"));
+		}
+		assertEquals(2, store.listings.size());
+		// Item 3 failed, so progress is kept and it is left for the next run.
+		assertFalse(store.cleared);
+		assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), store.backfilledIDs());
+	}
+}
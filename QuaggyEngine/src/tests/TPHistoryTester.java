@@ -0,0 +1,94 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import core.DateTime;
+import core.TPHistory;
+import core.TPItemInfo;
+
+public class TPHistoryTester {
+
+	@Test
+	public void test() {
+		List<TPItemInfo> listings = new ArrayList<TPItemInfo>();
+		listings.add(new TPItemInfo(24, 10, 100, 20, 200, "2016-01-02 00:00:00"));
+		listings.add(new TPItemInfo(24, 11, 101, 21, 201, "2016-01-04 00:00:00"));
+		listings.add(new TPItemInfo(24, 12, 102, 22, 202, "2016-01-03 00:00:00"));
+		TPHistory history = new TPHistory(24, listings);
+
+		// Entries should be sorted newest -> oldest.
+		assertEquals(3, history.size());
+		assertEquals(101, history.get(TPItemInfo.Attribute.BuyPrice, 0));
+		assertEquals(102, history.get(TPItemInfo.Attribute.BuyPrice, 1));
+		assertEquals(100, history.get(TPItemInfo.Attribute.BuyPrice, 2));
+		assertEquals(new DateTime("2016-01-04 00:00:00").toEpochSeconds(), history.time(0));
+		assertEquals("2016-1-3 0:0:0", history.get(1).time().toString());
+
+		// Adding keeps the order, wherever the new entry belongs.
+		history.add(new TPItemInfo(24, 13, 103, 23, 203, "2016-01-05 00:00:00"));
+		history.add(new TPItemInfo(24, 14, 104, 24, 204, "2016-01-01 00:00:00"));
+		history.add(new TPItemInfo(24, 15, 105, 25, 205, "2016-01-03 12:00:00"));
+		int[] expected = {203, 201, 205, 202, 200, 204};
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], history.get(TPItemInfo.Attribute.SellPrice, i));
+		}
+
+		// Purging removes only the entries older than the given time.
+		history.purge(new DateTime("2016-01-03 00:00:00").toEpochSeconds());
+		assertEquals(4, history.size());
+		assertEquals(202, history.get(TPItemInfo.Attribute.SellPrice, 3));
+	}
+
+	@Test
+	public void fromColumns() {
+		// Rows out of order, as they may come back from the listings table.
+		long[] times = {300, 100, 500, 200, 100};
+		int[][] columns = new int[TPItemInfo.Attribute.values().length][5];
+		columns[TPItemInfo.Attribute.BuyPrice.ordinal()] = new int[] {3, 1, 5, 2, 6};
+		TPHistory history = new TPHistory(24, times, columns, 4);
+		
+		assertEquals(4, history.size());
+		int[] expected = {5, 3, 2, 1};
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], history.get(TPItemInfo.Attribute.BuyPrice, i));
+		}
+		assertEquals(500, history.time(0));
+		assertEquals(100, history.time(3));
+	}
+
+	@Test
+	public void rollingWindow() {
+		// Add an entry each hour and keep a day, as the engine does, checking against a plain list.
+		TPHistory history = new TPHistory(24);
+		List<Long> expected = new ArrayList<Long>();
+		int[] attrs = new int[TPItemInfo.Attribute.values().length];
+		for (long hour = 0; hour < 200; hour++) {
+			attrs[TPItemInfo.Attribute.BuyPrice.ordinal()] = (int) hour;
+			history.add(hour * 3600, attrs);
+			expected.add(0, hour);
+			history.purge((hour - 23) * 3600);
+			while (expected.get(expected.size() - 1) < hour - 23) {
+				expected.remove(expected.size() - 1);
+			}
+
+			assertEquals(expected.size(), history.size());
+			int[] column = history.column(TPItemInfo.Attribute.BuyPrice);
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).longValue(), history.time(i) / 3600);
+				assertEquals(expected.get(i).intValue(), column[history.offset() + i]);
+			}
+		}
+
+		// Entries older than the newest still go in the right place.
+		attrs[TPItemInfo.Attribute.BuyPrice.ordinal()] = -1;
+		history.add(190 * 3600 + 1, attrs);
+		assertEquals(-1, history.get(TPItemInfo.Attribute.BuyPrice, 9));
+		assertEquals(190, history.get(TPItemInfo.Attribute.BuyPrice, 10));
+	}
+
+}